@@ -0,0 +1,284 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.Integer.getInteger;
+import static java.lang.System.nanoTime;
+import static java.net.InetAddress.getLoopbackAddress;
+import static java.nio.channels.SelectionKey.OP_ACCEPT;
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonMap;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_RELAY_BUFFER_MEMORY_CONFIGURATION_PARAMETER_NAME;
+
+/**
+ * Standalone harness that measures how many connections per second the relay of agent listeners handles,
+ * how much latency it adds to a connection with one request and response, and how many direct buffers
+ * it uses while holding many concurrent connections. The relay forwards to a local echo server,
+ * so the numbers show the overhead of the relay alone, without the SSH client.
+ * <p>
+ * It is run with {@code gradlew :agent:relayBenchmark} and the workload is adjusted with the project properties
+ * {@code connections}, {@code concurrentConnections}, {@code clientThreads} and {@code bufferMemory}.
+ * Each concurrent connection needs four file descriptors, so the limit of open files might need to be raised.
+ */
+public class ForwardRelayBenchmark {
+    private static final int MESSAGE_SIZE = 64;
+
+    public static void main(String[] args) throws Exception {
+        int connections = getInteger("connections", 20_000);
+        int concurrentConnections = getInteger("concurrentConnections", 10_000);
+        int clientThreads = getInteger("clientThreads", 16);
+        Integer bufferMemory = getInteger("bufferMemory");
+
+        RelayEventLoops eventLoops = new RelayEventLoops(EventDispatcher.create(AgentLifeCycleListener.class),
+                agentConfiguration((bufferMemory == null) ? emptyMap()
+                        : singletonMap(SSH_RELAY_BUFFER_MEMORY_CONFIGURATION_PARAMETER_NAME, bufferMemory.toString())));
+        ExecutorService clients = newFixedThreadPool(clientThreads);
+        try (EchoServer echoServer = new EchoServer();
+             ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(getLoopbackAddress(), 0), concurrentConnections);
+            ForwardRelay relay = new ForwardRelay(listener, echoServer.getAddress(), eventLoops, new ForwardStatistics());
+            relay.start();
+            try {
+                InetSocketAddress relayAddress = (InetSocketAddress) listener.getLocalAddress();
+
+                // warm up, so that both measurements run compiled code
+                measure(clients, clientThreads, echoServer.getAddress(), connections / 10);
+                measure(clients, clientThreads, relayAddress, connections / 10);
+
+                Result direct = measure(clients, clientThreads, echoServer.getAddress(), connections);
+                Result relayed = measure(clients, clientThreads, relayAddress, connections);
+                System.out.printf("%-10s %12s %12s %12s%n", "", "conn/s", "p50 [us]", "p99 [us]");
+                direct.print("direct");
+                relayed.print("relayed");
+                System.out.printf("%-10s %12s %12d %12d%n", "added", "",
+                        relayed.getPercentile(50) - direct.getPercentile(50),
+                        relayed.getPercentile(99) - direct.getPercentile(99));
+
+                List<SocketChannel> heldConnections = new ArrayList<>();
+                try {
+                    long start = nanoTime();
+                    for (int i = 0; i < concurrentConnections; i++) {
+                        SocketChannel heldConnection = SocketChannel.open(relayAddress);
+                        heldConnections.add(heldConnection);
+                        roundTrip(heldConnection, ByteBuffer.allocate(MESSAGE_SIZE));
+                    }
+                    System.out.printf("%nopened %d concurrent relayed connections in %d ms, direct buffers in use: %d KiB%n",
+                            heldConnections.size(), NANOSECONDS.toMillis(nanoTime() - start), getDirectBufferMemory() / 1024);
+                    Result relayedUnderLoad = measure(clients, clientThreads, relayAddress, connections);
+                    System.out.printf("%-10s %12s %12s %12s%n", "", "conn/s", "p50 [us]", "p99 [us]");
+                    relayedUnderLoad.print("relayed");
+                } finally {
+                    for (SocketChannel heldConnection : heldConnections) {
+                        heldConnection.close();
+                    }
+                }
+            } finally {
+                relay.close();
+            }
+        } finally {
+            clients.shutdownNow();
+            eventLoops.agentShutdown();
+        }
+    }
+
+    /**
+     * Opens the given number of connections to the given address with the given number of threads,
+     * each sending one message, waiting for the echo and closing the connection again.
+     */
+    @NotNull
+    private static Result measure(@NotNull ExecutorService clients, int clientThreads,
+                                  @NotNull InetSocketAddress address, int connections) throws Exception {
+        long[] latencies = new long[connections];
+        AtomicInteger nextConnection = new AtomicInteger();
+        List<Future<?>> results = new ArrayList<>();
+        long start = nanoTime();
+        for (int i = 0; i < clientThreads; i++) {
+            results.add(clients.submit(() -> {
+                ByteBuffer message = ByteBuffer.allocate(MESSAGE_SIZE);
+                for (int connection; (connection = nextConnection.getAndIncrement()) < connections; ) {
+                    long connectionStart = nanoTime();
+                    try (SocketChannel channel = SocketChannel.open(address)) {
+                        roundTrip(channel, message);
+                    }
+                    latencies[connection] = nanoTime() - connectionStart;
+                }
+                return null;
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        return new Result(connections, nanoTime() - start, latencies);
+    }
+
+    private static void roundTrip(@NotNull SocketChannel channel, @NotNull ByteBuffer message) throws IOException {
+        message.clear();
+        while (message.hasRemaining()) {
+            channel.write(message);
+        }
+        message.clear();
+        while (message.hasRemaining()) {
+            if (channel.read(message) < 0) {
+                throw new EOFException("Connection closed before the echo was received");
+            }
+        }
+    }
+
+    private static long getDirectBufferMemory() {
+        return ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                .filter(bufferPool -> "direct".equals(bufferPool.getName()))
+                .mapToLong(BufferPoolMXBean::getMemoryUsed)
+                .sum();
+    }
+
+    @NotNull
+    private static BuildAgentConfiguration agentConfiguration(@NotNull Map<String, String> configurationParameters) {
+        // the relay only reads the configuration parameters of the agent
+        return (BuildAgentConfiguration) Proxy.newProxyInstance(ForwardRelayBenchmark.class.getClassLoader(),
+                new Class<?>[]{BuildAgentConfiguration.class}, (proxy, method, methodArgs) -> {
+                    if ("getConfigurationParameters".equals(method.getName())) {
+                        return configurationParameters;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    private static class Result {
+        private final int connections;
+        private final long duration;
+        private final long[] latencies;
+
+        public Result(int connections, long duration, @NotNull long[] latencies) {
+            this.connections = connections;
+            this.duration = duration;
+            this.latencies = latencies.clone();
+            Arrays.sort(this.latencies);
+        }
+
+        public long getPercentile(int percentile) {
+            return NANOSECONDS.toMicros(latencies[(int) Math.ceil(latencies.length * percentile / 100.0) - 1]);
+        }
+
+        public void print(@NotNull String name) {
+            System.out.printf("%-10s %12d %12d %12d%n", name, connections * SECONDS.toNanos(1) / duration,
+                    getPercentile(50), getPercentile(99));
+        }
+    }
+
+    /**
+     * An echo server on one selector thread, that is not slowed down by many concurrent connections.
+     */
+    private static class EchoServer implements AutoCloseable {
+        private final Selector selector;
+        private final ServerSocketChannel serverChannel;
+
+        public EchoServer() throws IOException {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(getLoopbackAddress(), 0), 4096);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, OP_ACCEPT);
+            Thread thread = new Thread(this::run, "Echo Server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @NotNull
+        public InetSocketAddress getAddress() throws IOException {
+            return (InetSocketAddress) serverChannel.getLocalAddress();
+        }
+
+        private void run() {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(RelayEventLoops.BUFFER_SIZE);
+            try {
+                while (true) {
+                    selector.select();
+                    for (Iterator<SelectionKey> keys = selector.selectedKeys().iterator(); keys.hasNext(); ) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid() && key.isAcceptable()) {
+                            for (SocketChannel client; (client = serverChannel.accept()) != null; ) {
+                                client.configureBlocking(false);
+                                client.register(selector, OP_READ);
+                            }
+                        } else if (key.isValid() && key.isReadable()) {
+                            echo((SocketChannel) key.channel(), buffer);
+                        }
+                    }
+                }
+            } catch (ClosedSelectorException cse) {
+                // the server was closed
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }
+
+        private static void echo(@NotNull SocketChannel client, @NotNull ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            int read;
+            try {
+                read = client.read(buffer);
+            } catch (IOException ioe) {
+                read = -1;
+            }
+            if (read < 0) {
+                client.close();
+                return;
+            }
+            buffer.flip();
+            // the messages are small, so the echo always fits into the send buffer of the socket
+            client.write(buffer);
+        }
+
+        @Override
+        public void close() throws IOException {
+            selector.close();
+            serverChannel.close();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import net.kautler.teamcity.ssh_tunnel.common.model.SshTunnel;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static java.util.Collections.emptyMap;
+
+/**
+ * Holds the local listeners the agent binds itself for the forwards of running builds. They are bound when
+ * the build starts and stay bound until it finishes, also while the connection carrying the forward is reconnected.
+ * Alongside, the statistics of the traffic relayed from each listener are collected for the whole build.
+ */
+public class AgentForwardListeners {
+    private final ConcurrentMap<AgentRunningBuild, Map<SshTunnel, Listener>> listenersPerBuild = new ConcurrentHashMap<>();
+
+    public void put(@NotNull AgentRunningBuild runningBuild, @NotNull SshTunnel forward, @NotNull ServerSocketChannel listener) {
+        listenersPerBuild.computeIfAbsent(runningBuild, key -> new ConcurrentHashMap<>()).put(forward, new Listener(listener));
+    }
+
+    /**
+     * Returns the listener the agent bound for the given forward.
+     *
+     * @param runningBuild the build the forward belongs to
+     * @param forward      the forward to get the listener for
+     * @return the listener or {@code null} if the forward is done by the SSH client itself
+     */
+    @Nullable
+    public ServerSocketChannel get(@NotNull AgentRunningBuild runningBuild, @NotNull SshTunnel forward) {
+        Listener listener = listenersPerBuild.getOrDefault(runningBuild, emptyMap()).get(forward);
+        return (listener == null) ? null : listener.channel;
+    }
+
+    /**
+     * Returns the statistics of the traffic relayed from the listener the agent bound for the given forward.
+     *
+     * @param runningBuild the build the forward belongs to
+     * @param forward      the forward to get the statistics for
+     * @return the statistics or {@code null} if the forward is done by the SSH client itself
+     */
+    @Nullable
+    public ForwardStatistics getStatistics(@NotNull AgentRunningBuild runningBuild, @NotNull SshTunnel forward) {
+        Listener listener = listenersPerBuild.getOrDefault(runningBuild, emptyMap()).get(forward);
+        return (listener == null) ? null : listener.statistics;
+    }
+
+    /**
+     * Returns the statistics of all listeners bound for the given build.
+     *
+     * @param runningBuild the build to get the statistics for
+     * @return the statistics per forward
+     */
+    @NotNull
+    public Map<SshTunnel, ForwardStatistics> getStatistics(@NotNull AgentRunningBuild runningBuild) {
+        Map<SshTunnel, ForwardStatistics> result = new HashMap<>();
+        listenersPerBuild.getOrDefault(runningBuild, emptyMap())
+                .forEach((forward, listener) -> result.put(forward, listener.statistics));
+        return result;
+    }
+
+    /**
+     * Closes all listeners bound for the given build.
+     *
+     * @param runningBuild the build to close the listeners of
+     */
+    public void close(@NotNull AgentRunningBuild runningBuild) {
+        Map<SshTunnel, Listener> listeners = listenersPerBuild.remove(runningBuild);
+        if (listeners == null) {
+            return;
+        }
+        for (Listener listener : listeners.values()) {
+            try {
+                listener.channel.close();
+            } catch (IOException ignored) {
+                // the port is released anyway
+            }
+        }
+    }
+
+    private static class Listener {
+        private final ServerSocketChannel channel;
+        private final ForwardStatistics statistics = new ForwardStatistics();
+
+        public Listener(@NotNull ServerSocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+}
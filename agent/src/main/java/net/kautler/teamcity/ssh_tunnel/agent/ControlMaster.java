@@ -0,0 +1,280 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import jetbrains.buildServer.agent.BuildProgressLogger;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+import static java.lang.Math.min;
+import static java.lang.System.nanoTime;
+import static java.lang.Thread.currentThread;
+import static java.lang.Thread.sleep;
+import static java.nio.file.Files.createTempDirectory;
+import static java.nio.file.attribute.PosixFilePermissions.asFileAttribute;
+import static java.nio.file.attribute.PosixFilePermissions.fromString;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static net.kautler.teamcity.ssh_tunnel.common.Util.streamToStringAsync;
+
+/**
+ * An OpenSSH control master that is shared by all connections of a build to the same host as the same user
+ * with the same key. Forwards are added to and removed from the master through its control socket,
+ * so only the master does a key exchange and authentication. The master is never kept beyond its build,
+ * as every process of the agent user could use its control socket to reach the host with the key of the build.
+ */
+public class ControlMaster {
+    private static final long INITIAL_POLL_INTERVAL = 10;
+    private static final long MAX_POLL_INTERVAL = 500;
+    private static final long CONTROL_COMMAND_TIMEOUT = 10;
+
+    @NotNull
+    private final String sshExecutable;
+
+    @NotNull
+    private final String host;
+
+    @NotNull
+    private final Consumer<ControlMaster> releaseListener;
+
+    private File controlDirectory;
+    private File controlSocket;
+    private ExecutableSshConnection masterConnection;
+    private final List<Runnable> endListeners = new ArrayList<>();
+    private boolean ended;
+    private int references;
+    private boolean closed;
+
+    /**
+     * Creates a control master that is started on first acquisition.
+     *
+     * @param sshExecutable   the ssh executable to run control commands with
+     * @param host            the host the master connects to
+     * @param releaseListener called when the last reference was released and the master was closed
+     */
+    public ControlMaster(@NotNull String sshExecutable, @NotNull String host, @NotNull Consumer<ControlMaster> releaseListener) {
+        this.sshExecutable = sshExecutable;
+        this.host = host;
+        this.releaseListener = releaseListener;
+    }
+
+    /**
+     * Starts the master if this did not happen yet and acquires a reference to it.
+     *
+     * @param starter     the starter for the master process, that gets the options that make it a control master
+     * @param timeout     the time in seconds to wait for the master to accept control commands
+     * @param buildLogger the logger to log the outcome of a failed start to
+     * @return {@code false} if this master was closed or ended already, so a new one has to be used
+     * @throws IOException if the master could not be started
+     */
+    public synchronized boolean acquire(@NotNull Starter starter, long timeout, @NotNull BuildProgressLogger buildLogger)
+            throws IOException {
+        // a master that ended on its own is only released by the connections still using it
+        if (closed || ((masterConnection != null) && !masterConnection.isAlive())) {
+            return false;
+        }
+        if (masterConnection == null) {
+            try {
+                // the path of unix domain sockets is severely limited in length,
+                // so the socket cannot live in the build temp directory
+                controlDirectory = createTempDirectory(Paths.get("/tmp"), "ssh-tunnel-", asFileAttribute(fromString("rwx------"))).toFile();
+                controlSocket = new File(controlDirectory, "control");
+                masterConnection = starter.start(asList("-M", "-S", controlSocket.getPath()));
+                awaitControlSocket(masterConnection, controlSocket, timeout);
+                masterConnection.deleteCredentials();
+                masterConnection.addEndListener(this::fireEnd);
+            } catch (IOException | RuntimeException e) {
+                close(buildLogger);
+                if (isFailurePermanent()) {
+                    throw new PermanentSshException(e.getMessage(), e);
+                }
+                throw e;
+            }
+        }
+        references++;
+        return true;
+    }
+
+    public synchronized boolean isAlive() {
+        return (masterConnection != null) && masterConnection.isAlive();
+    }
+
+    /**
+     * Returns whether the master process ended because of a problem that will not go away by retrying.
+     *
+     * @return whether the master process ended because of a permanent problem
+     */
+    public synchronized boolean isFailurePermanent() {
+        return (masterConnection != null) && masterConnection.isFailurePermanent();
+    }
+
+    /**
+     * Returns the id of the master process.
+     *
+     * @return the process id, or {@code null} if the master is not started or its id is not known
+     */
+    @Nullable
+    public synchronized String getProcessId() {
+        return (masterConnection == null) ? null : masterConnection.getProcessId();
+    }
+
+    /**
+     * Registers a listener that is called once when the master process ended.
+     *
+     * @param listener the listener to call, it must not block
+     */
+    public void addEndListener(@NotNull Runnable listener) {
+        synchronized (endListeners) {
+            if (!ended) {
+                endListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    public void addForwards(@NotNull List<String> forwardOptions) throws IOException {
+        runControlCommand(sshExecutable, controlSocket, host, "forward", forwardOptions);
+    }
+
+    public void cancelForwards(@NotNull List<String> forwardOptions) throws IOException {
+        runControlCommand(sshExecutable, controlSocket, host, "cancel", forwardOptions);
+    }
+
+    /**
+     * Releases a reference to this master and terminates the master once the last reference was released.
+     *
+     * @param buildLogger the logger to log the outcome of the master to
+     * @return {@code false} if the master ended unsuccessfully on its own before, {@code true} otherwise
+     * @throws IOException if the outcome of the master could not be determined
+     */
+    public synchronized boolean release(@NotNull BuildProgressLogger buildLogger) throws IOException {
+        if (--references > 0) {
+            return isAlive();
+        }
+        return close(buildLogger);
+    }
+
+    private boolean close(@NotNull BuildProgressLogger buildLogger) throws IOException {
+        closed = true;
+        try {
+            if (masterConnection == null) {
+                return true;
+            }
+            if (masterConnection.isAlive() && controlSocket.exists()) {
+                try {
+                    runControlCommand(sshExecutable, controlSocket, host, "exit", emptyList());
+                } catch (IOException ioe) {
+                    buildLogger.warning(ioe.getMessage());
+                }
+            }
+            return masterConnection.terminate(buildLogger);
+        } finally {
+            if (controlDirectory != null) {
+                FileUtil.delete(controlDirectory);
+            }
+            releaseListener.accept(this);
+        }
+    }
+
+    private void fireEnd() {
+        List<Runnable> listeners;
+        synchronized (endListeners) {
+            ended = true;
+            listeners = new ArrayList<>(endListeners);
+            endListeners.clear();
+        }
+        listeners.forEach(Runnable::run);
+    }
+
+    static void awaitControlSocket(@NotNull ExecutableSshConnection masterConnection, @NotNull File controlSocket, long timeout)
+            throws IOException {
+        // the master only creates the control socket once it is authenticated
+        long start = nanoTime();
+        long pollInterval = INITIAL_POLL_INTERVAL;
+        while (!controlSocket.exists()) {
+            if (!masterConnection.isAlive()) {
+                throw new IOException("SSH control master ended before accepting control commands");
+            }
+            if ((nanoTime() - start) >= SECONDS.toNanos(timeout)) {
+                throw new IOException(String.format("SSH control master did not accept control commands within %d seconds", timeout));
+            }
+            try {
+                sleep(pollInterval);
+            } catch (InterruptedException ie) {
+                currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the SSH control master");
+            }
+            pollInterval = min(pollInterval * 2, MAX_POLL_INTERVAL);
+        }
+    }
+
+    /**
+     * Runs the given control command against the master listening on the given control socket.
+     *
+     * @return the output of the control command
+     * @throws IOException if the control command failed or did not finish in time
+     */
+    @NotNull
+    static String runControlCommand(@NotNull String sshExecutable, @NotNull File controlSocket, @NotNull String host,
+                                    @NotNull String controlCommand, @NotNull List<String> options) throws IOException {
+        List<String> command = new ArrayList<>(asList(sshExecutable, "-S", controlSocket.getPath(), "-O", controlCommand));
+        command.addAll(options);
+        command.add(host);
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        // a master that hangs must not block the caller, which usually holds the lock of the master
+        Future<String> outputReader = streamToStringAsync(process.getInputStream());
+        String output;
+        try {
+            if (!process.waitFor(CONTROL_COMMAND_TIMEOUT, SECONDS)) {
+                process.destroyForcibly();
+                throw new IOException(String.format("SSH control command '%s' did not finish within %d seconds", controlCommand, CONTROL_COMMAND_TIMEOUT));
+            }
+            output = outputReader.get(CONTROL_COMMAND_TIMEOUT, SECONDS);
+        } catch (InterruptedException ie) {
+            process.destroyForcibly();
+            currentThread().interrupt();
+            throw new InterruptedIOException(String.format("Interrupted while running SSH control command '%s'", controlCommand));
+        } catch (ExecutionException | TimeoutException e) {
+            // the output is only informational
+            output = "";
+        }
+        if (process.exitValue() != 0) {
+            throw new IOException(String.format("SSH control command '%s' failed with exit code %d: %s", controlCommand, process.exitValue(), output));
+        }
+        return output;
+    }
+
+    @FunctionalInterface
+    public interface Starter {
+        @NotNull
+        ExecutableSshConnection start(@NotNull List<String> masterOptions) throws IOException;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import jetbrains.buildServer.agent.BuildProgressLogger;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.common.future.CloseFuture;
+import org.apache.sshd.common.future.SshFutureListener;
+import org.apache.sshd.common.util.net.SshdSocketAddress;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+public class EmbeddedSshConnection implements SshConnection {
+    @NotNull
+    private final ClientSession session;
+
+    @NotNull
+    private final List<SshdSocketAddress> boundAddresses;
+
+    @NotNull
+    private final Predicate<ClientSession> retainer;
+
+    private final long gracePeriod;
+
+    private boolean forwardingStopped;
+
+    private final List<SshFutureListener<CloseFuture>> closeListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates a connection for the given session.
+     *
+     * @param session        the authenticated session
+     * @param boundAddresses the local addresses of the forwards of this connection
+     * @param retainer       called on termination with the session without forwards, whether to keep it alive
+     * @param gracePeriod    the time in milliseconds the session gets to close gracefully on termination
+     */
+    public EmbeddedSshConnection(@NotNull ClientSession session, @NotNull List<SshdSocketAddress> boundAddresses,
+                                 @NotNull Predicate<ClientSession> retainer, long gracePeriod) {
+        this.session = session;
+        this.boundAddresses = boundAddresses;
+        this.retainer = retainer;
+        this.gracePeriod = gracePeriod;
+    }
+
+    @Override
+    public boolean isAlive() {
+        return session.isOpen();
+    }
+
+    @Override
+    public boolean stopAccepting() throws IOException {
+        // this only unbinds the listeners, the channels of accepted connections stay open
+        stopForwarding();
+        return true;
+    }
+
+    @Override
+    public boolean terminate(@NotNull BuildProgressLogger buildLogger) throws IOException {
+        if (session.isOpen()) {
+            try {
+                stopForwarding();
+                // a pooled session must not notify listeners of this connection anymore
+                closeListeners.forEach(session::removeCloseFutureListener);
+                if (retainer.test(session)) {
+                    return true;
+                }
+            } catch (IOException ioe) {
+                buildLogger.warning(ioe.getMessage());
+            }
+            if (!session.close(false).await(gracePeriod, MILLISECONDS)) {
+                buildLogger.warning(String.format("SSH session did not close within %d ms, closing it forcibly", gracePeriod));
+                session.close(true);
+            }
+            return true;
+        }
+        buildLogger.warning("SSH session was closed unexpectedly");
+        return false;
+    }
+
+    private void stopForwarding() throws IOException {
+        if (!forwardingStopped) {
+            for (SshdSocketAddress boundAddress : boundAddresses) {
+                session.stopLocalPortForwarding(boundAddress);
+            }
+            forwardingStopped = true;
+        }
+    }
+
+    @Override
+    public boolean isFailurePermanent() {
+        // authentication and host key verification are done before the connection is created
+        return false;
+    }
+
+    @Nullable
+    @Override
+    public String getProcessId() {
+        // the session is carried within the agent
+        return null;
+    }
+
+    @Override
+    public void addEndListener(@NotNull Runnable listener) {
+        SshFutureListener<CloseFuture> closeListener = closeFuture -> listener.run();
+        closeListeners.add(closeListener);
+        session.addCloseFutureListener(closeListener);
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import jetbrains.buildServer.agent.AgentLifeCycleAdapter;
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.BuildProgressLogger;
+import jetbrains.buildServer.agent.ssh.AgentRunningBuildSshKeyManager;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.ssh.TeamCitySshKey;
+import jetbrains.buildServer.util.EventDispatcher;
+import net.kautler.teamcity.ssh_tunnel.common.model.AddressPortPart;
+import net.kautler.teamcity.ssh_tunnel.common.model.Connection;
+import net.kautler.teamcity.ssh_tunnel.common.model.Part;
+import net.kautler.teamcity.ssh_tunnel.common.model.SshTunnel;
+import org.apache.sshd.client.SshClient;
+import org.apache.sshd.client.keyverifier.DefaultKnownHostsServerKeyVerifier;
+import org.apache.sshd.client.keyverifier.RejectAllServerKeyVerifier;
+import org.apache.sshd.client.keyverifier.ServerKeyVerifier;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.client.session.ClientSession.ClientSessionEvent;
+import org.apache.sshd.common.AttributeRepository;
+import org.apache.sshd.common.AttributeRepository.AttributeKey;
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.common.session.SessionListener;
+import org.apache.sshd.common.util.net.SshdSocketAddress;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.security.KeyPair;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.lang.Integer.parseInt;
+import static java.lang.Math.max;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
+import static net.kautler.teamcity.ssh_tunnel.agent.HandshakeTiming.Phase.AUTHENTICATION;
+import static net.kautler.teamcity.ssh_tunnel.agent.HandshakeTiming.Phase.DNS;
+import static net.kautler.teamcity.ssh_tunnel.agent.HandshakeTiming.Phase.HOST_KEY_VERIFICATION;
+import static net.kautler.teamcity.ssh_tunnel.agent.HandshakeTiming.Phase.KEY_EXCHANGE;
+import static net.kautler.teamcity.ssh_tunnel.agent.HandshakeTiming.Phase.TCP_CONNECT;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_KEEP_ALIVE_COUNT_MAX_CONFIGURATION_PARAMETER_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_KEEP_ALIVE_INTERVAL_CONFIGURATION_PARAMETER_NAME;
+import static org.apache.sshd.client.session.ClientSession.ClientSessionEvent.CLOSED;
+import static org.apache.sshd.client.session.ClientSession.ClientSessionEvent.WAIT_AUTH;
+import static org.apache.sshd.core.CoreModuleProperties.HEARTBEAT_INTERVAL;
+import static org.apache.sshd.core.CoreModuleProperties.HEARTBEAT_REPLY_WAIT;
+
+public class EmbeddedSshEngine extends AgentLifeCycleAdapter implements SshEngine, InitializingBean {
+    private static final Logger LOG = LoggerFactory.getLogger(Loggers.AGENT_CATEGORY + '.' + EmbeddedSshEngine.class.getName());
+    private static final long PREWARM_TIMEOUT = 10;
+    private static final AttributeKey<HandshakeTiming> HANDSHAKE_TIMING = new AttributeKey<>();
+
+    @NotNull
+    private final EventDispatcher<AgentLifeCycleListener> agentLifeCycleEventDispatcher;
+
+    @NotNull
+    private final AgentRunningBuildSshKeyManager agentRunningBuildSshKeyManager;
+
+    @NotNull
+    private final SshConnectionPool sshConnectionPool;
+
+    @NotNull
+    private final SshKeyAgent sshKeyAgent;
+
+    private final Map<List<String>, ClientSession> prewarmedSessions = new HashMap<>();
+    private SshClient sshClient;
+
+    public EmbeddedSshEngine(@NotNull EventDispatcher<AgentLifeCycleListener> agentLifeCycleEventDispatcher,
+                             @NotNull AgentRunningBuildSshKeyManager agentRunningBuildSshKeyManager,
+                             @NotNull SshConnectionPool sshConnectionPool,
+                             @NotNull SshKeyAgent sshKeyAgent) {
+        this.agentLifeCycleEventDispatcher = agentLifeCycleEventDispatcher;
+        this.agentRunningBuildSshKeyManager = agentRunningBuildSshKeyManager;
+        this.sshConnectionPool = sshConnectionPool;
+        this.sshKeyAgent = sshKeyAgent;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        agentLifeCycleEventDispatcher.addListener(this);
+    }
+
+    @NotNull
+    @Override
+    public SshConnection connect(@NotNull AgentRunningBuild runningBuild, @NotNull Connection connection, @NotNull List<SshTunnel> forwards,
+                                 @NotNull BuildProgressLogger buildLogger, @Nullable HandshakeTiming handshakeTiming) throws IOException {
+        TeamCitySshKey sshKey = agentRunningBuildSshKeyManager.getKey(connection.getSshKey());
+        if (sshKey == null) {
+            throw new RuntimeException(String.format("SSH Key '%s' not found", connection.getSshKey()));
+        }
+        List<Object> poolKey = asList(ClientSession.class, connection, SshConnectionPool.getKeyFingerprint(sshKey.getPrivateKey()));
+        PooledSession pooledSession = sshConnectionPool.take(poolKey, PooledSession.class);
+        ClientSession session;
+        if (pooledSession == null) {
+            session = openSession(connection, sshKeyAgent.getKeyPairs(runningBuild, connection), SshEngine.getConnectTimeout(forwards),
+                    SshEngine.getConfigParameter(runningBuild, SSH_KEEP_ALIVE_INTERVAL_CONFIGURATION_PARAMETER_NAME, 0),
+                    SshEngine.getConfigParameter(runningBuild, SSH_KEEP_ALIVE_COUNT_MAX_CONFIGURATION_PARAMETER_NAME, ExecutableSshEngine.DEFAULT_KEEP_ALIVE_COUNT_MAX),
+                    buildLogger, handshakeTiming);
+        } else {
+            buildLogger.progressMessage("Reusing pooled SSH session");
+            session = pooledSession.session;
+        }
+        try {
+            List<SshdSocketAddress> boundAddresses = new ArrayList<>();
+            for (SshTunnel forward : forwards) {
+                boundAddresses.add(session.startLocalPortForwarding(
+                        toSshdSocketAddress(forward.getLocalPart()),
+                        toSshdSocketAddress(forward.getRemotePart())));
+            }
+            return new EmbeddedSshConnection(session, boundAddresses,
+                    releasedSession -> sshConnectionPool.offer(poolKey,
+                            asList(connection.getUser(), connection.getHost(), connection.getPort()),
+                            new PooledSession(releasedSession)),
+                    SshEngine.getTerminationGracePeriod(runningBuild));
+        } catch (IOException | RuntimeException e) {
+            session.close(true);
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void agentShutdown() {
+        synchronized (prewarmedSessions) {
+            prewarmedSessions.values().forEach(session -> session.close(true));
+            prewarmedSessions.clear();
+        }
+        if (sshClient != null) {
+            sshClient.stop();
+            sshClient = null;
+        }
+    }
+
+    /**
+     * Closes the prewarmed sessions that are not for one of the given targets anymore
+     * and those the server already closed, e.g. after its login grace time.
+     *
+     * @param targets the user, host, and port combinations that will still be connected to soon
+     */
+    public void retainPrewarmed(@NotNull Collection<List<String>> targets) {
+        List<ClientSession> obsoleteSessions = new ArrayList<>();
+        synchronized (prewarmedSessions) {
+            for (Iterator<Map.Entry<List<String>, ClientSession>> iterator = prewarmedSessions.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<List<String>, ClientSession> prewarmedSession = iterator.next();
+                if (!targets.contains(prewarmedSession.getKey()) || !prewarmedSession.getValue().isOpen()) {
+                    iterator.remove();
+                    obsoleteSessions.add(prewarmedSession.getValue());
+                }
+            }
+        }
+        obsoleteSessions.forEach(session -> session.close(true));
+    }
+
+    /**
+     * Opens sessions that did the key exchange including the host key verification for the given targets
+     * that do not have a prewarmed session yet.
+     * Authentication needs the SSH key, which is only available within a build,
+     * so a build connecting to one of the targets only needs to authenticate.
+     * Sessions are never reopened here, as each unauthenticated session counts against
+     * the {@code MaxStartups} limit of the server until its login grace time is over.
+     *
+     * @param targets     the user, host, and port combinations that will be connected to soon
+     * @param maxSessions the maximum amount of sessions to keep open
+     */
+    public void prewarm(@NotNull Collection<List<String>> targets, int maxSessions) {
+        List<List<String>> missingTargets;
+        synchronized (prewarmedSessions) {
+            missingTargets = targets.stream()
+                    .distinct()
+                    .filter(target -> !prewarmedSessions.containsKey(target))
+                    .limit(max(0, maxSessions - prewarmedSessions.size()))
+                    .collect(toList());
+        }
+
+        for (List<String> target : missingTargets) {
+            try {
+                ClientSession session = getSshClient()
+                        .connect(target.get(0), target.get(1), parseInt(target.get(2)))
+                        .verify(PREWARM_TIMEOUT, SECONDS)
+                        .getSession();
+                Set<ClientSessionEvent> sessionState = session.waitFor(EnumSet.of(WAIT_AUTH, CLOSED), SECONDS.toMillis(PREWARM_TIMEOUT));
+                synchronized (prewarmedSessions) {
+                    if (sessionState.contains(WAIT_AUTH) && !sessionState.contains(CLOSED)
+                            && (prewarmedSessions.size() < maxSessions) && !prewarmedSessions.containsKey(target)) {
+                        prewarmedSessions.put(target, session);
+                        continue;
+                    }
+                }
+                session.close(true);
+            } catch (IOException | RuntimeException e) {
+                LOG.debug("Could not prewarm SSH session for {}", target, e);
+            }
+        }
+    }
+
+    private ClientSession openSession(@NotNull Connection connection, @NotNull Iterable<KeyPair> keyPairs, long timeout,
+                                      int keepAliveInterval, int keepAliveCountMax,
+                                      @NotNull BuildProgressLogger buildLogger,
+                                      @Nullable HandshakeTiming handshakeTiming) throws IOException {
+        ClientSession session;
+        synchronized (prewarmedSessions) {
+            session = prewarmedSessions.remove(asList(connection.getUser(), connection.getHost(), connection.getPort()));
+        }
+        if ((session != null) && session.isOpen()) {
+            buildLogger.progressMessage("Using prewarmed SSH session");
+        } else {
+            AttributeRepository context = null;
+            if (handshakeTiming != null) {
+                // the resolved address is cached, so the lookup of the client itself is immediate afterwards
+                InetAddress.getAllByName(connection.getHost());
+                handshakeTiming.phaseEnded(DNS);
+                context = AttributeRepository.ofKeyValuePair(HANDSHAKE_TIMING, handshakeTiming);
+            }
+            session = getSshClient()
+                    .connect(connection.getUser(), connection.getHost(), parseInt(connection.getPort()), context)
+                    .verify(timeout, SECONDS)
+                    .getSession();
+        }
+        try {
+            if (keepAliveInterval > 0) {
+                // like ServerAliveInterval and ServerAliveCountMax of the ssh executable,
+                // the session is closed if the server does not answer for the given number of intervals
+                HEARTBEAT_INTERVAL.set(session, Duration.ofSeconds(keepAliveInterval));
+                HEARTBEAT_REPLY_WAIT.set(session, Duration.ofSeconds((long) keepAliveInterval * max(1, keepAliveCountMax)));
+            }
+            keyPairs.forEach(session::addPublicKeyIdentity);
+            session.auth().verify(timeout, SECONDS);
+            if (handshakeTiming != null) {
+                // a prewarmed session was not connected with the handshake timing
+                handshakeTiming.phaseEnded(AUTHENTICATION);
+            }
+            return session;
+        } catch (IOException | RuntimeException e) {
+            session.close(true);
+            throw e;
+        }
+    }
+
+    private synchronized SshClient getSshClient() {
+        if (sshClient == null) {
+            sshClient = SshClient.setUpDefaultClient();
+            // like the ssh executable in batch mode, only accept hosts that are present in the known hosts file
+            ServerKeyVerifier knownHostsVerifier = new DefaultKnownHostsServerKeyVerifier(RejectAllServerKeyVerifier.INSTANCE, true);
+            sshClient.setServerKeyVerifier((session, remoteAddress, serverKey) -> {
+                phaseEnded(session, KEY_EXCHANGE);
+                boolean verified = knownHostsVerifier.verifyServerKey(session, remoteAddress, serverKey);
+                if (verified) {
+                    phaseEnded(session, HOST_KEY_VERIFICATION);
+                }
+                return verified;
+            });
+            sshClient.addSessionListener(new SessionListener() {
+                @Override
+                public void sessionCreated(Session session) {
+                    phaseEnded(session, TCP_CONNECT);
+                }
+
+                @Override
+                public void sessionEvent(Session session, Event event) {
+                    if (event == Event.Authenticated) {
+                        phaseEnded(session, AUTHENTICATION);
+                    }
+                }
+            });
+            sshClient.start();
+        }
+        return sshClient;
+    }
+
+    /**
+     * Records the end of the given phase in the handshake timing the given session was connected with, if any.
+     */
+    private static void phaseEnded(@NotNull Session session, @NotNull HandshakeTiming.Phase phase) {
+        AttributeRepository context = (session instanceof ClientSession) ? ((ClientSession) session).getConnectionContext() : null;
+        HandshakeTiming handshakeTiming = (context == null) ? null : context.getAttribute(HANDSHAKE_TIMING);
+        if (handshakeTiming != null) {
+            handshakeTiming.phaseEnded(phase);
+        }
+    }
+
+    private static SshdSocketAddress toSshdSocketAddress(@NotNull Part part) {
+        if (!(part instanceof AddressPortPart)) {
+            throw new RuntimeException(String.format("Forwarding '%s' is not supported by the embedded SSH engine", part));
+        }
+        AddressPortPart addressPortPart = (AddressPortPart) part;
+        return new SshdSocketAddress(addressPortPart.getAddress(), addressPortPart.getPort());
+    }
+
+    private static class PooledSession implements PooledCarrier {
+        private final ClientSession session;
+
+        public PooledSession(@NotNull ClientSession session) {
+            this.session = session;
+        }
+
+        @Override
+        public boolean isAlive() {
+            return session.isOpen();
+        }
+
+        @Override
+        public void evict() {
+            session.close(true);
+        }
+    }
+}
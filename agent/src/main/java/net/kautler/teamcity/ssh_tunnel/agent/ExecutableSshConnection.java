@@ -0,0 +1,256 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import jetbrains.buildServer.agent.BuildProgressLogger;
+import jetbrains.buildServer.log.Loggers;
+import net.kautler.teamcity.ssh_tunnel.agent.TunnelWorkspace.CredentialFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.Thread.currentThread;
+import static java.nio.charset.Charset.defaultCharset;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static jetbrains.buildServer.util.StringUtil.isEmptyOrSpaces;
+
+public class ExecutableSshConnection implements SshConnection {
+    private static final Logger LOG = LoggerFactory.getLogger(Loggers.AGENT_CATEGORY + '.' + ExecutableSshConnection.class.getName());
+    private static final long PUMP_JOIN_TIMEOUT = 5_000;
+
+    @NotNull
+    private final Process process;
+
+    @NotNull
+    private final List<CredentialFile> credentialFiles;
+
+    @NotNull
+    private final SshDiagnostics diagnostics;
+
+    private final long gracePeriod;
+
+    private final boolean debugOutput;
+
+    @Nullable
+    private volatile HandshakeTiming handshakeTiming;
+
+    @NotNull
+    private final Thread stdoutPump;
+
+    @NotNull
+    private final Thread stderrPump;
+
+    @Nullable
+    private volatile BuildProgressLogger outputLogger;
+
+    private final List<Runnable> endListeners = new ArrayList<>();
+    private boolean ended;
+
+    /**
+     * Creates a connection for the given process and starts forwarding its output while it runs.
+     *
+     * @param process         the ssh process
+     * @param credentialFiles the key and askpass files of the process
+     * @param outputLogger    the logger to forward the output of the process to, or {@code null} for the agent log
+     * @param diagnostics     the diagnostics to record the output of the process in
+     * @param gracePeriod     the time in milliseconds the process gets to end on termination before it is killed
+     * @param handshakeTiming the timing to record the handshake phases in from the debug output of the process,
+     *                        or {@code null} if the process does not produce debug output
+     */
+    public ExecutableSshConnection(@NotNull Process process, @NotNull List<CredentialFile> credentialFiles,
+                                   @Nullable BuildProgressLogger outputLogger, @NotNull SshDiagnostics diagnostics,
+                                   long gracePeriod, @Nullable HandshakeTiming handshakeTiming) {
+        this.process = process;
+        this.credentialFiles = credentialFiles;
+        this.outputLogger = outputLogger;
+        this.diagnostics = diagnostics;
+        this.gracePeriod = gracePeriod;
+        this.handshakeTiming = handshakeTiming;
+        debugOutput = handshakeTiming != null;
+        stdoutPump = startPump(process.getInputStream(), "stdout", false, this::awaitEnd);
+        stderrPump = startPump(process.getErrorStream(), "stderr", true, () -> {
+        });
+    }
+
+    @Override
+    public boolean isAlive() {
+        return process.isAlive();
+    }
+
+    @Override
+    public boolean stopAccepting() {
+        // without a control socket the listeners of a running ssh process cannot be closed
+        return false;
+    }
+
+    @Override
+    public boolean terminate(@NotNull BuildProgressLogger buildLogger) throws IOException {
+        try {
+            boolean result = true;
+            Integer exitValue = null;
+            if (process.isAlive()) {
+                // ask ssh to end first, so that it closes its channels and the server does not keep half-open sessions
+                process.destroy();
+                try {
+                    if (!process.waitFor(gracePeriod, MILLISECONDS)) {
+                        buildLogger.warning(String.format("ssh did not end within %d ms, killing it", gracePeriod));
+                        process.destroyForcibly().waitFor();
+                    }
+                } catch (InterruptedException ie) {
+                    process.destroyForcibly();
+                    currentThread().interrupt();
+                }
+            } else {
+                exitValue = process.exitValue();
+                result = exitValue == 0;
+            }
+            // let the pumps process the remaining output before the outcome
+            try {
+                stdoutPump.join(PUMP_JOIN_TIMEOUT);
+                stderrPump.join(PUMP_JOIN_TIMEOUT);
+            } catch (InterruptedException ie) {
+                currentThread().interrupt();
+            }
+            diagnostics.report(buildLogger);
+            if (exitValue != null) {
+                buildLogger.progressMessage("exit code: " + exitValue);
+            }
+            return result;
+        } finally {
+            deleteCredentials();
+        }
+    }
+
+    @Override
+    public void addEndListener(@NotNull Runnable listener) {
+        synchronized (endListeners) {
+            if (!ended) {
+                endListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    @Override
+    public boolean isFailurePermanent() {
+        return diagnostics.indicatesPermanentProblem();
+    }
+
+    @Nullable
+    @Override
+    public String getProcessId() {
+        return SshProcessJournal.getPid(process);
+    }
+
+    /**
+     * Sets the logger the output of the process is forwarded to from now on.
+     *
+     * @param outputLogger the logger to forward the output to, or {@code null} for the agent log
+     */
+    public void setOutputLogger(@Nullable BuildProgressLogger outputLogger) {
+        this.outputLogger = outputLogger;
+    }
+
+    /**
+     * Releases the key and askpass files, which are not necessary anymore once the connection is authenticated.
+     */
+    public void deleteCredentials() {
+        credentialFiles.forEach(CredentialFile::release);
+    }
+
+    /**
+     * Destroys the process without logging its outcome.
+     */
+    public void destroy() {
+        process.destroyForcibly();
+        deleteCredentials();
+    }
+
+    private Thread startPump(@NotNull InputStream stream, @NotNull String streamName, boolean warning,
+                             @NotNull Runnable afterEndOfStream) {
+        Thread pump = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, defaultCharset()))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    if (isEmptyOrSpaces(line)) {
+                        continue;
+                    }
+                    // the debug output is only requested for the handshake timing and would flood the log
+                    if (debugOutput && line.startsWith("debug")) {
+                        // the timing is only needed until the handshake is complete, as a process like a master
+                        // of connection multiplexing keeps producing debug output for as long as it runs
+                        HandshakeTiming currentHandshakeTiming = handshakeTiming;
+                        if ((currentHandshakeTiming != null) && currentHandshakeTiming.record(line)) {
+                            handshakeTiming = null;
+                        }
+                        continue;
+                    }
+                    diagnostics.record(line, warning);
+                    if (!diagnostics.isCapturingTail()) {
+                        log(streamName + ": " + line, warning);
+                    }
+                }
+            } catch (IOException ioe) {
+                LOG.debug("Exception while reading {} of ssh process", streamName, ioe);
+            }
+            afterEndOfStream.run();
+        }, "SSH Tunnel " + streamName + " Pump");
+        pump.setDaemon(true);
+        pump.start();
+        return pump;
+    }
+
+    private void awaitEnd() {
+        // the end of stdout usually means the end of the process, so this does not hold the thread much longer
+        try {
+            process.waitFor();
+        } catch (InterruptedException ie) {
+            currentThread().interrupt();
+            return;
+        }
+        List<Runnable> listeners;
+        synchronized (endListeners) {
+            ended = true;
+            listeners = new ArrayList<>(endListeners);
+            endListeners.clear();
+        }
+        listeners.forEach(Runnable::run);
+    }
+
+    private void log(@NotNull String message, boolean warning) {
+        BuildProgressLogger logger = outputLogger;
+        if (logger == null) {
+            if (warning) {
+                LOG.warn(message);
+            } else {
+                LOG.info(message);
+            }
+        } else if (warning) {
+            logger.warning(message);
+        } else {
+            logger.progressMessage(message);
+        }
+    }
+}
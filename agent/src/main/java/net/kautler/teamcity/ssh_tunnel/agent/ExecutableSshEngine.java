@@ -0,0 +1,342 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.BuildProgressLogger;
+import jetbrains.buildServer.agent.ssh.AgentRunningBuildSshKeyManager;
+import jetbrains.buildServer.ssh.TeamCitySshKey;
+import net.kautler.teamcity.ssh_tunnel.agent.SshKeyAgent.SshAgentIdentity;
+import net.kautler.teamcity.ssh_tunnel.agent.TunnelWorkspace.CredentialFile;
+import net.kautler.teamcity.ssh_tunnel.common.model.AddressPortPart;
+import net.kautler.teamcity.ssh_tunnel.common.model.Connection;
+import net.kautler.teamcity.ssh_tunnel.common.model.Part;
+import net.kautler.teamcity.ssh_tunnel.common.model.SocketPart;
+import net.kautler.teamcity.ssh_tunnel.common.model.SshTunnel;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeoutException;
+
+import static com.intellij.openapi.util.text.StringUtil.isNotEmpty;
+import static java.lang.Boolean.FALSE;
+import static java.lang.Boolean.parseBoolean;
+import static java.lang.Math.min;
+import static java.lang.Thread.currentThread;
+import static java.net.InetAddress.getLoopbackAddress;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_AGENT_LISTENER_CONFIGURATION_PARAMETER_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_EXECUTABLE_CONFIGURATION_PARAMETER_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_KEEP_ALIVE_COUNT_MAX_CONFIGURATION_PARAMETER_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_KEEP_ALIVE_INTERVAL_CONFIGURATION_PARAMETER_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_MULTIPLEXING_CONFIGURATION_PARAMETER_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_OUTPUT_TAIL_SIZE_CONFIGURATION_PARAMETER_NAME;
+
+public class ExecutableSshEngine implements SshEngine {
+    static final int DEFAULT_KEEP_ALIVE_COUNT_MAX = 3;
+    private static final String PROJECT_ID_PARAMETER_NAME = "teamcity.project.id";
+
+    @NotNull
+    private final AgentRunningBuildSshKeyManager agentRunningBuildSshKeyManager;
+
+    @NotNull
+    private final SshTunnelBroker sshTunnelBroker;
+
+    @NotNull
+    private final SshProcessJournal sshProcessJournal;
+
+    @NotNull
+    private final AgentForwardListeners agentForwardListeners;
+
+    @NotNull
+    private final RelayEventLoops relayEventLoops;
+
+    @NotNull
+    private final SshKeyAgent sshKeyAgent;
+
+    @NotNull
+    private final TunnelWorkspace tunnelWorkspace;
+
+    private final ConcurrentMap<List<Object>, ControlMaster> controlMasters = new ConcurrentHashMap<>();
+
+    public ExecutableSshEngine(@NotNull AgentRunningBuildSshKeyManager agentRunningBuildSshKeyManager,
+                               @NotNull SshTunnelBroker sshTunnelBroker,
+                               @NotNull SshProcessJournal sshProcessJournal,
+                               @NotNull AgentForwardListeners agentForwardListeners,
+                               @NotNull RelayEventLoops relayEventLoops,
+                               @NotNull SshKeyAgent sshKeyAgent,
+                               @NotNull TunnelWorkspace tunnelWorkspace) {
+        this.agentRunningBuildSshKeyManager = agentRunningBuildSshKeyManager;
+        this.sshTunnelBroker = sshTunnelBroker;
+        this.sshProcessJournal = sshProcessJournal;
+        this.agentForwardListeners = agentForwardListeners;
+        this.relayEventLoops = relayEventLoops;
+        this.sshKeyAgent = sshKeyAgent;
+        this.tunnelWorkspace = tunnelWorkspace;
+    }
+
+    @NotNull
+    @Override
+    public SshConnection connect(@NotNull AgentRunningBuild runningBuild, @NotNull Connection connection, @NotNull List<SshTunnel> forwards,
+                                 @NotNull BuildProgressLogger buildLogger, @Nullable HandshakeTiming handshakeTiming) throws IOException {
+        File buildTempDirectory = runningBuild.getBuildTempDirectory();
+        // forwards with a listener of the agent are forwarded from an internal loopback port the agent relays to
+        Map<SshTunnel, SshTunnel> upstreamForwards = new HashMap<>();
+        List<String> forwardOptions = new ArrayList<>();
+        for (SshTunnel forward : forwards) {
+            SshTunnel upstreamForward = forward;
+            if (agentForwardListeners.get(runningBuild, forward) != null) {
+                upstreamForward = new SshTunnel(forward.getName(), forward.getConnection(),
+                        new AddressPortPart(getLoopbackAddress().getHostAddress(), String.valueOf(getFreeLoopbackPort())),
+                        forward.getRemotePart(), forward.getEstablishTimeout(),
+                        forward.getEstablishAttempts(), forward.getEstablishDeadline());
+                upstreamForwards.put(forward, upstreamForward);
+            }
+            forwardOptions.add("-L");
+            forwardOptions.add(toForwardSpecification(upstreamForward, buildTempDirectory));
+        }
+        boolean clientListens = upstreamForwards.size() < forwards.size();
+        if (!isMultiplexing(runningBuild)) {
+            // without this option the SSH client stays connected if it cannot listen on a forward,
+            // masters do not need it, as a failed forward fails the control command adding it
+            List<String> options = new ArrayList<>();
+            options.add("-o");
+            options.add("ExitOnForwardFailure=yes");
+            options.addAll(forwardOptions);
+            return relay(runningBuild, upstreamForwards, clientListens, start(runningBuild, connection, options, buildLogger, true, handshakeTiming), buildLogger);
+        }
+
+        // connections that only differ in properties the master does not care about share one master
+        String keyFingerprint = SshConnectionPool.getKeyFingerprint(getSshKey(connection).getPrivateKey());
+        String sshExecutable = runningBuild.getSharedConfigParameters().get(SSH_EXECUTABLE_CONFIGURATION_PARAMETER_NAME);
+        File brokerDirectory = sshTunnelBroker.getBrokerDirectory();
+        if (brokerDirectory != null) {
+            // the path of unix domain sockets is severely limited in length, so use a shortened hash as name,
+            // masters are only shared within a project, so that a master is never used with a key the build has not got
+            String targetId = SshConnectionPool.getKeyFingerprint(String.join("\n",
+                    runningBuild.getSharedConfigParameters().get(PROJECT_ID_PARAMETER_NAME),
+                    connection.getUser(), connection.getHost(), connection.getPort(), keyFingerprint).getBytes(UTF_8))
+                    .substring(0, 16);
+            SshConnection brokeredConnection = sshTunnelBroker.connect(brokerDirectory, targetId, sshExecutable, connection.getHost(),
+                    // the master serves the other agents on the host, so it must not be ended when this agent restarts,
+                    // and it is not started with debug output for the handshake timing, as it outlives this build
+                    masterOptions -> start(runningBuild, connection, masterOptions, runningBuild.getBuildLogger(), false, null),
+                    forwardOptions, SshEngine.getConnectTimeout(forwards), buildLogger);
+            return relay(runningBuild, upstreamForwards, clientListens, brokeredConnection, buildLogger);
+        }
+        List<Object> controlMasterKey = asList(runningBuild, connection.getUser(), connection.getHost(), connection.getPort(),
+                connection.getSshKey(), keyFingerprint);
+        while (true) {
+            ControlMaster controlMaster = controlMasters.computeIfAbsent(controlMasterKey, key ->
+                    new ControlMaster(sshExecutable, connection.getHost(),
+                            releasedControlMaster -> controlMasters.values().remove(releasedControlMaster)));
+            // the master is shared by the connections of the build, so its output goes to the main build log
+            if (!controlMaster.acquire(masterOptions -> start(runningBuild, connection, masterOptions, runningBuild.getBuildLogger(), true, handshakeTiming),
+                    SshEngine.getConnectTimeout(forwards), buildLogger)) {
+                controlMasters.remove(controlMasterKey, controlMaster);
+                continue;
+            }
+            try {
+                controlMaster.addForwards(forwardOptions);
+            } catch (IOException | RuntimeException e) {
+                controlMaster.release(buildLogger);
+                throw e;
+            }
+            return relay(runningBuild, upstreamForwards, clientListens, new MultiplexedSshConnection(controlMaster, forwardOptions), buildLogger);
+        }
+    }
+
+    /**
+     * Returns whether the forwards of the given build are relayed from listeners of the agent.
+     *
+     * @param runningBuild the build to check
+     * @return whether listeners of the agent are used
+     */
+    public boolean isAgentListenerSupported(@NotNull AgentRunningBuild runningBuild) {
+        return parseBoolean(runningBuild.getSharedConfigParameters().get(SSH_AGENT_LISTENER_CONFIGURATION_PARAMETER_NAME));
+    }
+
+    private static boolean isMultiplexing(@NotNull AgentRunningBuild runningBuild) {
+        // OpenSSH for Windows does not support connection multiplexing
+        return parseBoolean(runningBuild.getSharedConfigParameters().get(SSH_MULTIPLEXING_CONFIGURATION_PARAMETER_NAME))
+                && !runningBuild.getAgentConfiguration().getSystemInfo().isWindows();
+    }
+
+    /**
+     * Starts relaying the listeners of the agent to the internal forwards of the given carrier
+     * as soon as the carrier accepts connections on them.
+     */
+    @NotNull
+    private SshConnection relay(@NotNull AgentRunningBuild runningBuild, @NotNull Map<SshTunnel, SshTunnel> upstreamForwards,
+                                boolean clientListens, @NotNull SshConnection carrier,
+                                @NotNull BuildProgressLogger buildLogger) throws IOException {
+        if (upstreamForwards.isEmpty()) {
+            return carrier;
+        }
+        List<ForwardRelay> relays = new ArrayList<>();
+        try {
+            if (!new TunnelReadinessProbe(upstreamForwards.values(), runningBuild.getBuildTempDirectory()).awaitReadiness(carrier::isAlive)) {
+                String message = "SSH connection ended before the internal forwards accepted connections";
+                throw carrier.isFailurePermanent() ? new PermanentSshException(message) : new IOException(message);
+            }
+            verifyListenerOwnership(upstreamForwards.values(), carrier);
+            for (Map.Entry<SshTunnel, SshTunnel> entry : upstreamForwards.entrySet()) {
+                AddressPortPart upstreamPart = (AddressPortPart) entry.getValue().getLocalPart();
+                relays.add(new ForwardRelay(agentForwardListeners.get(runningBuild, entry.getKey()),
+                        new InetSocketAddress(upstreamPart.getAddress(), upstreamPart.getPort()), relayEventLoops,
+                        agentForwardListeners.getStatistics(runningBuild, entry.getKey())));
+            }
+            return new RelayingSshConnection(carrier, relays, clientListens);
+        } catch (InterruptedException ie) {
+            currentThread().interrupt();
+            carrier.terminate(buildLogger);
+            throw new InterruptedIOException("Interrupted while waiting for the internal forwards");
+        } catch (TimeoutException te) {
+            carrier.terminate(buildLogger);
+            throw new IOException(te.getMessage(), te);
+        } catch (IOException | RuntimeException e) {
+            relays.forEach(ForwardRelay::close);
+            carrier.terminate(buildLogger);
+            throw e;
+        }
+    }
+
+    /**
+     * Makes sure the internal forwards are listened on by the SSH client and not by another process
+     * that took the port between choosing and binding it. Where the owner of the listeners cannot
+     * be determined, only the SSH client exiting on a failed forward protects against this.
+     */
+    private static void verifyListenerOwnership(@NotNull Collection<SshTunnel> upstreamForwards,
+                                                @NotNull SshConnection carrier) throws IOException {
+        String processId = carrier.getProcessId();
+        if (processId == null) {
+            return;
+        }
+        for (SshTunnel upstreamForward : upstreamForwards) {
+            int port = ((AddressPortPart) upstreamForward.getLocalPart()).getPort();
+            if (FALSE.equals(ListenerOwnership.isListenedBy(port, processId))) {
+                throw new IOException("Internal forward port " + port + " is not listened on by the SSH client");
+            }
+        }
+    }
+
+    private static int getFreeLoopbackPort() throws IOException {
+        // another process can take the port before the SSH client listens on it, then the SSH client exits
+        // or adding the forward to the master fails, and the connection is established again with another port
+        try (ServerSocket serverSocket = new ServerSocket(0, 0, getLoopbackAddress())) {
+            return serverSocket.getLocalPort();
+        }
+    }
+
+    private ExecutableSshConnection start(@NotNull AgentRunningBuild runningBuild, @NotNull Connection connection,
+                                          @NotNull List<String> options, @NotNull BuildProgressLogger outputLogger,
+                                          boolean journaled, @Nullable HandshakeTiming handshakeTiming) throws IOException {
+        List<CredentialFile> credentialFiles = new ArrayList<>();
+        try {
+            List<String> command = new ArrayList<>();
+            command.add(runningBuild.getSharedConfigParameters().get(SSH_EXECUTABLE_CONFIGURATION_PARAMETER_NAME));
+            command.add("-N");
+            if (handshakeTiming != null) {
+                // the debug output tells when the phases of the handshake ended
+                command.add("-v");
+            }
+            int keepAliveInterval = SshEngine.getConfigParameter(runningBuild, SSH_KEEP_ALIVE_INTERVAL_CONFIGURATION_PARAMETER_NAME, 0);
+            if (keepAliveInterval > 0) {
+                command.add("-o");
+                command.add("ServerAliveInterval=" + keepAliveInterval);
+                command.add("-o");
+                command.add("ServerAliveCountMax=" + SshEngine.getConfigParameter(runningBuild, SSH_KEEP_ALIVE_COUNT_MAX_CONFIGURATION_PARAMETER_NAME, DEFAULT_KEEP_ALIVE_COUNT_MAX));
+            }
+            command.addAll(options);
+            command.add("-p");
+            command.add(connection.getPort());
+            command.add("-l");
+            command.add(connection.getUser());
+            command.add("-i");
+            File workingDirectory = tunnelWorkspace.getDirectory(runningBuild);
+            SshAgentIdentity sshAgentIdentity = sshKeyAgent.addToSshAgent(runningBuild, connection);
+            if (sshAgentIdentity != null) {
+                // only the key of this connection is offered, not the keys of other builds held by the ssh-agent
+                command.add(sshAgentIdentity.getPublicKeyFile().getPath());
+                command.add("-o");
+                command.add("IdentitiesOnly=yes");
+            } else {
+                CredentialFile sshKeyFile = tunnelWorkspace.acquireKeyFile(runningBuild, getSshKey(connection));
+                credentialFiles.add(sshKeyFile);
+                command.add(sshKeyFile.getFile().getName());
+            }
+            command.add(connection.getHost());
+
+            ProcessBuilder processBuilder = new ProcessBuilder(command).directory(workingDirectory);
+
+            if (sshAgentIdentity != null) {
+                processBuilder.environment().put("SSH_AUTH_SOCK", sshAgentIdentity.getAuthSocket().getPath());
+            } else if (isNotEmpty(connection.getSshKeyPassphrase())) {
+                CredentialFile askPassFile = tunnelWorkspace.acquireAskPassFile(runningBuild, connection.getSshKeyPassphrase());
+                credentialFiles.add(askPassFile);
+                processBuilder.environment().put("SSH_ASKPASS", "./" + askPassFile.getFile().getName());
+            }
+
+            Process process = processBuilder.start();
+            ExecutableSshConnection sshConnection = new ExecutableSshConnection(process, credentialFiles, outputLogger, new SshDiagnostics(
+                    min(SshEngine.getConfigParameter(runningBuild, SSH_OUTPUT_TAIL_SIZE_CONFIGURATION_PARAMETER_NAME, 0), Integer.MAX_VALUE / 1024) * 1024),
+                    SshEngine.getTerminationGracePeriod(runningBuild), handshakeTiming);
+            if (journaled) {
+                sshProcessJournal.record(process, sshConnection, credentialFiles);
+            }
+            return sshConnection;
+        } catch (IOException | RuntimeException e) {
+            credentialFiles.forEach(CredentialFile::release);
+            throw e;
+        }
+    }
+
+    @NotNull
+    private TeamCitySshKey getSshKey(@NotNull Connection connection) {
+        TeamCitySshKey sshKey = agentRunningBuildSshKeyManager.getKey(connection.getSshKey());
+        if (sshKey == null) {
+            throw new RuntimeException(String.format("SSH Key '%s' not found", connection.getSshKey()));
+        }
+        return sshKey;
+    }
+
+    private static String toForwardSpecification(@NotNull SshTunnel forward, @NotNull File workingDirectory) {
+        Part localPart = forward.getLocalPart();
+        // the SSH client runs in the tunnel workspace directory, not in the build temp directory
+        // that relative local sockets refer to, so they must not be resolved against its working directory
+        if (localPart instanceof SocketPart) {
+            File localSocket = new File(((SocketPart) localPart).getSocket());
+            if (!localSocket.isAbsolute()) {
+                localPart = new SocketPart(new File(workingDirectory, localSocket.getPath()).getPath());
+            }
+        }
+        return String.format("%#s:%#s", localPart, forward.getRemotePart());
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import net.kautler.teamcity.ssh_tunnel.common.model.AddressPortPart;
+import net.kautler.teamcity.ssh_tunnel.common.model.Part;
+import net.kautler.teamcity.ssh_tunnel.common.model.SocketPart;
+import net.kautler.teamcity.ssh_tunnel.common.model.SshTunnel;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static java.lang.Integer.parseInt;
+
+/**
+ * Counts the connections that are currently accepted by the local parts of forwards,
+ * by looking at the socket tables of the kernel. This is only supported on Linux.
+ */
+public class ForwardConnectionCounter {
+    private static final Path PROC_NET = Paths.get("/proc/net");
+    private static final String TCP_ESTABLISHED = "01";
+    private static final String UNIX_CONNECTED = "03";
+
+    private final Set<Integer> ports = new HashSet<>();
+    private final Set<String> sockets = new HashSet<>();
+
+    /**
+     * Creates a connection counter for the given forwards.
+     *
+     * @param forwards         the forwards to count the connections of
+     * @param workingDirectory the working directory of the SSH client, relative local sockets are resolved against it
+     */
+    public ForwardConnectionCounter(@NotNull Collection<SshTunnel> forwards, @NotNull File workingDirectory) {
+        for (SshTunnel forward : forwards) {
+            Part localPart = forward.getLocalPart();
+            if (localPart instanceof AddressPortPart) {
+                ports.add(((AddressPortPart) localPart).getPort());
+            } else if (localPart instanceof SocketPart) {
+                File socket = new File(((SocketPart) localPart).getSocket());
+                if (!socket.isAbsolute()) {
+                    socket = new File(workingDirectory, socket.getPath());
+                }
+                sockets.add(socket.getAbsolutePath());
+            } else {
+                throw new AssertionError("missing case: " + localPart.getClass());
+            }
+        }
+    }
+
+    public static boolean isSupported() {
+        return Files.isReadable(PROC_NET.resolve("tcp"));
+    }
+
+    /**
+     * Returns the number of connections currently accepted by the local parts of the forwards.
+     *
+     * @return the number of accepted connections
+     * @throws IOException if the socket tables could not be read
+     */
+    public int count() throws IOException {
+        int result = 0;
+        if (!ports.isEmpty()) {
+            result += countTcpConnections("tcp") + countTcpConnections("tcp6");
+        }
+        if (!sockets.isEmpty()) {
+            result += countUnixConnections();
+        }
+        return result;
+    }
+
+    private int countTcpConnections(@NotNull String table) throws IOException {
+        Path tablePath = PROC_NET.resolve(table);
+        if (!Files.isReadable(tablePath)) {
+            return 0;
+        }
+        int result = 0;
+        // sl local_address rem_address st ..., the addresses are hexadecimal address:port pairs,
+        // accepted connections have the port of the listening socket as local port
+        List<String> lines = Files.readAllLines(tablePath);
+        for (String line : lines.subList(1, lines.size())) {
+            String[] columns = line.trim().split("\\s+");
+            if ((columns.length > 3) && TCP_ESTABLISHED.equals(columns[3])) {
+                String localAddress = columns[1];
+                int port = parseInt(localAddress.substring(localAddress.lastIndexOf(':') + 1), 16);
+                if (ports.contains(port)) {
+                    result++;
+                }
+            }
+        }
+        return result;
+    }
+
+    private int countUnixConnections() throws IOException {
+        Path tablePath = PROC_NET.resolve("unix");
+        if (!Files.isReadable(tablePath)) {
+            return 0;
+        }
+        int result = 0;
+        // Num RefCount Protocol Flags Type St Inode Path, accepted connections carry the path of the listening socket
+        List<String> lines = Files.readAllLines(tablePath);
+        for (String line : lines.subList(1, lines.size())) {
+            String[] columns = line.trim().split("\\s+", 8);
+            if ((columns.length == 8) && UNIX_CONNECTED.equals(columns[5]) && sockets.contains(columns[7])) {
+                result++;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import jetbrains.buildServer.log.Loggers;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongConsumer;
+
+import static java.lang.System.nanoTime;
+import static java.lang.Thread.currentThread;
+import static java.nio.channels.SelectionKey.OP_ACCEPT;
+import static java.nio.channels.SelectionKey.OP_CONNECT;
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Accepts connections on a listener the agent bound for a forward and relays each of them to the local port
+ * the SSH client forwards to the target, on the non-blocking event loops of the agent.
+ */
+public class ForwardRelay implements RelayEventLoops.Handler {
+    private static final Logger LOG = LoggerFactory.getLogger(Loggers.AGENT_CATEGORY + '.' + ForwardRelay.class.getName());
+    private static final long EVENT_LOOP_TIMEOUT = 5;
+
+    @NotNull
+    private final ServerSocketChannel listener;
+
+    @NotNull
+    private final InetSocketAddress upstreamAddress;
+
+    @NotNull
+    private final RelayEventLoops eventLoops;
+
+    @NotNull
+    private final ForwardStatistics statistics;
+
+    private final Set<RelayedConnection> relayedConnections = ConcurrentHashMap.newKeySet();
+    private RelayEventLoops.EventLoop acceptLoop;
+    private SelectionKey acceptKey;
+
+    /**
+     * Creates a relay for the given listener.
+     *
+     * @param listener        the listener the agent bound for the forward
+     * @param upstreamAddress the local address the SSH client forwards to the target of the forward
+     * @param eventLoops      the event loops to relay on
+     * @param statistics      the statistics of the forward to record the relayed traffic in
+     */
+    public ForwardRelay(@NotNull ServerSocketChannel listener, @NotNull InetSocketAddress upstreamAddress,
+                        @NotNull RelayEventLoops eventLoops, @NotNull ForwardStatistics statistics) {
+        this.listener = listener;
+        this.upstreamAddress = upstreamAddress;
+        this.eventLoops = eventLoops;
+        this.statistics = statistics;
+    }
+
+    public synchronized void start() throws IOException {
+        RelayEventLoops.EventLoop loop = eventLoops.next();
+        listener.configureBlocking(false);
+        CompletableFuture<Void> registration = new CompletableFuture<>();
+        loop.execute(() -> {
+            try {
+                // the listener outlives this relay if the carrier connection is reconnected,
+                // and the key of the previous relay is only removed from the selector by the next selection
+                loop.getSelector().selectNow();
+                acceptKey = listener.register(loop.getSelector(), OP_ACCEPT, this);
+                registration.complete(null);
+            } catch (IOException | RuntimeException e) {
+                registration.completeExceptionally(e);
+            }
+        });
+        await(registration);
+        acceptLoop = loop;
+    }
+
+    /**
+     * Stops accepting new connections, while the relayed connections continue to work.
+     * New connections are queued by the listener until the next relay for it is started.
+     */
+    public synchronized void stopAccepting() {
+        if (acceptLoop == null) {
+            return;
+        }
+        CompletableFuture<Void> cancellation = new CompletableFuture<>();
+        acceptLoop.execute(() -> {
+            acceptKey.cancel();
+            cancellation.complete(null);
+        });
+        acceptLoop = null;
+        try {
+            await(cancellation);
+        } catch (IOException ioe) {
+            // the event loops are shut down already
+        }
+    }
+
+    /**
+     * Stops accepting and closes the listener, so that new connections are refused, while the relayed
+     * connections continue to work. This is only done when the forward is not needed anymore.
+     */
+    public void stopListening() {
+        stopAccepting();
+        closeQuietly(listener);
+    }
+
+    /**
+     * Stops accepting new connections and cuts the relayed connections.
+     */
+    public void close() {
+        stopAccepting();
+        relayedConnections.forEach(relayedConnection -> relayedConnection.loop.execute(relayedConnection::close));
+    }
+
+    @Override
+    public void handle(@NotNull SelectionKey key) {
+        try {
+            for (SocketChannel client; (client = listener.accept()) != null; ) {
+                SocketChannel acceptedClient = client;
+                try {
+                    RelayEventLoops.EventLoop loop = eventLoops.next();
+                    loop.execute(() -> new RelayedConnection(loop, acceptedClient).open());
+                } catch (IOException ioe) {
+                    closeQuietly(acceptedClient);
+                    throw ioe;
+                }
+            }
+        } catch (IOException ioe) {
+            if (listener.isOpen()) {
+                LOG.warn("Could not accept connection to be relayed to {}", upstreamAddress, ioe);
+            }
+        }
+    }
+
+    private static void await(@NotNull CompletableFuture<Void> eventLoopTask) throws IOException {
+        try {
+            eventLoopTask.get(EVENT_LOOP_TIMEOUT, SECONDS);
+        } catch (InterruptedException ie) {
+            currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the relay event loop");
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause.getMessage(), cause);
+        } catch (TimeoutException te) {
+            throw new IOException("The relay event loop did not respond", te);
+        }
+    }
+
+    private static void closeQuietly(@NotNull AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception ignored) {
+            // nothing left to do
+        }
+    }
+
+    /**
+     * A relayed connection, all of its methods are called on the thread of its event loop.
+     */
+    private class RelayedConnection implements RelayEventLoops.Handler {
+        private final RelayEventLoops.EventLoop loop;
+        private final SocketChannel client;
+        private final long accepted = nanoTime();
+        private long connected;
+        private SocketChannel upstream;
+        private SelectionKey clientKey;
+        private SelectionKey upstreamKey;
+        private Direction clientToUpstream;
+        private Direction upstreamToClient;
+        private boolean closed;
+
+        public RelayedConnection(@NotNull RelayEventLoops.EventLoop loop, @NotNull SocketChannel client) {
+            this.loop = loop;
+            this.client = client;
+        }
+
+        public void open() {
+            relayedConnections.add(this);
+            statistics.connectionOpened();
+            try {
+                upstream = SocketChannel.open();
+                clientToUpstream = new Direction(client, upstream, statistics::addBytesSent);
+                upstreamToClient = new Direction(upstream, client, statistics::addBytesReceived);
+                for (SocketChannel channel : new SocketChannel[]{client, upstream}) {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                }
+                clientKey = client.register(loop.getSelector(), 0, this);
+                upstreamKey = upstream.register(loop.getSelector(), OP_CONNECT, this);
+                if (upstream.connect(upstreamAddress)) {
+                    connected();
+                }
+            } catch (IOException ioe) {
+                LOG.debug("Could not relay connection to {}", upstreamAddress, ioe);
+                close();
+            }
+        }
+
+        @Override
+        public void handle(@NotNull SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    if (upstream.finishConnect()) {
+                        connected();
+                    }
+                    return;
+                }
+                if (key.isWritable()) {
+                    flush((key == clientKey) ? upstreamToClient : clientToUpstream);
+                }
+                if (!closed && key.isReadable()) {
+                    read((key == clientKey) ? clientToUpstream : upstreamToClient);
+                }
+                updateInterests();
+            } catch (IOException ioe) {
+                // one of the sides went away
+                close();
+            }
+        }
+
+        private void connected() {
+            connected = nanoTime();
+            statistics.connectionSetUp(connected - accepted);
+            updateInterests();
+        }
+
+        private void read(@NotNull Direction direction) throws IOException {
+            if (direction.buffer == null) {
+                direction.buffer = loop.acquireBuffer(() -> {
+                    direction.waitingForBuffer = false;
+                    if (closed) {
+                        return false;
+                    }
+                    updateInterests();
+                    return true;
+                });
+                if (direction.buffer == null) {
+                    direction.waitingForBuffer = true;
+                    return;
+                }
+            }
+            int read = direction.source.read(direction.buffer);
+            if (read < 0) {
+                direction.ended = true;
+            } else {
+                direction.transferred += read;
+                direction.counter.accept(read);
+            }
+            flush(direction);
+        }
+
+        private void flush(@NotNull Direction direction) throws IOException {
+            if (direction.buffer != null) {
+                direction.buffer.flip();
+                direction.sink.write(direction.buffer);
+                direction.buffer.compact();
+                if (direction.buffer.position() == 0) {
+                    loop.releaseBuffer(direction.buffer);
+                    direction.buffer = null;
+                }
+            }
+            if (direction.ended && (direction.buffer == null) && !direction.sinkShutdown) {
+                // pass on the half-close, the other direction might still be transferring
+                direction.sinkShutdown = true;
+                direction.sink.shutdownOutput();
+            }
+            if (clientToUpstream.sinkShutdown && upstreamToClient.sinkShutdown) {
+                close();
+            }
+        }
+
+        private void updateInterests() {
+            if (closed) {
+                return;
+            }
+            if (connected == 0) {
+                clientKey.interestOps(0);
+                upstreamKey.interestOps(OP_CONNECT);
+                return;
+            }
+            clientKey.interestOps((clientToUpstream.canRead() ? OP_READ : 0) | (upstreamToClient.hasPending() ? OP_WRITE : 0));
+            upstreamKey.interestOps((upstreamToClient.canRead() ? OP_READ : 0) | (clientToUpstream.hasPending() ? OP_WRITE : 0));
+        }
+
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            relayedConnections.remove(this);
+            statistics.connectionClosed();
+            for (Direction direction : new Direction[]{clientToUpstream, upstreamToClient}) {
+                if ((direction != null) && (direction.buffer != null)) {
+                    loop.releaseBuffer(direction.buffer);
+                    direction.buffer = null;
+                }
+            }
+            closeQuietly(client);
+            if (upstream != null) {
+                closeQuietly(upstream);
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Relayed connection to {} for {} ms with {} ms setup latency, {} bytes sent, {} bytes received",
+                        upstreamAddress, NANOSECONDS.toMillis(nanoTime() - accepted),
+                        (connected == 0) ? -1 : NANOSECONDS.toMillis(connected - accepted),
+                        (clientToUpstream == null) ? 0 : clientToUpstream.transferred,
+                        (upstreamToClient == null) ? 0 : upstreamToClient.transferred);
+            }
+        }
+    }
+
+    private static class Direction {
+        private final SocketChannel source;
+        private final SocketChannel sink;
+        private final LongConsumer counter;
+        private ByteBuffer buffer;
+        private boolean waitingForBuffer;
+        private boolean ended;
+        private boolean sinkShutdown;
+        private long transferred;
+
+        public Direction(@NotNull SocketChannel source, @NotNull SocketChannel sink, @NotNull LongConsumer counter) {
+            this.source = source;
+            this.sink = sink;
+            this.counter = counter;
+        }
+
+        public boolean canRead() {
+            return !ended && (buffer == null) && !waitingForBuffer;
+        }
+
+        public boolean hasPending() {
+            return buffer != null;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.Math.ceil;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Collects the traffic of one forward over the whole build, across reconnects of the connection carrying it.
+ * The setup latencies are sampled into a fixed size reservoir, so that the percentiles need bounded memory
+ * no matter how many connections are relayed.
+ */
+public class ForwardStatistics {
+    private static final int LATENCY_SAMPLES = 1024;
+
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicInteger peakConnections = new AtomicInteger();
+    private final long[] latencySamples = new long[LATENCY_SAMPLES];
+    private long latencyCount;
+
+    public void connectionOpened() {
+        connections.incrementAndGet();
+        peakConnections.accumulateAndGet(activeConnections.incrementAndGet(), Math::max);
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    public synchronized void connectionSetUp(long latencyNanos) {
+        long sample = NANOSECONDS.toMicros(latencyNanos);
+        if (latencyCount < LATENCY_SAMPLES) {
+            latencySamples[(int) latencyCount] = sample;
+        } else {
+            long index = ThreadLocalRandom.current().nextLong(latencyCount + 1);
+            if (index < LATENCY_SAMPLES) {
+                latencySamples[(int) index] = sample;
+            }
+        }
+        latencyCount++;
+    }
+
+    public void addBytesSent(long bytes) {
+        bytesSent.addAndGet(bytes);
+    }
+
+    public void addBytesReceived(long bytes) {
+        bytesReceived.addAndGet(bytes);
+    }
+
+    public long getBytesTransferred() {
+        return bytesSent.get() + bytesReceived.get();
+    }
+
+    /**
+     * Returns the collected values as build statistic values with the given key prefix.
+     * The setup latencies are given in milliseconds and only if any connection was set up.
+     *
+     * @param keyPrefix the prefix for the keys of the values
+     * @return the build statistic values
+     */
+    @NotNull
+    public synchronized Map<String, Number> getStatisticValues(@NotNull String keyPrefix) {
+        Map<String, Number> result = new LinkedHashMap<>();
+        result.put(keyPrefix + "bytesSent", bytesSent.get());
+        result.put(keyPrefix + "bytesReceived", bytesReceived.get());
+        result.put(keyPrefix + "connections", connections.get());
+        result.put(keyPrefix + "peakConnections", peakConnections.get());
+        if (latencyCount > 0) {
+            long[] samples = Arrays.copyOf(latencySamples, (int) min(latencyCount, LATENCY_SAMPLES));
+            Arrays.sort(samples);
+            for (int percentile : new int[]{50, 90, 99}) {
+                int index = (int) ceil((percentile / 100.0) * samples.length) - 1;
+                result.put(keyPrefix + "setupLatency.p" + percentile, samples[max(index, 0)] / 1000.0);
+            }
+        }
+        return result;
+    }
+}
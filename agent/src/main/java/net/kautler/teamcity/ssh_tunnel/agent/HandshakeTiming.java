@@ -0,0 +1,129 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import jetbrains.buildServer.agent.BuildProgressLogger;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Collects the points in time at which the phases of the handshake of a carrier connection ended. The phases
+ * are recorded in the order they happen, phases that did not happen, like for a reused session, stay missing.
+ */
+public class HandshakeTiming {
+    private final long start = nanoTime();
+    private final Map<Phase, Long> phaseEnds = new EnumMap<>(Phase.class);
+
+    /**
+     * Records that the given phase ended now, unless it was recorded already.
+     *
+     * @param phase the phase that ended
+     */
+    public synchronized void phaseEnded(@NotNull Phase phase) {
+        phaseEnds.putIfAbsent(phase, nanoTime());
+    }
+
+    /**
+     * Records the end of the phase the given debug output line of the {@code ssh} client tool indicates, if any.
+     *
+     * @param line the debug output line
+     * @return whether the handshake is complete, so that further lines do not need to be recorded
+     */
+    public boolean record(@NotNull String line) {
+        for (Phase phase : Phase.values()) {
+            if (phase.sshDebugPattern.matcher(line).find()) {
+                phaseEnded(phase);
+                return phase == Phase.AUTHENTICATION;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the durations in milliseconds of the recorded phases, each measured from the end of the
+     * previously recorded phase or from the start of the connection.
+     *
+     * @return the durations per phase in the order of the phases
+     */
+    @NotNull
+    public synchronized Map<Phase, Long> getDurations() {
+        Map<Phase, Long> result = new LinkedHashMap<>();
+        long previousEnd = start;
+        for (Map.Entry<Phase, Long> phaseEnd : phaseEnds.entrySet()) {
+            result.put(phaseEnd.getKey(), NANOSECONDS.toMillis(phaseEnd.getValue() - previousEnd));
+            previousEnd = phaseEnd.getValue();
+        }
+        return result;
+    }
+
+    /**
+     * Logs the recorded phases as a table.
+     *
+     * @param buildLogger the logger to log to
+     */
+    public void report(@NotNull BuildProgressLogger buildLogger) {
+        Map<Phase, Long> durations = getDurations();
+        if (durations.isEmpty()) {
+            buildLogger.progressMessage("SSH handshake timing: no handshake was done, an existing session was used");
+            return;
+        }
+        StringBuilder table = new StringBuilder("SSH handshake timing:");
+        durations.forEach((phase, duration) -> table.append(String.format("%n  %-22s %6d ms", phase.description, duration)));
+        table.append(String.format("%n  %-22s %6d ms", "total", durations.values().stream().mapToLong(Long::longValue).sum()));
+        buildLogger.progressMessage(table.toString());
+    }
+
+    /**
+     * Returns the durations of the recorded phases as build statistic values with the given key prefix.
+     *
+     * @param keyPrefix the prefix for the keys of the values
+     * @return the build statistic values
+     */
+    @NotNull
+    public Map<String, Number> getStatisticValues(@NotNull String keyPrefix) {
+        Map<String, Number> result = new LinkedHashMap<>();
+        getDurations().forEach((phase, duration) -> result.put(keyPrefix + "handshake." + phase.key, duration));
+        return result;
+    }
+
+    public enum Phase {
+        // the ssh client only logs the resolved address together with the start of the TCP connect,
+        // so for it this phase also includes its own start
+        DNS("dns", "DNS lookup", "Connecting to .* port \\d+"),
+        TCP_CONNECT("tcpConnect", "TCP connect", "Connection established"),
+        KEY_EXCHANGE("keyExchange", "key exchange", "Server host key:"),
+        HOST_KEY_VERIFICATION("hostKeyVerification", "host key verification", "SSH2_MSG_NEWKEYS sent|is known and matches"),
+        AUTHENTICATION("authentication", "authentication", "Authenticated to |Authentication succeeded");
+
+        private final String key;
+        private final String description;
+        private final Pattern sshDebugPattern;
+
+        Phase(@NotNull String key, @NotNull String description, @NotNull String sshDebugPattern) {
+            this.key = key;
+            this.description = description;
+            this.sshDebugPattern = Pattern.compile(sshDebugPattern);
+        }
+    }
+}
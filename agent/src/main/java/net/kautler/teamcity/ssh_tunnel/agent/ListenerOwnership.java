@@ -0,0 +1,104 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static java.lang.Integer.parseInt;
+
+/**
+ * Tells which process listens on a TCP port, by looking at the socket tables of the kernel
+ * and the file descriptors of the process. This is only supported on Linux.
+ */
+public class ListenerOwnership {
+    private static final Path PROC = Paths.get("/proc");
+    private static final String TCP_LISTEN = "0A";
+    private static final String SOCKET_LINK_PREFIX = "socket:[";
+
+    private ListenerOwnership() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns whether the given process listens on the given TCP port.
+     *
+     * @param port      the port to check
+     * @param processId the id of the process that should listen on the port
+     * @return whether the process listens on the port or {@code null} if this cannot be determined
+     */
+    @Nullable
+    public static Boolean isListenedBy(int port, @NotNull String processId) {
+        Path fileDescriptors = PROC.resolve(processId).resolve("fd");
+        if (!Files.isReadable(PROC.resolve("net").resolve("tcp")) || !Files.isReadable(fileDescriptors)) {
+            return null;
+        }
+        try {
+            Set<String> inodes = new HashSet<>();
+            addListeningInodes("tcp", port, inodes);
+            addListeningInodes("tcp6", port, inodes);
+            if (inodes.isEmpty()) {
+                return false;
+            }
+            try (DirectoryStream<Path> fileDescriptorLinks = Files.newDirectoryStream(fileDescriptors)) {
+                for (Path fileDescriptorLink : fileDescriptorLinks) {
+                    String target;
+                    try {
+                        target = Files.readSymbolicLink(fileDescriptorLink).toString();
+                    } catch (IOException ioe) {
+                        // the file descriptor was closed meanwhile
+                        continue;
+                    }
+                    if (target.startsWith(SOCKET_LINK_PREFIX)
+                            && inodes.contains(target.substring(SOCKET_LINK_PREFIX.length(), target.length() - 1))) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    private static void addListeningInodes(@NotNull String table, int port, @NotNull Set<String> inodes) throws IOException {
+        Path tablePath = PROC.resolve("net").resolve(table);
+        if (!Files.isReadable(tablePath)) {
+            return;
+        }
+        // sl local_address rem_address st tx_queue:rx_queue tr:tm->when retrnsmt uid timeout inode ...
+        List<String> lines = Files.readAllLines(tablePath);
+        for (String line : lines.subList(1, lines.size())) {
+            String[] columns = line.trim().split("\\s+");
+            if ((columns.length > 9) && TCP_LISTEN.equals(columns[3])) {
+                String localAddress = columns[1];
+                if (parseInt(localAddress.substring(localAddress.lastIndexOf(':') + 1), 16) == port) {
+                    inodes.add(columns[9]);
+                }
+            }
+        }
+    }
+}
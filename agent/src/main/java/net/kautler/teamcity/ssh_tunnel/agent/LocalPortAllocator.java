@@ -0,0 +1,262 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.log.Loggers;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.lang.Integer.parseInt;
+import static java.lang.Thread.currentThread;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.nio.file.attribute.PosixFilePermissions.fromString;
+import static jetbrains.buildServer.util.StringUtil.isEmptyOrSpaces;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.MAX_PORT_NUMBER;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_PORTS_RANGE_CONFIGURATION_PARAMETER_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_PORTS_REGISTRY_CONFIGURATION_PARAMETER_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Util.streamToString;
+
+/**
+ * Hands out the random local ports of forwards from a configured range through a registry file that is shared
+ * by all agents on a host. A reservation lasts until the build that made it is finished, so the port cannot
+ * be taken by another agent between choosing it and the SSH client listening on it. Each line of the registry
+ * records a reserved port, the owning agent process and the build. Reservations of agent processes that are
+ * gone are reclaimed whenever ports are reserved.
+ */
+public class LocalPortAllocator {
+    private static final Logger LOG = LoggerFactory.getLogger(Loggers.AGENT_CATEGORY + '.' + LocalPortAllocator.class.getName());
+    private static final String AGENT_PID = ManagementFactory.getRuntimeMXBean().getName().split("@", 2)[0];
+    // process ids are often the same after a restart in containers, so the start time is part of the agent identity
+    private static final String AGENT_ID = AGENT_PID + '@' + ManagementFactory.getRuntimeMXBean().getStartTime();
+    private static final File DEFAULT_REGISTRY = new File(System.getProperty("java.io.tmpdir"), "teamcity-ssh-tunnel-ports");
+    private static final String REGISTRY_PERMISSIONS = "rw-rw----";
+
+    @NotNull
+    private final BuildAgentConfiguration agentConfiguration;
+
+    public LocalPortAllocator(@NotNull BuildAgentConfiguration agentConfiguration) {
+        this.agentConfiguration = agentConfiguration;
+    }
+
+    /**
+     * Reserves a free port from the configured range for the given build.
+     *
+     * @param runningBuild the build to reserve the port for
+     * @param address      the local address the port has to be free on
+     * @return the reserved port or {@code null} if no port range is configured
+     * @throws IOException if no port could be reserved
+     */
+    @Nullable
+    public Integer reserve(@NotNull AgentRunningBuild runningBuild, @NotNull String address) throws IOException {
+        int[] range = getRange();
+        if (range == null) {
+            return null;
+        }
+        InetAddress inetAddress = InetAddress.getByName(address);
+        return withRegistry(reservations -> {
+            Set<Integer> reservedPorts = new HashSet<>();
+            reservations.forEach(reservation -> reservedPorts.add(parseInt(reservation[0])));
+            // start at a random port, so that agents do not all probe the same ports first
+            int rangeSize = range[1] - range[0] + 1;
+            int offset = ThreadLocalRandom.current().nextInt(rangeSize);
+            for (int i = 0; i < rangeSize; i++) {
+                int port = range[0] + ((offset + i) % rangeSize);
+                if (!reservedPorts.contains(port) && isFree(inetAddress, port)) {
+                    reservations.add(new String[]{String.valueOf(port), AGENT_ID, String.valueOf(runningBuild.getBuildId())});
+                    return port;
+                }
+            }
+            throw new IOException(String.format("No free local port left in range %d-%d", range[0], range[1]));
+        });
+    }
+
+    /**
+     * Releases all ports reserved for the given build.
+     *
+     * @param runningBuild the build to release the ports of
+     */
+    public void release(@NotNull AgentRunningBuild runningBuild) {
+        if (getRange() == null) {
+            return;
+        }
+        String buildId = String.valueOf(runningBuild.getBuildId());
+        try {
+            withRegistry(reservations -> reservations.removeIf(
+                    reservation -> reservation[1].equals(AGENT_ID) && reservation[2].equals(buildId)));
+        } catch (IOException ioe) {
+            // the reservations are reclaimed when the next agent process is started
+            LOG.warn("Could not release local ports of build {}", buildId, ioe);
+        }
+    }
+
+    /**
+     * Returns the configured port range.
+     *
+     * @return the first and last port of the range or {@code null} if no valid range is configured
+     */
+    @Nullable
+    private int[] getRange() {
+        String range = agentConfiguration.getConfigurationParameters().get(SSH_PORTS_RANGE_CONFIGURATION_PARAMETER_NAME);
+        if (isEmptyOrSpaces(range)) {
+            return null;
+        }
+        String[] bounds = range.trim().split("\\s*-\\s*", 2);
+        try {
+            int[] result = {parseInt(bounds[0]), parseInt(bounds[bounds.length - 1])};
+            if ((result[0] > 0) && (result[0] <= result[1]) && (result[1] <= MAX_PORT_NUMBER.intValue())) {
+                return result;
+            }
+        } catch (NumberFormatException nfe) {
+            // fall through to the warning
+        }
+        LOG.warn("Invalid value '{}' for '{}', random local ports are not allocated host-wide", range, SSH_PORTS_RANGE_CONFIGURATION_PARAMETER_NAME);
+        return null;
+    }
+
+    @NotNull
+    private File getRegistry() {
+        String registry = agentConfiguration.getConfigurationParameters().get(SSH_PORTS_REGISTRY_CONFIGURATION_PARAMETER_NAME);
+        return isEmptyOrSpaces(registry) ? DEFAULT_REGISTRY : new File(registry.trim());
+    }
+
+    private static boolean isFree(@NotNull InetAddress address, int port) {
+        try {
+            new ServerSocket(port, 0, address).close();
+            return true;
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    private <T> T withRegistry(@NotNull RegistryAction<T> action) throws IOException {
+        // file locks are held by the whole process, so threads of this agent have to be serialized separately
+        synchronized (LocalPortAllocator.class) {
+            Path registry = getRegistry().toPath();
+            createRegistry(registry);
+            try (FileChannel registryChannel = FileChannel.open(registry, READ, WRITE)) {
+                FileLock lock = registryChannel.lock();
+                try {
+                    List<String[]> reservations = readReservations(registryChannel);
+                    reservations.removeIf(this::isAbandoned);
+                    T result = action.run(reservations);
+                    StringBuilder content = new StringBuilder();
+                    reservations.forEach(reservation -> content.append(String.join(" ", reservation)).append('\n'));
+                    registryChannel.truncate(0);
+                    registryChannel.write(ByteBuffer.wrap(content.toString().getBytes(UTF_8)), 0);
+                    return result;
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the registry if it does not exist yet. Agents on the host can run as different users,
+     * so the registry is made writable for the group explicitly instead of depending on the umask.
+     */
+    private static void createRegistry(@NotNull Path registry) throws IOException {
+        try {
+            Files.createFile(registry);
+        } catch (FileAlreadyExistsException faee) {
+            return;
+        }
+        if (Files.getFileStore(registry).supportsFileAttributeView(PosixFileAttributeView.class)) {
+            Files.setPosixFilePermissions(registry, fromString(REGISTRY_PERMISSIONS));
+        }
+    }
+
+    @NotNull
+    private static List<String[]> readReservations(@NotNull FileChannel registryChannel) throws IOException {
+        ByteBuffer content = ByteBuffer.allocate((int) registryChannel.size());
+        while (content.hasRemaining() && (registryChannel.read(content, content.position()) >= 0)) {
+            // the registry is small, so it is read at once
+        }
+        List<String[]> result = new ArrayList<>();
+        for (String line : new String(content.array(), 0, content.position(), UTF_8).split("\n")) {
+            String[] reservation = line.trim().split(" ");
+            if ((reservation.length == 3) && reservation[0].matches("\\d{1,5}")) {
+                result.add(reservation);
+            }
+        }
+        return result;
+    }
+
+    private boolean isAbandoned(@NotNull String[] reservation) {
+        String owner = reservation[1];
+        if (owner.equals(AGENT_ID)) {
+            return false;
+        }
+        String ownerPid = owner.split("@", 2)[0];
+        if (ownerPid.equals(AGENT_PID)) {
+            // an earlier process of this agent
+            LOG.info("Reclaiming local port {} of gone agent process {}", reservation[0], owner);
+            return true;
+        }
+        try {
+            boolean ownerAlive = isProcessAlive(ownerPid);
+            if (!ownerAlive) {
+                LOG.info("Reclaiming local port {} of gone agent process {}", reservation[0], owner);
+            }
+            return !ownerAlive;
+        } catch (InterruptedException ie) {
+            currentThread().interrupt();
+            return false;
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    private boolean isProcessAlive(@NotNull String pid) throws IOException, InterruptedException {
+        if (agentConfiguration.getSystemInfo().isWindows()) {
+            Process process = new ProcessBuilder("tasklist", "/NH", "/FO", "CSV", "/FI", "PID eq " + pid).start();
+            String output = streamToString(process.getInputStream());
+            process.waitFor();
+            return output.contains('"' + pid + '"');
+        }
+        return ProcessLiveness.isAlive(pid);
+    }
+
+    @FunctionalInterface
+    private interface RegistryAction<T> {
+        T run(List<String[]> reservations) throws IOException;
+    }
+}
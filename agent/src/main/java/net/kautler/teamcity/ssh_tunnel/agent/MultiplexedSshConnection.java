@@ -0,0 +1,80 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import jetbrains.buildServer.agent.BuildProgressLogger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.List;
+
+public class MultiplexedSshConnection implements SshConnection {
+    @NotNull
+    private final ControlMaster controlMaster;
+
+    @NotNull
+    private final List<String> forwardOptions;
+
+    private boolean forwardsCancelled;
+
+    public MultiplexedSshConnection(@NotNull ControlMaster controlMaster, @NotNull List<String> forwardOptions) {
+        this.controlMaster = controlMaster;
+        this.forwardOptions = forwardOptions;
+    }
+
+    @Override
+    public boolean isAlive() {
+        return controlMaster.isAlive();
+    }
+
+    @Override
+    public boolean stopAccepting() throws IOException {
+        // cancelling a forward only closes its listener, the channels of accepted connections stay open
+        controlMaster.cancelForwards(forwardOptions);
+        forwardsCancelled = true;
+        return true;
+    }
+
+    @Override
+    public boolean terminate(@NotNull BuildProgressLogger buildLogger) throws IOException {
+        if (!forwardsCancelled && controlMaster.isAlive()) {
+            try {
+                controlMaster.cancelForwards(forwardOptions);
+            } catch (IOException ioe) {
+                buildLogger.warning(ioe.getMessage());
+            }
+        }
+        return controlMaster.release(buildLogger);
+    }
+
+    @Override
+    public boolean isFailurePermanent() {
+        return controlMaster.isFailurePermanent();
+    }
+
+    @Nullable
+    @Override
+    public String getProcessId() {
+        return controlMaster.getProcessId();
+    }
+
+    @Override
+    public void addEndListener(@NotNull Runnable listener) {
+        controlMaster.addEndListener(listener);
+    }
+}
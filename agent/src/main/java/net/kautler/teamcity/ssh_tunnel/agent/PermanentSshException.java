@@ -0,0 +1,32 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import java.io.IOException;
+
+/**
+ * A failure to establish a connection that will not go away by retrying, like a failed authentication.
+ */
+public class PermanentSshException extends IOException {
+    public PermanentSshException(String message) {
+        super(message);
+    }
+
+    public PermanentSshException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
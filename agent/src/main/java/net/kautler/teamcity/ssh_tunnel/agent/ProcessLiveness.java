@@ -0,0 +1,63 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static net.kautler.teamcity.ssh_tunnel.common.Util.streamToString;
+
+/**
+ * Tells whether a process of the host is still running, no matter which user it belongs to. This is only supported
+ * on POSIX systems. {@code kill -0} also fails for processes of other users, so its error is checked.
+ */
+public class ProcessLiveness {
+    private static final Path PROC = Paths.get("/proc");
+
+    private ProcessLiveness() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns whether the process with the given id is running.
+     *
+     * @param pid the id of the process to check
+     * @return whether the process is running
+     * @throws IOException          if the liveness could not be determined
+     * @throws InterruptedException if interrupted while waiting for {@code kill}
+     */
+    public static boolean isAlive(@NotNull String pid) throws IOException, InterruptedException {
+        // processes of other users can be hidden in /proc, so a missing entry is checked with kill
+        if (Files.isDirectory(PROC.resolve(pid))) {
+            return true;
+        }
+        ProcessBuilder processBuilder = new ProcessBuilder("kill", "-0", pid);
+        // the error message is checked, so it must not be localized
+        processBuilder.environment().put("LC_ALL", "C");
+        Process process = processBuilder.start();
+        String error = streamToString(process.getErrorStream());
+        if (process.waitFor() == 0) {
+            return true;
+        }
+        // EPERM means the process exists but belongs to another user, ESRCH that there is no such process
+        return error.contains("not permitted");
+    }
+}
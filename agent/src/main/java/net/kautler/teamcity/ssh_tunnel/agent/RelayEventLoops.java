@@ -0,0 +1,252 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import jetbrains.buildServer.agent.AgentLifeCycleAdapter;
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static java.lang.Integer.parseInt;
+import static java.lang.Math.floorMod;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_RELAY_BUFFER_MEMORY_CONFIGURATION_PARAMETER_NAME;
+
+/**
+ * A small fixed number of event loops that relay the connections accepted by listeners of the agent without
+ * a thread per connection. Each loop owns a selector and a pool of direct buffers. A connection only holds
+ * a buffer while it has data that could not be written yet, and stops reading while its loop is out of buffers,
+ * so the memory used for relaying is bounded no matter how many connections are open.
+ */
+public class RelayEventLoops extends AgentLifeCycleAdapter implements InitializingBean {
+    private static final Logger LOG = LoggerFactory.getLogger(Loggers.AGENT_CATEGORY + '.' + RelayEventLoops.class.getName());
+    static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_LOOPS = 4;
+    private static final int DEFAULT_BUFFER_MEMORY = 64;
+
+    @NotNull
+    private final EventDispatcher<AgentLifeCycleListener> agentLifeCycleEventDispatcher;
+
+    @NotNull
+    private final BuildAgentConfiguration agentConfiguration;
+
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private List<EventLoop> loops;
+    private boolean shutdown;
+
+    public RelayEventLoops(@NotNull EventDispatcher<AgentLifeCycleListener> agentLifeCycleEventDispatcher,
+                           @NotNull BuildAgentConfiguration agentConfiguration) {
+        this.agentLifeCycleEventDispatcher = agentLifeCycleEventDispatcher;
+        this.agentConfiguration = agentConfiguration;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        agentLifeCycleEventDispatcher.addListener(this);
+    }
+
+    /**
+     * Returns the next event loop in turn, starting the loops on first use.
+     *
+     * @return the event loop to handle a listener or connection
+     * @throws IOException if the event loops could not be started or are shut down already
+     */
+    @NotNull
+    public synchronized EventLoop next() throws IOException {
+        if (shutdown) {
+            throw new IOException("The relay event loops are shut down already");
+        }
+        if (loops == null) {
+            int loopCount = min(MAX_LOOPS, Runtime.getRuntime().availableProcessors());
+            int buffersPerLoop = max(1, getBufferMemory() * 1024 * 1024 / BUFFER_SIZE / loopCount);
+            List<EventLoop> startedLoops = new ArrayList<>();
+            try {
+                for (int i = 1; i <= loopCount; i++) {
+                    EventLoop loop = new EventLoop(buffersPerLoop);
+                    Thread thread = new Thread(loop, "SSH Tunnel Relay " + i);
+                    thread.setDaemon(true);
+                    thread.start();
+                    startedLoops.add(loop);
+                }
+            } catch (IOException | RuntimeException e) {
+                startedLoops.forEach(EventLoop::close);
+                throw e;
+            }
+            loops = startedLoops;
+        }
+        return loops.get(floorMod(nextLoop.getAndIncrement(), loops.size()));
+    }
+
+    @Override
+    public synchronized void agentShutdown() {
+        shutdown = true;
+        if (loops != null) {
+            loops.forEach(EventLoop::close);
+            loops = null;
+        }
+    }
+
+    private int getBufferMemory() {
+        String bufferMemory = agentConfiguration.getConfigurationParameters().get(SSH_RELAY_BUFFER_MEMORY_CONFIGURATION_PARAMETER_NAME);
+        if (bufferMemory == null) {
+            return DEFAULT_BUFFER_MEMORY;
+        }
+        try {
+            return max(1, parseInt(bufferMemory.trim()));
+        } catch (NumberFormatException nfe) {
+            LOG.warn("Invalid value '{}' for '{}', using the default value {}", bufferMemory,
+                    SSH_RELAY_BUFFER_MEMORY_CONFIGURATION_PARAMETER_NAME, DEFAULT_BUFFER_MEMORY);
+            return DEFAULT_BUFFER_MEMORY;
+        }
+    }
+
+    /**
+     * Handles the ready operations of a selection key, called on the thread of its event loop.
+     */
+    @FunctionalInterface
+    public interface Handler {
+        void handle(@NotNull SelectionKey key);
+    }
+
+    public static class EventLoop implements Runnable {
+        @NotNull
+        private final Selector selector;
+
+        private final int maxBuffers;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+        private final ArrayDeque<BooleanSupplier> bufferWaiters = new ArrayDeque<>();
+        private int allocatedBuffers;
+
+        EventLoop(int maxBuffers) throws IOException {
+            this.maxBuffers = maxBuffers;
+            selector = Selector.open();
+        }
+
+        @NotNull
+        public Selector getSelector() {
+            return selector;
+        }
+
+        /**
+         * Runs the given task on the thread of this loop.
+         *
+         * @param task the task to run, it must not block
+         */
+        public void execute(@NotNull Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Takes a buffer from the pool of this loop, must only be called on the thread of this loop.
+         *
+         * @param waiter called once a buffer is available again if none is available now,
+         *               returns whether it tries to take the buffer, or it is passed on to the next waiter
+         * @return the empty buffer or {@code null} if the pool is exhausted
+         */
+        @Nullable
+        public ByteBuffer acquireBuffer(@NotNull BooleanSupplier waiter) {
+            ByteBuffer buffer = freeBuffers.poll();
+            if ((buffer == null) && (allocatedBuffers < maxBuffers)) {
+                allocatedBuffers++;
+                buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            }
+            if (buffer == null) {
+                bufferWaiters.add(waiter);
+            }
+            return buffer;
+        }
+
+        /**
+         * Returns a buffer to the pool of this loop, must only be called on the thread of this loop.
+         *
+         * @param buffer the buffer to return
+         */
+        public void releaseBuffer(@NotNull ByteBuffer buffer) {
+            buffer.clear();
+            freeBuffers.push(buffer);
+            for (BooleanSupplier waiter; (waiter = bufferWaiters.poll()) != null; ) {
+                if (waiter.getAsBoolean()) {
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (selector.isOpen()) {
+                    selector.select();
+                    for (Runnable task; (task = tasks.poll()) != null; ) {
+                        runSafely(task);
+                    }
+                    for (Iterator<SelectionKey> iterator = selector.selectedKeys().iterator(); iterator.hasNext(); ) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        if (key.isValid()) {
+                            runSafely(() -> ((Handler) key.attachment()).handle(key));
+                        }
+                    }
+                }
+            } catch (ClosedSelectorException ignored) {
+                // the agent is shutting down
+            } catch (IOException ioe) {
+                LOG.error("SSH tunnel relay event loop failed", ioe);
+            }
+        }
+
+        private static void runSafely(@NotNull Runnable task) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // a failure of one connection must not stop the relaying of all others
+                LOG.warn("SSH tunnel relay task failed", e);
+            }
+        }
+
+        void close() {
+            try {
+                // closing the selector deregisters all channels, their connections are cut when the build finishes
+                selector.close();
+            } catch (IOException ignored) {
+                // the loop ends anyway
+            }
+        }
+    }
+}
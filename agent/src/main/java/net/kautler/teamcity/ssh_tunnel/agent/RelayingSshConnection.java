@@ -0,0 +1,89 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import jetbrains.buildServer.agent.BuildProgressLogger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A carrier connection whose forwards are partly or fully relayed by listeners of the agent.
+ */
+public class RelayingSshConnection implements SshConnection {
+    @NotNull
+    private final SshConnection carrier;
+
+    @NotNull
+    private final List<ForwardRelay> relays;
+
+    private final boolean clientListens;
+
+    /**
+     * Creates a connection that starts the given relays.
+     *
+     * @param carrier       the connection that carries the channels of the relays and the remaining forwards
+     * @param relays        the relays of the forwards with agent listeners
+     * @param clientListens whether the carrier listens itself for some of the forwards
+     * @throws IOException if a relay could not be started
+     */
+    public RelayingSshConnection(@NotNull SshConnection carrier, @NotNull List<ForwardRelay> relays,
+                                 boolean clientListens) throws IOException {
+        this.carrier = carrier;
+        this.relays = relays;
+        this.clientListens = clientListens;
+        for (ForwardRelay relay : relays) {
+            relay.start();
+        }
+    }
+
+    @Override
+    public boolean isAlive() {
+        return carrier.isAlive();
+    }
+
+    @Override
+    public boolean stopAccepting() throws IOException {
+        relays.forEach(ForwardRelay::stopListening);
+        // the internal forwards of the relays are only connected to by the relays
+        return !clientListens || carrier.stopAccepting();
+    }
+
+    @Override
+    public boolean terminate(@NotNull BuildProgressLogger buildLogger) throws IOException {
+        relays.forEach(ForwardRelay::close);
+        return carrier.terminate(buildLogger);
+    }
+
+    @Override
+    public void addEndListener(@NotNull Runnable listener) {
+        carrier.addEndListener(listener);
+    }
+
+    @Override
+    public boolean isFailurePermanent() {
+        return carrier.isFailurePermanent();
+    }
+
+    @Nullable
+    @Override
+    public String getProcessId() {
+        return carrier.getProcessId();
+    }
+}
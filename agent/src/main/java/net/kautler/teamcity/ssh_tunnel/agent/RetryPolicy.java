@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import net.kautler.teamcity.ssh_tunnel.common.model.SshTunnel;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.lang.Math.min;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Decides whether and when a failed establishment of a connection is tried again. The delays grow exponentially
+ * and are fully jittered, so that builds that were refused at the same time, e.g. by the {@code MaxStartups}
+ * throttling of sshd, do not retry at the same time again.
+ */
+public class RetryPolicy {
+    private static final long BASE_DELAY = 500;
+    private static final long MAX_DELAY = 30_000;
+
+    private final int maxAttempts;
+    private final long deadline;
+
+    /**
+     * Creates a retry policy.
+     *
+     * @param maxAttempts the maximum number of attempts
+     * @param deadline    the time in milliseconds since the first attempt after which no further attempt is started,
+     *                    {@code 0} for no deadline
+     */
+    public RetryPolicy(int maxAttempts, long deadline) {
+        this.maxAttempts = maxAttempts;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Creates the retry policy for a connection, which is the most generous one of its forwards.
+     *
+     * @param forwards the forwards of the connection
+     * @return the retry policy for the connection
+     */
+    @NotNull
+    public static RetryPolicy forForwards(@NotNull List<SshTunnel> forwards) {
+        int maxAttempts = forwards.stream()
+                .map(SshTunnel::getEstablishAttempts)
+                .mapToInt(Integer::parseInt)
+                .max()
+                .orElse(1);
+        // a forward without deadline means no deadline for the connection
+        long deadline = forwards.stream()
+                .map(SshTunnel::getEstablishDeadline)
+                .anyMatch(Objects::isNull)
+                ? 0
+                : forwards.stream()
+                .map(SshTunnel::getEstablishDeadline)
+                .mapToLong(Long::parseLong)
+                .map(SECONDS::toMillis)
+                .max()
+                .orElse(0);
+        return new RetryPolicy(maxAttempts, deadline);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Returns the delay before the next attempt.
+     *
+     * @param failedAttempts the number of attempts that failed so far
+     * @param elapsed        the time in milliseconds since the first attempt was started
+     * @return the delay in milliseconds or {@code -1} if no further attempt should be made
+     */
+    public long getDelay(int failedAttempts, long elapsed) {
+        if (failedAttempts >= maxAttempts) {
+            return -1;
+        }
+        long delay = ThreadLocalRandom.current().nextLong(min(MAX_DELAY, BASE_DELAY << min(failedAttempts - 1, 16)) + 1);
+        if ((deadline > 0) && ((elapsed + delay) >= deadline)) {
+            return -1;
+        }
+        return delay;
+    }
+}
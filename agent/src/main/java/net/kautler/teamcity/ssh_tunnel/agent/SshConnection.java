@@ -0,0 +1,70 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import jetbrains.buildServer.agent.BuildProgressLogger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+
+public interface SshConnection {
+    boolean isAlive();
+
+    /**
+     * Stops the forwards of this connection from accepting new connections,
+     * while the connections that were accepted already continue to work until the connection is terminated.
+     *
+     * @return {@code false} if this connection cannot stop accepting new connections without ending, {@code true} otherwise
+     * @throws IOException if the forwards could not be stopped
+     */
+    boolean stopAccepting() throws IOException;
+
+    /**
+     * Terminates this connection if it is still alive, logs its outcome and releases all resources held for it.
+     *
+     * @param buildLogger the logger to log the outcome to
+     * @return {@code false} if the connection ended unsuccessfully on its own before, {@code true} otherwise
+     * @throws IOException if the outcome could not be determined
+     */
+    boolean terminate(@NotNull BuildProgressLogger buildLogger) throws IOException;
+
+    /**
+     * Registers a listener that is called once when this connection ended, whether on its own or by termination.
+     * If the connection ended already, the listener is called right away.
+     *
+     * @param listener the listener to call, it must not block
+     */
+    void addEndListener(@NotNull Runnable listener);
+
+    /**
+     * Returns whether this connection ended because of a problem that will not go away by retrying,
+     * like a failed authentication or host key verification.
+     *
+     * @return whether this connection ended because of a permanent problem
+     */
+    boolean isFailurePermanent();
+
+    /**
+     * Returns the id of the local {@code ssh} process carrying this connection, which might be shared with other
+     * connections, if it is known.
+     *
+     * @return the process id, or {@code null} if the connection is not carried by a known process
+     */
+    @Nullable
+    String getProcessId();
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import jetbrains.buildServer.agent.AgentLifeCycleAdapter;
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+import static java.lang.Integer.parseInt;
+import static java.lang.Long.parseLong;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_POOL_IDLE_TIMEOUT_CONFIGURATION_PARAMETER_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_POOL_MAX_SIZE_CONFIGURATION_PARAMETER_NAME;
+
+/**
+ * An agent-wide pool of authenticated carrier connections, so that consecutive builds
+ * connecting to the same host do not have to do the key exchange and authentication again.
+ * The pool is disabled unless an idle timeout is configured for the agent.
+ */
+public class SshConnectionPool extends AgentLifeCycleAdapter implements InitializingBean {
+    private static final Logger LOG = LoggerFactory.getLogger(Loggers.AGENT_CATEGORY + '.' + SshConnectionPool.class.getName());
+    private static final String DEFAULT_IDLE_TIMEOUT = "0";
+    private static final String DEFAULT_MAX_SIZE = "8";
+
+    @NotNull
+    private final EventDispatcher<AgentLifeCycleListener> agentLifeCycleEventDispatcher;
+
+    @NotNull
+    private final BuildAgentConfiguration agentConfiguration;
+
+    private final Map<Object, IdleCarrier> idleCarriers = new LinkedHashMap<>();
+    private final ScheduledExecutorService evictionExecutor = newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SSH Tunnel Pool Eviction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SshConnectionPool(@NotNull EventDispatcher<AgentLifeCycleListener> agentLifeCycleEventDispatcher,
+                             @NotNull BuildAgentConfiguration agentConfiguration) {
+        this.agentLifeCycleEventDispatcher = agentLifeCycleEventDispatcher;
+        this.agentConfiguration = agentConfiguration;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        agentLifeCycleEventDispatcher.addListener(this);
+    }
+
+    /**
+     * Takes the idle carrier for the given key out of the pool.
+     *
+     * @param key  the key the carrier was offered with
+     * @param type the type of the carrier
+     * @param <T>  the type of the carrier
+     * @return the idle carrier if there is one that is still alive, {@code null} otherwise
+     */
+    @Nullable
+    public synchronized <T extends PooledCarrier> T take(@NotNull Object key, @NotNull Class<T> type) {
+        IdleCarrier idleCarrier = idleCarriers.remove(key);
+        if (idleCarrier == null) {
+            return null;
+        }
+        idleCarrier.eviction.cancel(false);
+        if (!idleCarrier.carrier.isAlive()) {
+            evict(idleCarrier.carrier);
+            return null;
+        }
+        return type.cast(idleCarrier.carrier);
+    }
+
+    /**
+     * Offers a carrier that is no longer used by any build to the pool.
+     * If the pool is full, the carrier that is idle for the longest time is evicted to make room.
+     *
+     * @param key     the key to offer the carrier with, it must identify the target, user, and key material
+     * @param target  the user, host, and port the carrier is connected to
+     * @param carrier the carrier to offer
+     * @return whether the pool took the carrier, if not the caller has to close it
+     */
+    public synchronized boolean offer(@NotNull Object key, @NotNull List<String> target, @NotNull PooledCarrier carrier) {
+        long idleTimeout = getIdleTimeout();
+        int maxSize = getMaxSize();
+        if ((idleTimeout <= 0) || (maxSize <= 0) || evictionExecutor.isShutdown() || !carrier.isAlive()) {
+            return false;
+        }
+        IdleCarrier previous = idleCarriers.remove(key);
+        if (previous != null) {
+            previous.eviction.cancel(false);
+            evict(previous.carrier);
+        }
+        for (Iterator<IdleCarrier> iterator = idleCarriers.values().iterator(); idleCarriers.size() >= maxSize; ) {
+            IdleCarrier eldest = iterator.next();
+            iterator.remove();
+            eldest.eviction.cancel(false);
+            evict(eldest.carrier);
+        }
+        ScheduledFuture<?> eviction = evictionExecutor.schedule(() -> evictIfIdle(key, carrier), idleTimeout, SECONDS);
+        idleCarriers.put(key, new IdleCarrier(target, carrier, eviction));
+        return true;
+    }
+
+    /**
+     * Restarts the idle timeout of the idle carriers connected to one of the given targets,
+     * as builds that are about to start will likely reuse them.
+     *
+     * @param targets the user, host, and port combinations that will be connected to soon
+     */
+    public synchronized void refresh(@NotNull Collection<List<String>> targets) {
+        long idleTimeout = getIdleTimeout();
+        if ((idleTimeout <= 0) || evictionExecutor.isShutdown()) {
+            return;
+        }
+        idleCarriers.forEach((key, idleCarrier) -> {
+            if (targets.contains(idleCarrier.target)) {
+                idleCarrier.eviction.cancel(false);
+                idleCarrier.eviction = evictionExecutor.schedule(() -> evictIfIdle(key, idleCarrier.carrier), idleTimeout, SECONDS);
+            }
+        });
+    }
+
+    @Override
+    public void agentShutdown() {
+        List<IdleCarrier> remainingCarriers;
+        synchronized (this) {
+            remainingCarriers = new ArrayList<>(idleCarriers.values());
+            idleCarriers.clear();
+            evictionExecutor.shutdownNow();
+        }
+        remainingCarriers.forEach(idleCarrier -> idleCarrier.carrier.evict());
+    }
+
+    /**
+     * Returns a fingerprint of the given private key. Key names are only unique within a project,
+     * so pool keys have to include the key material to never hand out a carrier authenticated with a different key.
+     *
+     * @param privateKey the private key to fingerprint
+     * @return the fingerprint of the private key
+     */
+    @NotNull
+    public static String getKeyFingerprint(@NotNull byte[] privateKey) {
+        try {
+            StringBuilder result = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(privateKey)) {
+                result.append(String.format("%02x", b));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new RuntimeException(nsae.getMessage(), nsae);
+        }
+    }
+
+    private synchronized void evictIfIdle(@NotNull Object key, @NotNull PooledCarrier carrier) {
+        IdleCarrier idleCarrier = idleCarriers.get(key);
+        if ((idleCarrier != null) && (idleCarrier.carrier == carrier)) {
+            idleCarriers.remove(key);
+            evict(carrier);
+        }
+    }
+
+    private void evict(@NotNull PooledCarrier carrier) {
+        // closing a carrier might involve running control commands, so do it outside the lock
+        try {
+            evictionExecutor.execute(() -> {
+                try {
+                    carrier.evict();
+                } catch (RuntimeException e) {
+                    LOG.warn("Exception during eviction of a pooled SSH connection", e);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            carrier.evict();
+        }
+    }
+
+    private long getIdleTimeout() {
+        String idleTimeout = agentConfiguration.getConfigurationParameters().getOrDefault(SSH_POOL_IDLE_TIMEOUT_CONFIGURATION_PARAMETER_NAME, DEFAULT_IDLE_TIMEOUT);
+        try {
+            return parseLong(idleTimeout.trim());
+        } catch (NumberFormatException nfe) {
+            LOG.warn("Invalid value '{}' for '{}', SSH connection pool is disabled", idleTimeout, SSH_POOL_IDLE_TIMEOUT_CONFIGURATION_PARAMETER_NAME);
+            return 0;
+        }
+    }
+
+    private int getMaxSize() {
+        String maxSize = agentConfiguration.getConfigurationParameters().getOrDefault(SSH_POOL_MAX_SIZE_CONFIGURATION_PARAMETER_NAME, DEFAULT_MAX_SIZE);
+        try {
+            return parseInt(maxSize.trim());
+        } catch (NumberFormatException nfe) {
+            LOG.warn("Invalid value '{}' for '{}', SSH connection pool is disabled", maxSize, SSH_POOL_MAX_SIZE_CONFIGURATION_PARAMETER_NAME);
+            return 0;
+        }
+    }
+
+    private static class IdleCarrier {
+        private final List<String> target;
+        private final PooledCarrier carrier;
+        private ScheduledFuture<?> eviction;
+
+        public IdleCarrier(@NotNull List<String> target, @NotNull PooledCarrier carrier, @NotNull ScheduledFuture<?> eviction) {
+            this.target = target;
+            this.carrier = carrier;
+            this.eviction = eviction;
+        }
+    }
+}
@@ -61,8 +61,13 @@ public class SshDetector extends AgentLifeCycleAdapter implements InitializingBe
     @NotNull
     private final EventDispatcher<AgentLifeCycleListener> agentLifeCycleEventDispatcher;
 
-    public SshDetector(@NotNull EventDispatcher<AgentLifeCycleListener> agentLifeCycleEventDispatcher) {
+    @NotNull
+    private final TunnelMetrics tunnelMetrics;
+
+    public SshDetector(@NotNull EventDispatcher<AgentLifeCycleListener> agentLifeCycleEventDispatcher,
+                       @NotNull TunnelMetrics tunnelMetrics) {
         this.agentLifeCycleEventDispatcher = agentLifeCycleEventDispatcher;
+        this.tunnelMetrics = tunnelMetrics;
     }
 
     @Override
@@ -72,6 +77,7 @@ public class SshDetector extends AgentLifeCycleAdapter implements InitializingBe
 
     @Override
     public void beforeAgentConfigurationLoaded(@NotNull BuildAgent agent) {
+        long start = nanoTime();
         Stream.<Supplier<String>>of(
                 () -> agent.getConfiguration().getConfigurationParameters().get(SSH_EXECUTABLE_CONFIGURATION_PARAMETER_NAME),
                 () -> System.getProperty(SSH_EXECUTABLE_CONFIGURATION_PARAMETER_NAME),
@@ -169,6 +175,7 @@ public class SshDetector extends AgentLifeCycleAdapter implements InitializingBe
                             });
                 })
                 .ifPresent(sshExecutable -> agent.getConfiguration().addConfigurationParameter(SSH_EXECUTABLE_CONFIGURATION_PARAMETER_NAME, sshExecutable));
+        tunnelMetrics.sshDetected(nanoTime() - start);
     }
 
     private static boolean sshAvailableAtPath(String sshPath) {
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import jetbrains.buildServer.agent.BuildProgressLogger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.unmodifiableMap;
+import static java.util.stream.Collectors.joining;
+
+/**
+ * Diagnostics of the output of an ssh process. Lines that indicate well-known problems are counted
+ * and optionally the end of each output stream is kept in a fixed-size buffer instead of logging all lines.
+ */
+public class SshDiagnostics {
+    private static final String AUTHENTICATION_FAILURES = "authentication failures";
+    private static final String HOST_KEY_PROBLEMS = "host key problems";
+    private static final List<String> PERMANENT_PROBLEMS = asList(AUTHENTICATION_FAILURES, HOST_KEY_PROBLEMS);
+    private static final Map<String, Pattern> PROBLEM_PATTERNS;
+
+    static {
+        Map<String, Pattern> problemPatterns = new LinkedHashMap<>();
+        // the embedded engine reports problems in exception messages
+        problemPatterns.put(AUTHENTICATION_FAILURES, Pattern.compile(
+                "Permission denied|Too many authentication failures|Authentication failed|No more authentication methods available"));
+        problemPatterns.put("channel open failures", Pattern.compile(
+                "channel \\d+: open failed|connect_to .* failed"));
+        problemPatterns.put("connection failures", Pattern.compile(
+                "Connection refused|Connection timed out|Connection reset|Connection closed by|Broken pipe|Timeout, server .* not responding"));
+        problemPatterns.put(HOST_KEY_PROBLEMS, Pattern.compile(
+                "Host key verification failed|REMOTE HOST IDENTIFICATION HAS CHANGED|Server key did not validate"));
+        PROBLEM_PATTERNS = unmodifiableMap(problemPatterns);
+    }
+
+    private final ConcurrentMap<String, AtomicInteger> problemCounts = new ConcurrentHashMap<>();
+
+    @Nullable
+    private final Tail stdoutTail;
+
+    @Nullable
+    private final Tail stderrTail;
+
+    /**
+     * Creates diagnostics that keep the given amount of characters of the end of each stream.
+     *
+     * @param tailSize the amount of characters to keep per stream, {@code 0} if no tail should be kept
+     */
+    public SshDiagnostics(int tailSize) {
+        stdoutTail = tailSize > 0 ? new Tail(tailSize) : null;
+        stderrTail = tailSize > 0 ? new Tail(tailSize) : null;
+    }
+
+    /**
+     * Returns whether the end of each stream is kept, so lines should not be logged when they appear.
+     *
+     * @return whether the end of each stream is kept
+     */
+    public boolean isCapturingTail() {
+        return (stdoutTail != null) && (stderrTail != null);
+    }
+
+    /**
+     * Records a line of output.
+     *
+     * @param line   the line to record
+     * @param stderr whether the line appeared on stderr
+     */
+    public void record(@NotNull String line, boolean stderr) {
+        PROBLEM_PATTERNS.forEach((problem, pattern) -> {
+            if (pattern.matcher(line).find()) {
+                problemCounts.computeIfAbsent(problem, key -> new AtomicInteger()).incrementAndGet();
+            }
+        });
+        if (isCapturingTail()) {
+            (stderr ? stderrTail : stdoutTail).append(line);
+        }
+    }
+
+    /**
+     * Returns whether the recorded output indicates a problem that will not go away by retrying.
+     *
+     * @return whether the recorded output indicates a permanent problem
+     */
+    public boolean indicatesPermanentProblem() {
+        return PERMANENT_PROBLEMS.stream().anyMatch(problemCounts::containsKey);
+    }
+
+    /**
+     * Returns whether the given message indicates a problem that will not go away by retrying.
+     *
+     * @param message the message to check
+     * @return whether the given message indicates a permanent problem
+     */
+    public static boolean isPermanentProblem(@NotNull String message) {
+        return PERMANENT_PROBLEMS.stream().anyMatch(problem -> PROBLEM_PATTERNS.get(problem).matcher(message).find());
+    }
+
+    /**
+     * Logs the problem counts and the kept end of each stream.
+     *
+     * @param buildLogger the logger to log to
+     */
+    public void report(@NotNull BuildProgressLogger buildLogger) {
+        if (isCapturingTail()) {
+            String stdout = stdoutTail.get();
+            if (!stdout.isEmpty()) {
+                buildLogger.progressMessage(String.format("stdout%s: %s", stdoutTail.isTruncated() ? " (end)" : "", stdout));
+            }
+            String stderr = stderrTail.get();
+            if (!stderr.isEmpty()) {
+                buildLogger.warning(String.format("stderr%s: %s", stderrTail.isTruncated() ? " (end)" : "", stderr));
+            }
+        }
+        if (!problemCounts.isEmpty()) {
+            buildLogger.warning("ssh output indicates " + PROBLEM_PATTERNS.keySet().stream()
+                    .filter(problemCounts::containsKey)
+                    .map(problem -> String.format("%d %s", problemCounts.get(problem).get(), problem))
+                    .collect(joining(", ")));
+        }
+    }
+
+    private static class Tail {
+        private final char[] buffer;
+        private int end;
+        private boolean truncated;
+
+        public Tail(int size) {
+            buffer = new char[size];
+        }
+
+        public synchronized void append(@NotNull String line) {
+            append('\n');
+            for (int i = 0, length = line.length(); i < length; i++) {
+                append(line.charAt(i));
+            }
+        }
+
+        public synchronized boolean isTruncated() {
+            return truncated;
+        }
+
+        @NotNull
+        public synchronized String get() {
+            String result = truncated
+                    ? new String(buffer, end, buffer.length - end) + new String(buffer, 0, end)
+                    : new String(buffer, 0, end);
+            // drop the partially overwritten first line
+            if (truncated) {
+                result = result.substring(result.indexOf('\n') + 1);
+            }
+            return result.trim();
+        }
+
+        private void append(char c) {
+            buffer[end++] = c;
+            if (end == buffer.length) {
+                end = 0;
+                truncated = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.BuildProgressLogger;
+import net.kautler.teamcity.ssh_tunnel.common.model.Connection;
+import net.kautler.teamcity.ssh_tunnel.common.model.SshTunnel;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.List;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_TERMINATION_GRACE_PERIOD_CONFIGURATION_PARAMETER_NAME;
+
+public interface SshEngine {
+    /**
+     * Starts the carrier connection for the given forwards. The forwards do not need to accept connections yet
+     * when this method returns, waiting for that is done separately.
+     *
+     * @param runningBuild    the build the connection is established for
+     * @param connection      the connection properties of the carrier connection
+     * @param forwards        the forwards to open through the carrier connection
+     * @param buildLogger     the logger of the flow the connection is established in
+     * @param handshakeTiming the timing to record the handshake phases of the connection in, or {@code null}
+     * @return the started connection
+     * @throws IOException if the connection could not be started
+     */
+    @NotNull
+    SshConnection connect(@NotNull AgentRunningBuild runningBuild, @NotNull Connection connection, @NotNull List<SshTunnel> forwards,
+                          @NotNull BuildProgressLogger buildLogger, @Nullable HandshakeTiming handshakeTiming) throws IOException;
+
+    /**
+     * Returns the time in seconds the start of a carrier connection for the given forwards may take,
+     * which is the most generous establish timeout of the forwards.
+     *
+     * @param forwards the forwards to open through the carrier connection
+     * @return the time in seconds the start of the carrier connection may take
+     */
+    static long getConnectTimeout(@NotNull List<SshTunnel> forwards) {
+        return forwards.stream()
+                .map(SshTunnel::getEstablishTimeout)
+                .mapToLong(Integer::parseInt)
+                .max()
+                .orElseThrow(AssertionError::new);
+    }
+
+    /**
+     * Returns the time in milliseconds a connection of the given build gets to end on termination before it is killed.
+     *
+     * @param runningBuild the build to get the grace period for
+     * @return the grace period in milliseconds
+     */
+    static long getTerminationGracePeriod(@NotNull AgentRunningBuild runningBuild) {
+        return SECONDS.toMillis(getConfigParameter(runningBuild, SSH_TERMINATION_GRACE_PERIOD_CONFIGURATION_PARAMETER_NAME, 5));
+    }
+
+    /**
+     * Returns the non-negative number the given configuration parameter of the build is set to.
+     *
+     * @param runningBuild the build to get the configuration parameter from
+     * @param name         the name of the configuration parameter
+     * @param defaultValue the value to use if the parameter is not set or invalid
+     * @return the value of the configuration parameter
+     */
+    static int getConfigParameter(@NotNull AgentRunningBuild runningBuild, @NotNull String name, int defaultValue) {
+        String value = runningBuild.getSharedConfigParameters().get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int result = Integer.parseInt(value.trim());
+            if (result >= 0) {
+                return result;
+            }
+        } catch (NumberFormatException ignored) {
+            // warned about below
+        }
+        runningBuild.getBuildLogger().warning(String.format("Invalid value '%s' for '%s', using '%d'", value, name, defaultValue));
+        return defaultValue;
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import jetbrains.buildServer.agent.AgentLifeCycleAdapter;
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.agent.BuildFinishedStatus;
+import jetbrains.buildServer.agent.ssh.AgentRunningBuildSshKeyManager;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.ssh.TeamCitySshKey;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import net.kautler.teamcity.ssh_tunnel.common.model.Connection;
+import org.apache.sshd.common.NamedResource;
+import org.apache.sshd.common.config.keys.FilePasswordProvider;
+import org.apache.sshd.common.config.keys.PublicKeyEntry;
+import org.apache.sshd.common.config.keys.writer.openssh.OpenSSHKeyPairResourceWriter;
+import org.apache.sshd.common.util.security.SecurityUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeoutException;
+
+import static com.intellij.openapi.util.text.StringUtil.isNotEmpty;
+import static java.lang.Long.parseLong;
+import static java.lang.Math.max;
+import static java.lang.System.nanoTime;
+import static java.lang.Thread.currentThread;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.attribute.PosixFilePermissions.asFileAttribute;
+import static java.nio.file.attribute.PosixFilePermissions.fromString;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_EXECUTABLE_CONFIGURATION_PARAMETER_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_KEY_AGENT_LIFETIME_CONFIGURATION_PARAMETER_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Util.streamToStringAsync;
+
+/**
+ * An agent-wide holder of the decrypted SSH keys of the builds, so that each key is only decrypted once instead of
+ * being written to disk and decrypted again for each connection. The embedded engine uses the decrypted key pairs
+ * directly. The executable engine authenticates through an {@code ssh-agent} process that is started per build and
+ * ended when the build finished, so that its socket never gives access to the keys of other builds. Held keys are
+ * evicted when the configured lifetime ended and as soon as a build of the same project gets different key material
+ * or no key at all for the name, which is the case if the key was replaced or removed on the server. The holder is
+ * disabled unless a key lifetime is configured for the agent.
+ */
+public class SshKeyAgent extends AgentLifeCycleAdapter implements InitializingBean {
+    private static final Logger LOG = LoggerFactory.getLogger(Loggers.AGENT_CATEGORY + '.' + SshKeyAgent.class.getName());
+    private static final String DEFAULT_LIFETIME = "0";
+    private static final String PROJECT_ID_PARAMETER_NAME = "teamcity.project.id";
+    private static final long SSH_AGENT_START_TIMEOUT = SECONDS.toNanos(5);
+    private static final long SSH_ADD_TIMEOUT = 10;
+
+    @NotNull
+    private final EventDispatcher<AgentLifeCycleListener> agentLifeCycleEventDispatcher;
+
+    @NotNull
+    private final BuildAgentConfiguration agentConfiguration;
+
+    @NotNull
+    private final AgentRunningBuildSshKeyManager agentRunningBuildSshKeyManager;
+
+    private final ConcurrentMap<List<String>, HeldKey> heldKeys = new ConcurrentHashMap<>();
+    // keys are only loaded under the lock of their id, so that loading one key does not block the others
+    private final ConcurrentMap<List<String>, Object> keyLocks = new ConcurrentHashMap<>();
+    private final ConcurrentMap<AgentRunningBuild, BuildSshAgent> buildSshAgents = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictionExecutor = newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SSH Tunnel Key Eviction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SshKeyAgent(@NotNull EventDispatcher<AgentLifeCycleListener> agentLifeCycleEventDispatcher,
+                       @NotNull BuildAgentConfiguration agentConfiguration,
+                       @NotNull AgentRunningBuildSshKeyManager agentRunningBuildSshKeyManager) {
+        this.agentLifeCycleEventDispatcher = agentLifeCycleEventDispatcher;
+        this.agentConfiguration = agentConfiguration;
+        this.agentRunningBuildSshKeyManager = agentRunningBuildSshKeyManager;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        agentLifeCycleEventDispatcher.addListener(this);
+    }
+
+    /**
+     * Returns the decrypted key pairs of the SSH key of the given connection.
+     *
+     * @param runningBuild the build the connection belongs to
+     * @param connection   the connection to return the key pairs for
+     * @return the decrypted key pairs of the SSH key
+     * @throws IOException if the key could not be loaded
+     */
+    @NotNull
+    public Iterable<KeyPair> getKeyPairs(@NotNull AgentRunningBuild runningBuild, @NotNull Connection connection) throws IOException {
+        return getHeldKey(runningBuild, connection).keyPairs;
+    }
+
+    /**
+     * Makes sure the SSH key of the given connection is held by the {@code ssh-agent} of the given build.
+     *
+     * @param runningBuild the build the connection belongs to
+     * @param connection   the connection to add the key for
+     * @return how to authenticate with the key through the {@code ssh-agent},
+     *         {@code null} if the key has to be given to the SSH client tool directly
+     * @throws IOException if the key could not be loaded or added to the {@code ssh-agent}
+     */
+    @Nullable
+    public SshAgentIdentity addToSshAgent(@NotNull AgentRunningBuild runningBuild, @NotNull Connection connection) throws IOException {
+        // the ssh-agent of OpenSSH for Windows is a system service that cannot be started per build
+        if ((getLifetime() <= 0) || agentConfiguration.getSystemInfo().isWindows() || evictionExecutor.isShutdown()) {
+            return null;
+        }
+        HeldKey heldKey = getHeldKey(runningBuild, connection);
+        BuildSshAgent buildSshAgent = buildSshAgents.computeIfAbsent(runningBuild, key -> new BuildSshAgent(
+                runningBuild.getSharedConfigParameters().get(SSH_EXECUTABLE_CONFIGURATION_PARAMETER_NAME)));
+        return buildSshAgent.add(connection, heldKey);
+    }
+
+    @Override
+    public void buildFinished(@NotNull AgentRunningBuild build, @NotNull BuildFinishedStatus buildStatus) {
+        BuildSshAgent buildSshAgent = buildSshAgents.remove(build);
+        if (buildSshAgent != null) {
+            buildSshAgent.stop();
+        }
+    }
+
+    @Override
+    public void agentShutdown() {
+        evictionExecutor.shutdownNow();
+        heldKeys.clear();
+        buildSshAgents.values().forEach(BuildSshAgent::stop);
+        buildSshAgents.clear();
+    }
+
+    @NotNull
+    private HeldKey getHeldKey(@NotNull AgentRunningBuild runningBuild, @NotNull Connection connection) throws IOException {
+        // key names are only unique within a project
+        List<String> id = asList(runningBuild.getSharedConfigParameters().get(PROJECT_ID_PARAMETER_NAME), connection.getSshKey());
+        TeamCitySshKey sshKey = agentRunningBuildSshKeyManager.getKey(connection.getSshKey());
+        if (sshKey == null) {
+            heldKeys.remove(id);
+            throw new RuntimeException(String.format("SSH Key '%s' not found", connection.getSshKey()));
+        }
+        // the passphrase is part of the fingerprint, so that a wrong passphrase never gets a held key
+        String fingerprint = SshConnectionPool.getKeyFingerprint(sshKey.getPrivateKey())
+                + SshConnectionPool.getKeyFingerprint(String.valueOf(connection.getSshKeyPassphrase()).getBytes(UTF_8));
+        long lifetime = getLifetime();
+        synchronized (keyLocks.computeIfAbsent(id, key -> new Object())) {
+            HeldKey heldKey = heldKeys.get(id);
+            if ((heldKey != null) && heldKey.fingerprint.equals(fingerprint) && !heldKey.isExpired()) {
+                return heldKey;
+            }
+            if ((heldKey != null) && !heldKey.fingerprint.equals(fingerprint)) {
+                LOG.info("SSH Key '{}' changed on the server, forgetting the held key", connection.getSshKey());
+            }
+            heldKeys.remove(id);
+            heldKey = new HeldKey(fingerprint, loadKeyPairs(connection, sshKey), nanoTime() + SECONDS.toNanos(lifetime));
+            if (lifetime > 0) {
+                heldKeys.put(id, heldKey);
+                HeldKey evictedKey = heldKey;
+                try {
+                    // evicted actively, so that the decrypted keys do not stay in memory until the key is used again
+                    evictionExecutor.schedule(() -> heldKeys.remove(id, evictedKey), lifetime, SECONDS);
+                } catch (RejectedExecutionException ree) {
+                    heldKeys.remove(id, heldKey);
+                }
+            }
+            return heldKey;
+        }
+    }
+
+    @NotNull
+    private static Iterable<KeyPair> loadKeyPairs(@NotNull Connection connection, @NotNull TeamCitySshKey sshKey) throws IOException {
+        Iterable<KeyPair> keyPairs;
+        try (InputStream privateKey = new ByteArrayInputStream(sshKey.getPrivateKey())) {
+            keyPairs = SecurityUtils.loadKeyPairIdentities(null, NamedResource.ofName(sshKey.getName()), privateKey,
+                    isNotEmpty(connection.getSshKeyPassphrase()) ? FilePasswordProvider.of(connection.getSshKeyPassphrase()) : null);
+        } catch (GeneralSecurityException gse) {
+            throw new IOException(String.format("SSH Key '%s' could not be loaded", connection.getSshKey()), gse);
+        }
+        if ((keyPairs == null) || !keyPairs.iterator().hasNext()) {
+            throw new IOException(String.format("SSH Key '%s' does not contain a key", connection.getSshKey()));
+        }
+        List<KeyPair> loadedKeyPairs = new ArrayList<>();
+        keyPairs.forEach(loadedKeyPairs::add);
+        return loadedKeyPairs;
+    }
+
+    @NotNull
+    private static String getSiblingExecutable(@Nullable String sshExecutable, @NotNull String name) {
+        // ssh-agent and ssh-add are installed next to the configured SSH client tool
+        File directory = (sshExecutable == null) ? null : new File(sshExecutable).getParentFile();
+        return (directory == null) ? name : new File(directory, name).getPath();
+    }
+
+    private long getLifetime() {
+        String lifetime = agentConfiguration.getConfigurationParameters().getOrDefault(SSH_KEY_AGENT_LIFETIME_CONFIGURATION_PARAMETER_NAME, DEFAULT_LIFETIME);
+        try {
+            return parseLong(lifetime.trim());
+        } catch (NumberFormatException nfe) {
+            LOG.warn("Invalid value '{}' for '{}', SSH key agent is disabled", lifetime, SSH_KEY_AGENT_LIFETIME_CONFIGURATION_PARAMETER_NAME);
+            return 0;
+        }
+    }
+
+    /**
+     * How to authenticate with a key held by the {@code ssh-agent} of a build.
+     */
+    public static class SshAgentIdentity {
+        @NotNull
+        private final File authSocket;
+
+        @NotNull
+        private final File publicKeyFile;
+
+        private SshAgentIdentity(@NotNull File authSocket, @NotNull File publicKeyFile) {
+            this.authSocket = authSocket;
+            this.publicKeyFile = publicKeyFile;
+        }
+
+        /**
+         * Returns the socket of the {@code ssh-agent} to set as {@code SSH_AUTH_SOCK}.
+         *
+         * @return the socket of the {@code ssh-agent}
+         */
+        @NotNull
+        public File getAuthSocket() {
+            return authSocket;
+        }
+
+        /**
+         * Returns the public key file to give as identity, so that only this key of the {@code ssh-agent} is offered.
+         *
+         * @return the public key file of the key
+         */
+        @NotNull
+        public File getPublicKeyFile() {
+            return publicKeyFile;
+        }
+    }
+
+    private static class HeldKey {
+        private final String fingerprint;
+        private final Iterable<KeyPair> keyPairs;
+        private final long expiry;
+
+        public HeldKey(@NotNull String fingerprint, @NotNull Iterable<KeyPair> keyPairs, long expiry) {
+            this.fingerprint = fingerprint;
+            this.keyPairs = keyPairs;
+            this.expiry = expiry;
+        }
+
+        public boolean isExpired() {
+            return (nanoTime() - expiry) >= 0;
+        }
+
+        public long getRemainingLifetime() {
+            return max(1, NANOSECONDS.toSeconds(expiry - nanoTime()));
+        }
+    }
+
+    /**
+     * The {@code ssh-agent} of one build, which only ever holds the keys of that build.
+     */
+    private static class BuildSshAgent {
+        private final String sshAgentExecutable;
+        private final String sshAddExecutable;
+        // keys are only added under the lock of their fingerprint, so that adding one key does not block the others
+        private final ConcurrentMap<String, Object> keyLocks = new ConcurrentHashMap<>();
+        private final ConcurrentMap<String, File> publicKeyFiles = new ConcurrentHashMap<>();
+        private File directory;
+        private Process process;
+        private boolean stopped;
+
+        public BuildSshAgent(@Nullable String sshExecutable) {
+            sshAgentExecutable = getSiblingExecutable(sshExecutable, "ssh-agent");
+            sshAddExecutable = getSiblingExecutable(sshExecutable, "ssh-add");
+        }
+
+        @NotNull
+        public SshAgentIdentity add(@NotNull Connection connection, @NotNull HeldKey heldKey) throws IOException {
+            File authSocket = start();
+            synchronized (keyLocks.computeIfAbsent(heldKey.fingerprint, key -> new Object())) {
+                File publicKeyFile = publicKeyFiles.get(heldKey.fingerprint);
+                if (publicKeyFile == null) {
+                    KeyPair keyPair = heldKey.keyPairs.iterator().next();
+                    ByteArrayOutputStream privateKey = new ByteArrayOutputStream();
+                    publicKeyFile = new File(authSocket.getParentFile(), heldKey.fingerprint.substring(0, 16) + ".pub");
+                    try {
+                        // the decrypted key is only ever handed to ssh-add through its stdin, never written to disk
+                        OpenSSHKeyPairResourceWriter.INSTANCE.writePrivateKey(keyPair, connection.getSshKey(), null, privateKey);
+                        Files.write(publicKeyFile.toPath(), PublicKeyEntry.toString(keyPair.getPublic()).getBytes(UTF_8));
+                    } catch (GeneralSecurityException gse) {
+                        throw new IOException(String.format("SSH Key '%s' could not be added to the ssh-agent", connection.getSshKey()), gse);
+                    }
+                    byte[] privateKeyBytes = privateKey.toByteArray();
+                    try {
+                        runSshAdd(authSocket, privateKeyBytes, "-t", String.valueOf(heldKey.getRemainingLifetime()), "-");
+                    } finally {
+                        Arrays.fill(privateKeyBytes, (byte) 0);
+                    }
+                    publicKeyFiles.put(heldKey.fingerprint, publicKeyFile);
+                }
+                return new SshAgentIdentity(authSocket, publicKeyFile);
+            }
+        }
+
+        public synchronized void stop() {
+            stopped = true;
+            if (process != null) {
+                process.destroy();
+                process = null;
+            }
+            if (directory != null) {
+                FileUtil.delete(directory);
+                directory = null;
+            }
+        }
+
+        @NotNull
+        private synchronized File start() throws IOException {
+            if (stopped) {
+                throw new IOException("The build finished already");
+            }
+            if ((process != null) && process.isAlive()) {
+                return new File(directory, "agent.sock");
+            }
+            if (directory != null) {
+                // the keys are gone with the ended ssh-agent
+                publicKeyFiles.clear();
+                FileUtil.delete(directory);
+            }
+            // the path of unix domain sockets is severely limited in length, so the build temp directory is not used
+            directory = Files.createTempDirectory("ssh-tunnel-", asFileAttribute(fromString("rwx------"))).toFile();
+            File authSocket = new File(directory, "agent.sock");
+            process = new ProcessBuilder(sshAgentExecutable, "-D", "-a", authSocket.getPath())
+                    .redirectErrorStream(true)
+                    .redirectOutput(new File(directory, "agent.log"))
+                    .start();
+            try {
+                for (long start = nanoTime(); !authSocket.exists(); MILLISECONDS.sleep(50)) {
+                    if (!process.isAlive() || ((nanoTime() - start) > SSH_AGENT_START_TIMEOUT)) {
+                        process.destroy();
+                        throw new IOException("The ssh-agent could not be started");
+                    }
+                }
+            } catch (InterruptedException ie) {
+                currentThread().interrupt();
+                process.destroy();
+                throw new InterruptedIOException("Interrupted while starting the ssh-agent");
+            }
+            return authSocket;
+        }
+
+        private void runSshAdd(@NotNull File authSocket, @NotNull byte[] input, @NotNull String... arguments) throws IOException {
+            List<String> command = new ArrayList<>();
+            command.add(sshAddExecutable);
+            command.addAll(asList(arguments));
+            ProcessBuilder processBuilder = new ProcessBuilder(command).redirectErrorStream(true);
+            processBuilder.environment().put("SSH_AUTH_SOCK", authSocket.getPath());
+            Process sshAdd = processBuilder.start();
+            try {
+                // the output is read on a separate thread, so that an ssh-add that hangs runs into the timeout
+                Future<String> output = streamToStringAsync(sshAdd.getInputStream());
+                try (OutputStream stdin = sshAdd.getOutputStream()) {
+                    stdin.write(input);
+                }
+                if (!sshAdd.waitFor(SSH_ADD_TIMEOUT, SECONDS)) {
+                    throw new IOException("ssh-add did not finish in time");
+                }
+                if (sshAdd.exitValue() != 0) {
+                    String message;
+                    try {
+                        message = output.get(SSH_ADD_TIMEOUT, SECONDS);
+                    } catch (ExecutionException | TimeoutException e) {
+                        message = "";
+                    }
+                    throw new IOException(String.format("ssh-add failed with exit code %d: %s", sshAdd.exitValue(), message));
+                }
+            } catch (InterruptedException ie) {
+                currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for ssh-add");
+            } finally {
+                sshAdd.destroy();
+            }
+        }
+    }
+}
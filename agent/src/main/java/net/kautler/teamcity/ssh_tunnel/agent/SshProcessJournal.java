@@ -0,0 +1,252 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import jetbrains.buildServer.agent.AgentLifeCycleAdapter;
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.BuildAgent;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import net.kautler.teamcity.ssh_tunnel.agent.TunnelWorkspace.CredentialFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.Math.min;
+import static java.lang.System.nanoTime;
+import static java.lang.Thread.currentThread;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.Files.createDirectories;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static net.kautler.teamcity.ssh_tunnel.common.Util.streamToString;
+
+/**
+ * Records the ssh processes started by this agent in a journal in the work directory, so that processes
+ * that survive a crash or restart of the agent can be found and ended. Each entry is a file named after
+ * the process id that records the owning agent process with its start time, the process id, the start time and a hash of the
+ * command line of the ssh process, followed by the credential files it was started with. Start time and
+ * command line are compared before a process is ended, so that a reused process id does not end an unrelated process.
+ */
+public class SshProcessJournal extends AgentLifeCycleAdapter implements InitializingBean {
+    private static final Logger LOG = LoggerFactory.getLogger(Loggers.AGENT_CATEGORY + '.' + SshProcessJournal.class.getName());
+    // process ids are often the same after a restart in containers, so the start time is part of the agent identity
+    private static final String AGENT_ID = ManagementFactory.getRuntimeMXBean().getName().split("@", 2)[0]
+            + '@' + ManagementFactory.getRuntimeMXBean().getStartTime();
+    private static final String JOURNAL_DIRECTORY_NAME = "ssh-tunnel-processes";
+    private static final long TERMINATION_TIMEOUT = 5;
+    private static final long MAX_POLL_INTERVAL = 500;
+
+    @NotNull
+    private final EventDispatcher<AgentLifeCycleListener> agentLifeCycleEventDispatcher;
+
+    @NotNull
+    private final BuildAgentConfiguration agentConfiguration;
+
+    public SshProcessJournal(@NotNull EventDispatcher<AgentLifeCycleListener> agentLifeCycleEventDispatcher,
+                             @NotNull BuildAgentConfiguration agentConfiguration) {
+        this.agentLifeCycleEventDispatcher = agentLifeCycleEventDispatcher;
+        this.agentConfiguration = agentConfiguration;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        agentLifeCycleEventDispatcher.addListener(this);
+    }
+
+    /**
+     * Records the given started ssh process in the journal until it ended.
+     *
+     * @param process         the started process
+     * @param connection      the connection that wraps the process
+     * @param credentialFiles the credential files the process was started with
+     */
+    public void record(@NotNull Process process, @NotNull SshConnection connection, @NotNull List<CredentialFile> credentialFiles) {
+        String pid = agentConfiguration.getSystemInfo().isWindows() ? null : getPid(process);
+        if (pid == null) {
+            return;
+        }
+        try {
+            String[] identity = getIdentity(pid);
+            if (identity == null) {
+                // the process ended already
+                return;
+            }
+            File journalDirectory = getJournalDirectory();
+            createDirectories(journalDirectory.toPath());
+            File entry = new File(journalDirectory, pid);
+            List<String> entryLines = new ArrayList<>(asList(AGENT_ID, pid, identity[0], identity[1]));
+            credentialFiles.forEach(credentialFile -> entryLines.add(credentialFile.getFile().getAbsolutePath()));
+            Files.write(entry.toPath(), entryLines, UTF_8);
+            connection.addEndListener(() -> FileUtil.delete(entry));
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not record ssh process {} in the journal", pid, e);
+        }
+    }
+
+    @Override
+    public void agentStarted(@NotNull BuildAgent agent) {
+        reapSurvivors();
+    }
+
+    @Override
+    public void beforeAgentShutdown() {
+        // processes of this agent are still terminated by the builds and the connection pool,
+        // processes of previous agent processes that could not be ended on start are tried again
+        reapSurvivors();
+    }
+
+    private void reapSurvivors() {
+        File[] entries = getJournalDirectory().listFiles(File::isFile);
+        if (entries == null) {
+            return;
+        }
+        for (File entry : entries) {
+            try {
+                List<String> entryLines = Files.readAllLines(entry.toPath(), UTF_8);
+                if ((entryLines.size() >= 4) && entryLines.get(0).equals(AGENT_ID)) {
+                    continue;
+                }
+                if (entryLines.size() >= 4) {
+                    String pid = entryLines.get(1);
+                    String[] identity = getIdentity(pid);
+                    if ((identity != null) && identity[0].equals(entryLines.get(2)) && identity[1].equals(entryLines.get(3))) {
+                        LOG.info("Ending orphaned ssh process {} of gone agent process {}", pid, entryLines.get(0));
+                        if (!terminate(pid)) {
+                            LOG.warn("Orphaned ssh process {} could not be ended", pid);
+                            continue;
+                        }
+                    }
+                    // the credential files are deleted as soon as the process accepts connections,
+                    // but a crash before that would leave them in the tunnel workspace
+                    entryLines.subList(4, entryLines.size()).stream().map(File::new).forEach(FileUtil::delete);
+                }
+                FileUtil.delete(entry);
+            } catch (InterruptedIOException iioe) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Could not reap ssh process of journal entry {}", entry, e);
+            }
+        }
+    }
+
+    @NotNull
+    private File getJournalDirectory() {
+        return new File(agentConfiguration.getWorkDirectory(), JOURNAL_DIRECTORY_NAME);
+    }
+
+    /**
+     * Returns the start time and the hash of the command line of the given process.
+     *
+     * @return the start time and the command line hash or {@code null} if the process does not exist
+     */
+    @Nullable
+    private static String[] getIdentity(@NotNull String pid) throws IOException {
+        String output = run("ps", "-ww", "-o", "lstart=", "-o", "args=", "-p", pid);
+        if (output == null) {
+            return null;
+        }
+        // the start time has the fixed form "Sat Oct 17 10:00:00 2026"
+        String[] parts = output.trim().split("\\s+", 6);
+        if (parts.length < 6) {
+            return null;
+        }
+        return new String[]{
+                String.join(" ", asList(parts).subList(0, 5)),
+                SshConnectionPool.getKeyFingerprint(parts[5].getBytes(UTF_8))
+        };
+    }
+
+    /**
+     * Sends SIGTERM to the given process and SIGKILL if it did not end within the termination timeout.
+     *
+     * @return whether the process ended
+     */
+    private static boolean terminate(@NotNull String pid) throws IOException {
+        run("kill", "-TERM", pid);
+        long start = nanoTime();
+        long pollInterval = 10;
+        while (run("kill", "-0", pid) != null) {
+            if (nanoTime() - start >= SECONDS.toNanos(TERMINATION_TIMEOUT)) {
+                run("kill", "-KILL", pid);
+                return run("kill", "-0", pid) == null;
+            }
+            try {
+                MILLISECONDS.sleep(pollInterval);
+            } catch (InterruptedException ie) {
+                currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while ending orphaned ssh process");
+            }
+            pollInterval = min(pollInterval * 2, MAX_POLL_INTERVAL);
+        }
+        return true;
+    }
+
+    /**
+     * Runs the given command.
+     *
+     * @return the standard output of the command or {@code null} if it failed
+     */
+    @Nullable
+    private static String run(@NotNull String... command) throws IOException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        try {
+            String output = streamToString(process.getInputStream());
+            return (process.waitFor() == 0) ? output : null;
+        } catch (InterruptedException ie) {
+            process.destroyForcibly();
+            currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while running " + command[0]);
+        }
+    }
+
+    /**
+     * Returns the process id of the given process, which Java 8 only exposes by reflection.
+     *
+     * @return the process id or {@code null} if it could not be determined
+     */
+    @Nullable
+    static String getPid(@NotNull Process process) {
+        try {
+            return String.valueOf(Process.class.getMethod("pid").invoke(process));
+        } catch (NoSuchMethodException nsme) {
+            try {
+                Field pidField = process.getClass().getDeclaredField("pid");
+                pidField.setAccessible(true);
+                return String.valueOf(pidField.getInt(process));
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                return null;
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import jetbrains.buildServer.agent.AgentLifeCycleAdapter;
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.util.EventDispatcher;
+import net.kautler.teamcity.ssh_tunnel.common.model.Connection;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static java.lang.Long.parseLong;
+import static java.lang.Math.max;
+import static java.lang.System.nanoTime;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.emptyMap;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_PROCESS_SAMPLING_INTERVAL_CONFIGURATION_PARAMETER_NAME;
+
+/**
+ * Samples the CPU time, memory, context switches and open file descriptors of the {@code ssh} processes carrying
+ * the connections of running builds from {@code /proc}, to find tunnels that are bound by the single-threaded
+ * encryption within their process. The samples of a connection are accumulated over all processes
+ * that carried it, if it was reconnected. This is only supported on Linux.
+ */
+public class SshProcessSampler extends AgentLifeCycleAdapter implements InitializingBean {
+    private static final Logger LOG = LoggerFactory.getLogger(Loggers.AGENT_CATEGORY + '.' + SshProcessSampler.class.getName());
+    private static final Path PROC = Paths.get("/proc");
+    private static final long DEFAULT_CLOCK_TICKS = 100;
+
+    @NotNull
+    private final EventDispatcher<AgentLifeCycleListener> agentLifeCycleEventDispatcher;
+
+    private final ConcurrentMap<AgentRunningBuild, Map<Connection, Samples>> samplesPerBuild = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sampleExecutor = newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SSH Tunnel Process Sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile Long clockTicks;
+
+    public SshProcessSampler(@NotNull EventDispatcher<AgentLifeCycleListener> agentLifeCycleEventDispatcher) {
+        this.agentLifeCycleEventDispatcher = agentLifeCycleEventDispatcher;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        agentLifeCycleEventDispatcher.addListener(this);
+    }
+
+    public static boolean isSupported() {
+        return Files.isReadable(PROC.resolve("self").resolve("stat"));
+    }
+
+    /**
+     * Starts sampling the process carrying the given connection at the interval configured for the build,
+     * if any. If the connection is sampled already, the samples are continued with the given process supplier.
+     *
+     * @param runningBuild the build the connection belongs to
+     * @param connection   the connection to sample the process of
+     * @param processId    supplies the id of the process currently carrying the connection,
+     *                     or {@code null} while there is none or it is not a process of the agent
+     */
+    public void start(@NotNull AgentRunningBuild runningBuild, @NotNull Connection connection,
+                      @NotNull Supplier<String> processId) {
+        int interval = SshEngine.getConfigParameter(runningBuild, SSH_PROCESS_SAMPLING_INTERVAL_CONFIGURATION_PARAMETER_NAME, 0);
+        if ((interval <= 0) || !isSupported()) {
+            return;
+        }
+        Samples samples = samplesPerBuild
+                .computeIfAbsent(runningBuild, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(connection, key -> new Samples());
+        synchronized (samples) {
+            if (samples.sampling != null) {
+                samples.sampling.cancel(false);
+            }
+            samples.sampling = sampleExecutor.scheduleAtFixedRate(() -> sample(samples, processId.get()), 0, interval, SECONDS);
+        }
+    }
+
+    /**
+     * Stops sampling the processes of the given build.
+     *
+     * @param runningBuild the build to stop sampling for
+     * @return the samples per connection
+     */
+    @NotNull
+    public Map<Connection, Samples> stop(@NotNull AgentRunningBuild runningBuild) {
+        Map<Connection, Samples> result = samplesPerBuild.remove(runningBuild);
+        if (result == null) {
+            return emptyMap();
+        }
+        result.values().forEach(samples -> {
+            synchronized (samples) {
+                if (samples.sampling != null) {
+                    samples.sampling.cancel(false);
+                }
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public void agentShutdown() {
+        sampleExecutor.shutdownNow();
+    }
+
+    private void sample(@NotNull Samples samples, @Nullable String processId) {
+        if (processId == null) {
+            return;
+        }
+        try {
+            Path processDirectory = PROC.resolve(processId);
+            // the fields after the command, which is in parentheses and may contain spaces
+            String stat = new String(Files.readAllBytes(processDirectory.resolve("stat")), UTF_8);
+            String[] statFields = stat.substring(stat.lastIndexOf(')') + 2).trim().split(" ");
+            long cpuTime = (parseLong(statFields[11]) + parseLong(statFields[12])) * 1000 / getClockTicks();
+
+            Map<String, Long> status = new HashMap<>();
+            for (String line : Files.readAllLines(processDirectory.resolve("status"), UTF_8)) {
+                String[] keyValue = line.split(":\\s*", 2);
+                if ((keyValue.length == 2) && keyValue[1].matches("\\d+( kB)?")) {
+                    status.put(keyValue[0], parseLong(keyValue[1].split(" ")[0]));
+                }
+            }
+            long contextSwitches = status.getOrDefault("voluntary_ctxt_switches", 0L)
+                    + status.getOrDefault("nonvoluntary_ctxt_switches", 0L);
+
+            long fileDescriptors;
+            try (Stream<Path> fds = Files.list(processDirectory.resolve("fd"))) {
+                fileDescriptors = fds.count();
+            }
+
+            samples.record(processId, nanoTime(), cpuTime, status.getOrDefault("VmRSS", 0L),
+                    status.getOrDefault("VmHWM", 0L), contextSwitches, fileDescriptors);
+        } catch (NoSuchFileException nsfe) {
+            // the process ended in the meantime
+        } catch (IOException | RuntimeException e) {
+            LOG.debug("Could not sample ssh process {}", processId, e);
+        }
+    }
+
+    private long getClockTicks() {
+        if (clockTicks == null) {
+            long result = DEFAULT_CLOCK_TICKS;
+            try {
+                Process getconf = new ProcessBuilder("getconf", "CLK_TCK").redirectErrorStream(true).start();
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(getconf.getInputStream(), UTF_8))) {
+                    String line = reader.readLine();
+                    if (line != null) {
+                        result = parseLong(line.trim());
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                LOG.debug("Could not determine the clock ticks per second, assuming {}", DEFAULT_CLOCK_TICKS, e);
+            }
+            clockTicks = result;
+        }
+        return clockTicks;
+    }
+
+    /**
+     * The samples of the processes that carried one connection.
+     */
+    public static class Samples {
+        private final Map<String, long[]> lastSamplePerProcess = new HashMap<>();
+        private ScheduledFuture<?> sampling;
+        private int count;
+        private long cpuTime;
+        private long sampledTime;
+        private long sampledCpuTime;
+        private long sampledContextSwitches;
+        private double maxCpuUsage;
+        private long rssSum;
+        private long maxRss;
+        private long contextSwitches;
+        private double maxContextSwitchRate;
+        private long fileDescriptorSum;
+        private long maxFileDescriptors;
+
+        private synchronized void record(@NotNull String processId, long time, long cpuTime, long rss, long peakRss,
+                                         long contextSwitches, long fileDescriptors) {
+            long[] lastSample = lastSamplePerProcess.put(processId, new long[]{time, cpuTime, contextSwitches});
+            count++;
+            rssSum += rss;
+            maxRss = max(maxRss, peakRss);
+            fileDescriptorSum += fileDescriptors;
+            maxFileDescriptors = max(maxFileDescriptors, fileDescriptors);
+            if (lastSample == null) {
+                // the usage before the first sample of a process is counted, but has no known interval
+                this.cpuTime += cpuTime;
+                this.contextSwitches += contextSwitches;
+                return;
+            }
+            long interval = time - lastSample[0];
+            long cpuTimeDelta = cpuTime - lastSample[1];
+            long contextSwitchesDelta = contextSwitches - lastSample[2];
+            this.cpuTime += cpuTimeDelta;
+            this.contextSwitches += contextSwitchesDelta;
+            sampledTime += interval;
+            sampledCpuTime += cpuTimeDelta;
+            sampledContextSwitches += contextSwitchesDelta;
+            if (interval > 0) {
+                maxCpuUsage = max(maxCpuUsage, cpuTimeDelta * 100.0 / NANOSECONDS.toMillis(interval));
+                maxContextSwitchRate = max(maxContextSwitchRate, contextSwitchesDelta * 1e9 / interval);
+            }
+        }
+
+        /**
+         * Returns the accumulated samples as build statistic values with the given key prefix, or no values
+         * if no process was sampled. The CPU usage is given in percent of one core, the memory in kilobytes.
+         *
+         * @param keyPrefix the prefix for the keys of the values
+         * @return the build statistic values
+         */
+        @NotNull
+        public synchronized Map<String, Number> getStatisticValues(@NotNull String keyPrefix) {
+            Map<String, Number> result = new LinkedHashMap<>();
+            if (count == 0) {
+                return result;
+            }
+            result.put(keyPrefix + "process.cpuTime", cpuTime);
+            // the averages only cover the intervals between samples, not the usage before the first sample
+            if (sampledTime > 0) {
+                result.put(keyPrefix + "process.cpuUsage.avg", sampledCpuTime * 100.0 / NANOSECONDS.toMillis(sampledTime));
+                result.put(keyPrefix + "process.cpuUsage.max", maxCpuUsage);
+                result.put(keyPrefix + "process.contextSwitchRate.avg", sampledContextSwitches * 1e9 / sampledTime);
+                result.put(keyPrefix + "process.contextSwitchRate.max", maxContextSwitchRate);
+            }
+            result.put(keyPrefix + "process.contextSwitches", contextSwitches);
+            result.put(keyPrefix + "process.rss.avg", rssSum / count);
+            result.put(keyPrefix + "process.rss.max", maxRss);
+            result.put(keyPrefix + "process.fileDescriptors.avg", fileDescriptorSum / count);
+            result.put(keyPrefix + "process.fileDescriptors.max", maxFileDescriptors);
+            return result;
+        }
+    }
+}
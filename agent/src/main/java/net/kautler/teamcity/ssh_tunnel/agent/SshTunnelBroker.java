@@ -0,0 +1,448 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import jetbrains.buildServer.agent.AgentLifeCycleAdapter;
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.BuildAgent;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.agent.BuildProgressLogger;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.lang.Thread.currentThread;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.Files.createDirectories;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.nio.file.attribute.PosixFilePermissions.asFileAttribute;
+import static java.nio.file.attribute.PosixFilePermissions.fromString;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static jetbrains.buildServer.util.StringUtil.isEmptyOrSpaces;
+import static net.kautler.teamcity.ssh_tunnel.agent.ControlMaster.awaitControlSocket;
+import static net.kautler.teamcity.ssh_tunnel.agent.ControlMaster.runControlCommand;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_BROKER_DIRECTORY_CONFIGURATION_PARAMETER_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_EXECUTABLE_CONFIGURATION_PARAMETER_NAME;
+
+/**
+ * Shares OpenSSH control masters between all agents on a host that are configured with the same broker directory.
+ * Each target gets a directory with the control socket of its master and one lease file per connection
+ * that records the owning agent process and its forwards. Leases of agent processes that are gone
+ * are reaped, so the forwards of crashed agents are released, and the last lease closes the master.
+ */
+public class SshTunnelBroker extends AgentLifeCycleAdapter implements InitializingBean {
+    private static final Logger LOG = LoggerFactory.getLogger(Loggers.AGENT_CATEGORY + '.' + SshTunnelBroker.class.getName());
+    private static final String PID = ManagementFactory.getRuntimeMXBean().getName().split("@", 2)[0];
+    private static final String CONTROL_SOCKET_NAME = "control";
+    private static final String LOCK_FILE_NAME = "lock";
+    private static final String LEASES_DIRECTORY_NAME = "leases";
+    private static final long CHECK_INTERVAL = 5;
+    private static final Pattern MASTER_PROCESS_ID_PATTERN = Pattern.compile("pid=(\\d+)");
+
+    @NotNull
+    private final EventDispatcher<AgentLifeCycleListener> agentLifeCycleEventDispatcher;
+
+    @NotNull
+    private final BuildAgentConfiguration agentConfiguration;
+
+    private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<>();
+    private final ConcurrentMap<File, ExecutableSshConnection> startedMasters = new ConcurrentHashMap<>();
+    private final Set<File> ownLeases = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService checkExecutor = newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SSH Tunnel Broker Check");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SshTunnelBroker(@NotNull EventDispatcher<AgentLifeCycleListener> agentLifeCycleEventDispatcher,
+                           @NotNull BuildAgentConfiguration agentConfiguration) {
+        this.agentLifeCycleEventDispatcher = agentLifeCycleEventDispatcher;
+        this.agentConfiguration = agentConfiguration;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        agentLifeCycleEventDispatcher.addListener(this);
+    }
+
+    /**
+     * Returns the configured broker directory.
+     *
+     * @return the broker directory or {@code null} if control masters are not shared on this host
+     */
+    @Nullable
+    public File getBrokerDirectory() {
+        String brokerDirectory = agentConfiguration.getConfigurationParameters().get(SSH_BROKER_DIRECTORY_CONFIGURATION_PARAMETER_NAME);
+        return isEmptyOrSpaces(brokerDirectory) ? null : new File(brokerDirectory.trim());
+    }
+
+    /**
+     * Leases the host-wide control master for the given target, starting it if no agent on the host did yet,
+     * and adds the given forwards to it.
+     *
+     * @param brokerDirectory the directory shared by the agents on the host
+     * @param targetId        the identifier of the target, user, and key material, short enough for a socket path
+     * @param sshExecutable   the ssh executable to run control commands with
+     * @param host            the host the master connects to
+     * @param starter         the starter for the master process
+     * @param forwardOptions  the forward options to add to the master
+     * @param timeout         the time in seconds to wait for the master to accept control commands
+     * @param buildLogger     the logger to log progress to
+     * @return the connection that holds the lease
+     * @throws IOException if the master could not be started or the forwards could not be added
+     */
+    @NotNull
+    public SshConnection connect(@NotNull File brokerDirectory, @NotNull String targetId, @NotNull String sshExecutable,
+                                 @NotNull String host, @NotNull ControlMaster.Starter starter,
+                                 @NotNull List<String> forwardOptions, long timeout,
+                                 @NotNull BuildProgressLogger buildLogger) throws IOException {
+        File masterDirectory = new File(brokerDirectory, targetId);
+        File controlSocket = new File(masterDirectory, CONTROL_SOCKET_NAME);
+        return withLock(masterDirectory, () -> {
+            reapDeadLeases(masterDirectory, sshExecutable);
+            if (isMasterAlive(sshExecutable, controlSocket, host)) {
+                buildLogger.progressMessage("Using SSH control master shared on this host");
+            } else {
+                startMaster(masterDirectory, controlSocket, starter, timeout, buildLogger);
+            }
+            File lease = new File(new File(masterDirectory, LEASES_DIRECTORY_NAME), PID + '-' + UUID.randomUUID());
+            List<String> leaseLines = new ArrayList<>(asList(PID, host));
+            leaseLines.addAll(forwardOptions);
+            ownLeases.add(lease);
+            Matcher masterProcessId;
+            try {
+                Files.write(lease.toPath(), leaseLines, UTF_8);
+                runControlCommand(sshExecutable, controlSocket, host, "forward", forwardOptions);
+                // the master might have been started by another agent, so its process is only known from the master itself
+                masterProcessId = MASTER_PROCESS_ID_PATTERN.matcher(runControlCommand(sshExecutable, controlSocket, host, "check", emptyList()));
+            } catch (IOException | RuntimeException e) {
+                releaseLease(masterDirectory, lease, sshExecutable, host, buildLogger);
+                throw e;
+            }
+            return new BrokeredSshConnection(lease, sshExecutable, controlSocket, host, forwardOptions,
+                    masterProcessId.find() ? masterProcessId.group(1) : null);
+        });
+    }
+
+    @Override
+    public void agentStarted(@NotNull BuildAgent agent) {
+        File brokerDirectory = getBrokerDirectory();
+        String sshExecutable = agentConfiguration.getConfigurationParameters().get(SSH_EXECUTABLE_CONFIGURATION_PARAMETER_NAME);
+        File[] masterDirectories = brokerDirectory == null ? null : brokerDirectory.listFiles(File::isDirectory);
+        if ((masterDirectories == null) || (sshExecutable == null)) {
+            return;
+        }
+        for (File masterDirectory : masterDirectories) {
+            try {
+                withLock(masterDirectory, () -> {
+                    String host = reapDeadLeases(masterDirectory, sshExecutable);
+                    File controlSocket = new File(masterDirectory, CONTROL_SOCKET_NAME);
+                    if ((host != null) && listLeases(masterDirectory).isEmpty() && isMasterAlive(sshExecutable, controlSocket, host)) {
+                        LOG.info("Closing orphaned SSH control master in {}", masterDirectory);
+                        runControlCommand(sshExecutable, controlSocket, host, "exit", emptyList());
+                    }
+                    return null;
+                });
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Could not reap leases of SSH control master in {}", masterDirectory, e);
+            }
+        }
+    }
+
+    @Override
+    public void agentShutdown() {
+        checkExecutor.shutdownNow();
+    }
+
+    private void startMaster(@NotNull File masterDirectory, @NotNull File controlSocket,
+                             @NotNull ControlMaster.Starter starter, long timeout,
+                             @NotNull BuildProgressLogger buildLogger) throws IOException {
+        // a master that died leaves its socket behind, which would prevent the new master from listening
+        FileUtil.delete(controlSocket);
+        ExecutableSshConnection previousMaster = startedMasters.remove(masterDirectory);
+        if (previousMaster != null) {
+            previousMaster.destroy();
+        }
+        ExecutableSshConnection master = starter.start(asList("-M", "-S", controlSocket.getPath()));
+        try {
+            awaitControlSocket(master, controlSocket, timeout);
+        } catch (IOException | RuntimeException e) {
+            master.terminate(buildLogger);
+            FileUtil.delete(controlSocket);
+            if (master.isFailurePermanent()) {
+                throw new PermanentSshException(e.getMessage(), e);
+            }
+            throw e;
+        }
+        master.deleteCredentials();
+        // the master outlives the build it was started for and serves other agents, so log its output in the agent log
+        master.setOutputLogger(null);
+        startedMasters.put(masterDirectory, master);
+    }
+
+    private void releaseLease(@NotNull File masterDirectory, @NotNull File lease, @NotNull String sshExecutable,
+                                 @NotNull String host, @NotNull BuildProgressLogger buildLogger) throws IOException {
+        File controlSocket = new File(masterDirectory, CONTROL_SOCKET_NAME);
+        FileUtil.delete(lease);
+        ownLeases.remove(lease);
+        boolean masterAlive = isMasterAlive(sshExecutable, controlSocket, host);
+        if (masterAlive && listLeases(masterDirectory).isEmpty()) {
+            try {
+                runControlCommand(sshExecutable, controlSocket, host, "exit", emptyList());
+                masterAlive = false;
+            } catch (IOException ioe) {
+                buildLogger.warning(ioe.getMessage());
+            }
+        }
+        if (!masterAlive) {
+            // only the agent that started the master can report its outcome
+            ExecutableSshConnection master = startedMasters.remove(masterDirectory);
+            if (master != null) {
+                master.terminate(buildLogger);
+            }
+        }
+    }
+
+    /**
+     * Removes the leases of agent processes that are gone and cancels their forwards.
+     *
+     * @return the host of the last reaped lease or {@code null} if no lease was reaped
+     */
+    @Nullable
+    private String reapDeadLeases(@NotNull File masterDirectory, @NotNull String sshExecutable) throws IOException {
+        String reapedHost = null;
+        File controlSocket = new File(masterDirectory, CONTROL_SOCKET_NAME);
+        for (File lease : listLeases(masterDirectory)) {
+            List<String> leaseLines = Files.readAllLines(lease.toPath(), UTF_8);
+            if ((leaseLines.size() >= 2) && isOwnerAlive(lease, leaseLines.get(0))) {
+                continue;
+            }
+            if (leaseLines.size() >= 2) {
+                reapedHost = leaseLines.get(1);
+                LOG.info("Releasing forwards of gone agent process {} from SSH control master in {}", leaseLines.get(0), masterDirectory);
+                if (controlSocket.exists()) {
+                    try {
+                        runControlCommand(sshExecutable, controlSocket, reapedHost, "cancel", leaseLines.subList(2, leaseLines.size()));
+                    } catch (InterruptedIOException iioe) {
+                        throw iioe;
+                    } catch (IOException ioe) {
+                        LOG.warn(ioe.getMessage());
+                    }
+                }
+            }
+            FileUtil.delete(lease);
+        }
+        return reapedHost;
+    }
+
+    private boolean isOwnerAlive(@NotNull File lease, @NotNull String pid) throws IOException {
+        if (pid.equals(PID)) {
+            return ownLeases.contains(lease);
+        }
+        try {
+            return ProcessLiveness.isAlive(pid);
+        } catch (InterruptedException ie) {
+            currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while checking SSH control master lease owner");
+        }
+    }
+
+    @NotNull
+    private static List<File> listLeases(@NotNull File masterDirectory) {
+        File[] leases = new File(masterDirectory, LEASES_DIRECTORY_NAME).listFiles(File::isFile);
+        return leases == null ? emptyList() : asList(leases);
+    }
+
+    private static boolean isMasterAlive(@NotNull String sshExecutable, @NotNull File controlSocket, @NotNull String host)
+            throws IOException {
+        if (!controlSocket.exists()) {
+            return false;
+        }
+        try {
+            runControlCommand(sshExecutable, controlSocket, host, "check", emptyList());
+            return true;
+        } catch (InterruptedIOException iioe) {
+            throw iioe;
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    private <T> T withLock(@NotNull File masterDirectory, @NotNull LockedAction<T> action) throws IOException {
+        // file locks are held by the whole process, so threads of this agent have to be serialized separately
+        synchronized (locks.computeIfAbsent(masterDirectory.getPath(), key -> new Object())) {
+            createDirectories(new File(masterDirectory, LEASES_DIRECTORY_NAME).toPath(), asFileAttribute(fromString("rwx------")));
+            try (FileChannel lockChannel = FileChannel.open(new File(masterDirectory, LOCK_FILE_NAME).toPath(), CREATE, WRITE)) {
+                FileLock lock = lockChannel.lock();
+                try {
+                    return action.run();
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface LockedAction<T> {
+        T run() throws IOException;
+    }
+
+    private class BrokeredSshConnection implements SshConnection {
+        @NotNull
+        private final File lease;
+
+        @NotNull
+        private final String sshExecutable;
+
+        @NotNull
+        private final File controlSocket;
+
+        @NotNull
+        private final String host;
+
+        @NotNull
+        private final List<String> forwardOptions;
+
+        @Nullable
+        private final String masterProcessId;
+
+        private final List<ScheduledFuture<?>> endChecks = new CopyOnWriteArrayList<>();
+
+        private boolean forwardsCancelled;
+
+        public BrokeredSshConnection(@NotNull File lease, @NotNull String sshExecutable, @NotNull File controlSocket,
+                                     @NotNull String host, @NotNull List<String> forwardOptions,
+                                     @Nullable String masterProcessId) {
+            this.lease = lease;
+            this.sshExecutable = sshExecutable;
+            this.controlSocket = controlSocket;
+            this.host = host;
+            this.forwardOptions = forwardOptions;
+            this.masterProcessId = masterProcessId;
+        }
+
+        @Override
+        public boolean isAlive() {
+            if (!lease.exists()) {
+                return false;
+            }
+            try {
+                // this is polled, so the process is checked instead of running a control command each time
+                return (masterProcessId == null)
+                        ? isMasterAlive(sshExecutable, controlSocket, host)
+                        : ProcessLiveness.isAlive(masterProcessId);
+            } catch (IOException ioe) {
+                // says nothing about the master
+                return true;
+            } catch (InterruptedException ie) {
+                currentThread().interrupt();
+                return true;
+            }
+        }
+
+        @Override
+        public boolean stopAccepting() throws IOException {
+            // cancelling a forward only closes its listener, the channels of accepted connections stay open
+            runControlCommand(sshExecutable, controlSocket, host, "cancel", forwardOptions);
+            forwardsCancelled = true;
+            return true;
+        }
+
+        @Override
+        public boolean terminate(@NotNull BuildProgressLogger buildLogger) throws IOException {
+            File masterDirectory = controlSocket.getParentFile();
+            endChecks.forEach(endCheck -> endCheck.cancel(false));
+            return withLock(masterDirectory, () -> {
+                if (!isMasterAlive(sshExecutable, controlSocket, host)) {
+                    buildLogger.warning("Shared SSH control master ended unexpectedly");
+                    releaseLease(masterDirectory, lease, sshExecutable, host, buildLogger);
+                    return false;
+                }
+                if (!forwardsCancelled) {
+                    try {
+                        runControlCommand(sshExecutable, controlSocket, host, "cancel", forwardOptions);
+                    } catch (IOException ioe) {
+                        buildLogger.warning(ioe.getMessage());
+                    }
+                }
+                releaseLease(masterDirectory, lease, sshExecutable, host, buildLogger);
+                return true;
+            });
+        }
+
+        @Override
+        public boolean isFailurePermanent() {
+            // the master is authenticated already when the connection is created
+            return false;
+        }
+
+        @Nullable
+        @Override
+        public String getProcessId() {
+            // the master serves the other agents on the host, so its samples would not belong to this connection
+            return null;
+        }
+
+        @Override
+        public void addEndListener(@NotNull Runnable listener) {
+            // the master might have been started by another agent, so its end can only be noticed by polling
+            AtomicReference<ScheduledFuture<?>> endCheck = new AtomicReference<>();
+            try {
+                endCheck.set(checkExecutor.scheduleWithFixedDelay(() -> {
+                    if (!isAlive()) {
+                        endCheck.get().cancel(false);
+                        listener.run();
+                    }
+                }, CHECK_INTERVAL, CHECK_INTERVAL, SECONDS));
+                endChecks.add(endCheck.get());
+            } catch (RejectedExecutionException ree) {
+                // the agent is shutting down
+            }
+        }
+    }
+}
@@ -22,72 +22,135 @@ import jetbrains.buildServer.agent.AgentLifeCycleListener;
 import jetbrains.buildServer.agent.AgentRunningBuild;
 import jetbrains.buildServer.agent.BuildFinishedStatus;
 import jetbrains.buildServer.agent.BuildProgressLogger;
-import jetbrains.buildServer.agent.ssh.AgentRunningBuildSshKeyManager;
-import jetbrains.buildServer.ssh.AskPassGenerator;
-import jetbrains.buildServer.ssh.AskPassGeneratorUnix;
-import jetbrains.buildServer.ssh.AskPassGeneratorWin;
-import jetbrains.buildServer.ssh.TeamCitySshKey;
+import jetbrains.buildServer.agent.FlowLogger;
+import jetbrains.buildServer.messages.serviceMessages.ServiceMessage;
 import jetbrains.buildServer.util.EventDispatcher;
-import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.MultiMap;
 import net.kautler.teamcity.ssh_tunnel.common.ModelBuilder;
 import net.kautler.teamcity.ssh_tunnel.common.ParametersHelper;
+import net.kautler.teamcity.ssh_tunnel.common.model.AddressPortPart;
 import net.kautler.teamcity.ssh_tunnel.common.model.Connection;
 import net.kautler.teamcity.ssh_tunnel.common.model.SshTunnel;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.springframework.beans.factory.InitializingBean;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.stream.Stream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
-import static com.intellij.openapi.util.text.StringUtil.isNotEmpty;
+import static java.lang.Boolean.parseBoolean;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.System.nanoTime;
 import static java.lang.Thread.currentThread;
+import static java.util.Collections.emptyMap;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
-import static jetbrains.buildServer.ssh.Util.writeKey;
-import static jetbrains.buildServer.util.FileUtil.createTempFile;
-import static jetbrains.buildServer.util.FileUtil.readText;
-import static jetbrains.buildServer.util.StringUtil.isEmptyOrSpaces;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.BUILD_FEATURE_ACTIVITY_TYPE;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.BUILD_FEATURE_TYPE;
-import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_EXECUTABLE_CONFIGURATION_PARAMETER_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.EMBEDDED_SSH_ENGINE_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.EXECUTABLE_SSH_ENGINE_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_DRAIN_TIMEOUT_CONFIGURATION_PARAMETER_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_HANDSHAKE_TIMING_CONFIGURATION_PARAMETER_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_RECONNECT_ATTEMPTS_CONFIGURATION_PARAMETER_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_RECONNECT_DELAY_CONFIGURATION_PARAMETER_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.TUNNEL_METRICS_BYTES_ATTRIBUTE_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.TUNNEL_METRICS_ESTABLISHED_ATTRIBUTE_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.TUNNEL_METRICS_ESTABLISH_TIME_ATTRIBUTE_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.TUNNEL_METRICS_HOST_ATTRIBUTE_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.TUNNEL_METRICS_RECONNECTS_ATTRIBUTE_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.TUNNEL_METRICS_SERVICE_MESSAGE_NAME;
 
 public class SshTunnelBuildFeatureAgentPart extends AgentLifeCycleAdapter implements InitializingBean {
     private static final String TUNNEL_ACTIVITY_PATTERN = "Tunnel via '%s' identified by key '%s'";
     private static final String TUNNEL_NOT_ESTABLISHED = "SSH Tunnel could not be established";
     private static final String TUNNEL_NOT_TERMINATED = "SSH Tunnel could not be terminated";
+    private static final String TUNNEL_LOST = "SSH Tunnel was lost and could not be reconnected";
+    private static final int DEFAULT_RECONNECT_ATTEMPTS = 3;
+    private static final int DEFAULT_RECONNECT_DELAY = 1;
+    private static final long MAX_RECONNECT_DELAY = 60;
+    private static final int MAX_PARALLEL_CONNECTION_TASKS = 16;
+    private static final int LISTENER_BACKLOG = 1024;
 
     @NotNull
     private final EventDispatcher<AgentLifeCycleListener> agentLifeCycleEventDispatcher;
 
     @NotNull
-    private final AgentRunningBuildSshKeyManager agentRunningBuildSshKeyManager;
+    private final ExecutableSshEngine executableSshEngine;
+
+    @NotNull
+    private final EmbeddedSshEngine embeddedSshEngine;
 
     @NotNull
     private final ParametersHelper parametersHelper;
 
-    private final ConcurrentMap<AgentRunningBuild, List<SshTunnel>> sshTunnelsPerBuild = new ConcurrentHashMap<>();
-    private final ConcurrentMap<AgentRunningBuild, Map<Connection, Process>> processesPerBuild = new ConcurrentHashMap<>();
-    private final ConcurrentMap<AgentRunningBuild, List<File>> filesToDeletePerBuild = new ConcurrentHashMap<>();
-    private final ConcurrentMap<Process, File> stdoutPerProcess = new ConcurrentHashMap<>();
-    private final ConcurrentMap<Process, File> stderrPerProcess = new ConcurrentHashMap<>();
+    @NotNull
+    private final LocalPortAllocator localPortAllocator;
+
+    @NotNull
+    private final AgentForwardListeners agentForwardListeners;
+
+    @NotNull
+    private final SshProcessSampler sshProcessSampler;
+
+    @NotNull
+    private final TunnelMetrics tunnelMetrics;
+
+    private final ConcurrentMap<AgentRunningBuild, Establishment> establishmentsPerBuild = new ConcurrentHashMap<>();
+    private final ConcurrentMap<AgentRunningBuild, Map<Connection, EstablishedConnection>> connectionsPerBuild = new ConcurrentHashMap<>();
+    private final ExecutorService connectionExecutor = newConnectionExecutor();
+    private final ScheduledExecutorService reconnectScheduler = newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SSH Tunnel Reconnect Scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public SshTunnelBuildFeatureAgentPart(@NotNull EventDispatcher<AgentLifeCycleListener> agentLifeCycleEventDispatcher,
-                                          @NotNull AgentRunningBuildSshKeyManager agentRunningBuildSshKeyManager,
-                                          @NotNull ParametersHelper parametersHelper) {
+                                          @NotNull ExecutableSshEngine executableSshEngine,
+                                          @NotNull EmbeddedSshEngine embeddedSshEngine,
+                                          @NotNull ParametersHelper parametersHelper,
+                                          @NotNull LocalPortAllocator localPortAllocator,
+                                          @NotNull AgentForwardListeners agentForwardListeners,
+                                          @NotNull SshProcessSampler sshProcessSampler,
+                                          @NotNull TunnelMetrics tunnelMetrics) {
         this.agentLifeCycleEventDispatcher = agentLifeCycleEventDispatcher;
-        this.agentRunningBuildSshKeyManager = agentRunningBuildSshKeyManager;
+        this.executableSshEngine = executableSshEngine;
+        this.embeddedSshEngine = embeddedSshEngine;
         this.parametersHelper = parametersHelper;
+        this.localPortAllocator = localPortAllocator;
+        this.agentForwardListeners = agentForwardListeners;
+        this.sshProcessSampler = sshProcessSampler;
+        this.tunnelMetrics = tunnelMetrics;
     }
 
     @Override
@@ -97,148 +160,544 @@ public class SshTunnelBuildFeatureAgentPart extends AgentLifeCycleAdapter implem
 
     @Override
     public void buildStarted(@NotNull AgentRunningBuild runningBuild) {
-        sshTunnelsPerBuild.computeIfAbsent(runningBuild, this::getSshTunnels).stream()
+        List<SshTunnel> sshTunnels = getSshTunnels(runningBuild);
+        prepareLocalPorts(runningBuild, sshTunnels);
+        sshTunnels.stream()
                 .map(SshTunnel::getConfigParameters)
                 .map(Map::entrySet)
                 .flatMap(Collection::stream)
                 .collect(toMap(Map.Entry::getKey, Map.Entry::getValue))
                 .forEach(runningBuild::addSharedConfigParameter);
+
+        MultiMap<Connection, SshTunnel> sshTunnelsPerConnection = sshTunnels.stream()
+                .collect(MultiMap::new,
+                        (map, sshTunnel) -> map.putValue(sshTunnel.getConnection(), sshTunnel),
+                        (map1, map2) -> map2.entrySet().forEach(entry -> entry.getValue().forEach(value -> map1.putValue(entry.getKey(), value))));
+
+        // nothing in establishing the tunnels depends on the checkout or the artifact dependencies,
+        // so start all connections concurrently in the background right away, preparationFinished only joins them
+        Establishment establishment = new Establishment(connectionExecutor, reconnectScheduler);
+        establishmentsPerBuild.put(runningBuild, establishment);
+        sshTunnelsPerConnection.entrySet().forEach(entry -> establishment.submit(
+                result -> establishConnection(runningBuild, establishment, result, entry.getKey(), entry.getValue())));
     }
 
-    @Override
-    public void preparationFinished(@NotNull AgentRunningBuild runningBuild) {
-        BuildProgressLogger buildLogger = runningBuild.getBuildLogger();
-        buildLogger.activityStarted("Establishing SSH Tunnels", BUILD_FEATURE_ACTIVITY_TYPE);
-        try {
-            MultiMap<Connection, SshTunnel> sshTunnelsPerConnection = sshTunnelsPerBuild.remove(runningBuild).stream()
-                    .collect(MultiMap::new,
-                            (map, sshTunnel) -> map.putValue(sshTunnel.getConnection(), sshTunnel),
-                            (map1, map2) -> map2.entrySet().forEach(entry -> entry.getValue().forEach(value -> map1.putValue(entry.getKey(), value))));
-
-            String sshExecutable = runningBuild.getSharedConfigParameters().get(SSH_EXECUTABLE_CONFIGURATION_PARAMETER_NAME);
-            sshTunnelsPerConnection.entrySet().forEach(entry -> {
-                Connection connection = entry.getKey();
-                buildLogger.activityStarted(String.format(TUNNEL_ACTIVITY_PATTERN, connection, connection.getSshKey()), BUILD_FEATURE_ACTIVITY_TYPE);
+    /**
+     * Reserves the random local ports of the given forwards host-wide and binds the listeners of the agent,
+     * before the ports are published to the build.
+     */
+    private void prepareLocalPorts(@NotNull AgentRunningBuild runningBuild, @NotNull List<SshTunnel> sshTunnels) {
+        boolean agentListenerSupported = executableSshEngine.isAgentListenerSupported(runningBuild);
+        for (SshTunnel sshTunnel : sshTunnels) {
+            if (!(sshTunnel.getLocalPart() instanceof AddressPortPart)) {
+                continue;
+            }
+            AddressPortPart localPart = (AddressPortPart) sshTunnel.getLocalPart();
+            boolean portUnknown = localPart.isRandomPort();
+            if (portUnknown) {
                 try {
-                    List<SshTunnel> forwards = entry.getValue();
-
-                    forwards.forEach(forward -> buildLogger.progressMessage(String.format("Forwarding '%#s'", forward)));
-
-                    List<String> command = new ArrayList<>();
-                    command.add(sshExecutable);
-                    command.add("-N");
-                    forwards.stream()
-                            .flatMap(forward -> Stream.of("-L", String.format("%#s", forward)))
-                            .forEachOrdered(command::add);
-                    command.add("-p");
-                    command.add(connection.getPort());
-                    command.add("-l");
-                    command.add(connection.getUser());
-                    command.add("-i");
-                    TeamCitySshKey sshKey = agentRunningBuildSshKeyManager.getKey(connection.getSshKey());
-                    if (sshKey == null) {
-                        throw new RuntimeException(String.format("SSH Key '%s' not found", connection.getSshKey()));
-                    }
-                    File buildTempDirectory = runningBuild.getBuildTempDirectory();
-                    File sshKeyFile = new File(writeKey(buildTempDirectory, sshKey));
-                    filesToDeletePerBuild.computeIfAbsent(runningBuild, key -> new ArrayList<>()).add(sshKeyFile);
-                    command.add(sshKeyFile.getName());
-                    command.add(connection.getHost());
-
-                    ProcessBuilder processBuilder = new ProcessBuilder(command).directory(sshKeyFile.getParentFile());
-
-                    if (isNotEmpty(connection.getSshKeyPassphrase())) {
-                        AskPassGenerator askPassGenerator = runningBuild.getAgentConfiguration().getSystemInfo().isWindows() ? new AskPassGeneratorWin() : new AskPassGeneratorUnix();
-                        File askPassFile = askPassGenerator.generate(buildTempDirectory, connection.getSshKeyPassphrase());
-                        filesToDeletePerBuild.get(runningBuild).add(askPassFile);
-                        processBuilder.environment().put("SSH_ASKPASS", "./" + askPassFile.getName());
+                    Integer port = localPortAllocator.reserve(runningBuild, localPart.getAddress());
+                    if (port != null) {
+                        portUnknown = !localPart.assignRandomPort(port);
                     }
-
-                    File stdout = createTempFile(buildTempDirectory, "teamcity", "sshTunnelStdout", true);
-                    filesToDeletePerBuild.get(runningBuild).add(stdout);
-                    File stderr = createTempFile(buildTempDirectory, "teamcity", "sshTunnelStderr", true);
-                    filesToDeletePerBuild.get(runningBuild).add(stderr);
-                    Process process = processBuilder.redirectOutput(stdout).redirectError(stderr).start();
-                    processesPerBuild.computeIfAbsent(runningBuild, key -> new HashMap<>()).put(connection, process);
-                    stdoutPerProcess.put(process, stdout);
-                    stderrPerProcess.put(process, stderr);
+                } catch (IOException ioe) {
+                    runningBuild.getBuildLogger().warning(String.format(
+                            "Could not reserve local port for '%s', using any free port: %s", sshTunnel, ioe.getMessage()));
+                }
+            }
+            if (agentListenerSupported && sshTunnel.getConnection().getSshEngine().equals(EXECUTABLE_SSH_ENGINE_NAME)) {
+                // binding the listener right away makes a random port known without releasing it again
+                try {
+                    ServerSocketChannel listener = ServerSocketChannel.open();
+                    int port = portUnknown ? 0 : localPart.getPort();
                     try {
-                        process.waitFor(1, SECONDS);
-                    } catch (InterruptedException ie) {
-                        currentThread().interrupt();
+                        listener.bind(TunnelReadinessProbe.WILDCARD_ADDRESSES.contains(localPart.getAddress())
+                                ? new InetSocketAddress(port)
+                                : new InetSocketAddress(localPart.getAddress(), port), LISTENER_BACKLOG);
+                    } catch (IOException | RuntimeException e) {
+                        listener.close();
+                        throw e;
                     }
-                    if (!process.isAlive()) {
-                        buildLogger.buildFailureDescription(TUNNEL_NOT_ESTABLISHED);
-                        runningBuild.stopBuild(TUNNEL_NOT_ESTABLISHED);
+                    if (portUnknown) {
+                        localPart.assignRandomPort(listener.socket().getLocalPort());
                     }
+                    agentForwardListeners.put(runningBuild, sshTunnel, listener);
                 } catch (IOException ioe) {
-                    throw new RuntimeException(ioe.getMessage(), ioe);
-                } finally {
-                    buildLogger.activityFinished(String.format(TUNNEL_ACTIVITY_PATTERN, connection, connection.getSshKey()), BUILD_FEATURE_ACTIVITY_TYPE);
+                    runningBuild.getBuildLogger().warning(String.format(
+                            "Could not listen for '%s', the SSH client listens itself: %s", sshTunnel, ioe.getMessage()));
                 }
-            });
+            }
+        }
+    }
+
+    /**
+     * Returns the forwards that the SSH client listens for itself, as only those have to be probed for readiness.
+     */
+    private List<SshTunnel> getClientListenedForwards(@NotNull AgentRunningBuild runningBuild, @NotNull List<SshTunnel> forwards) {
+        return forwards.stream()
+                .filter(forward -> agentForwardListeners.get(runningBuild, forward) == null)
+                .collect(toList());
+    }
+
+    @Override
+    public void preparationFinished(@NotNull AgentRunningBuild runningBuild) {
+        Establishment establishment = establishmentsPerBuild.remove(runningBuild);
+        if (establishment == null) {
+            return;
+        }
+        BuildProgressLogger buildLogger = runningBuild.getBuildLogger();
+        buildLogger.activityStarted("Establishing SSH Tunnels", BUILD_FEATURE_ACTIVITY_TYPE);
+        try {
+            long start = nanoTime();
+            // fail on the first connection that fails instead of waiting for the remaining ones
+            if (!establishment.awaitAll()) {
+                buildLogger.buildFailureDescription(TUNNEL_NOT_ESTABLISHED);
+                runningBuild.stopBuild(TUNNEL_NOT_ESTABLISHED);
+            }
+            buildLogger.progressMessage(String.format("Waited %d ms for SSH Tunnels", NANOSECONDS.toMillis(nanoTime() - start)));
+        } catch (InterruptedException ie) {
+            currentThread().interrupt();
+            buildLogger.buildFailureDescription(TUNNEL_NOT_ESTABLISHED);
+            runningBuild.stopBuild(TUNNEL_NOT_ESTABLISHED);
         } catch (Exception e) {
             String message = e.getMessage();
             buildLogger.internalError(TUNNEL_NOT_ESTABLISHED, (message == null) ? "" : message, e);
             buildLogger.buildFailureDescription(TUNNEL_NOT_ESTABLISHED);
             runningBuild.stopBuild(TUNNEL_NOT_ESTABLISHED);
         } finally {
+            // already started connections are terminated as usual in beforeBuildFinish
+            establishment.cancel();
             buildLogger.activityFinished("Establishing SSH Tunnels", BUILD_FEATURE_ACTIVITY_TYPE);
         }
     }
 
+    private void establishConnection(@NotNull AgentRunningBuild runningBuild, @NotNull Establishment establishment,
+                                     @NotNull CompletableFuture<Boolean> result, @NotNull Connection connection,
+                                     @NotNull List<SshTunnel> forwards) {
+        // each connection gets its own flow, so that the nested activities and the output
+        // of concurrently established connections do not get intermixed
+        FlowLogger buildLogger = runningBuild.getBuildLogger().getThreadLogger();
+        buildLogger.startFlow();
+        buildLogger.activityStarted(String.format(TUNNEL_ACTIVITY_PATTERN, connection, connection.getSshKey()), BUILD_FEATURE_ACTIVITY_TYPE);
+        forwards.forEach(forward -> buildLogger.progressMessage(String.format("Forwarding '%#s'", forward)));
+
+        EstablishingConnection establishingConnection = new EstablishingConnection(runningBuild, connection, forwards, buildLogger, result);
+        // the result is also completed if the establishment is cancelled while waiting for the next attempt
+        result.whenComplete((established, throwable) -> {
+            buildLogger.activityFinished(String.format(TUNNEL_ACTIVITY_PATTERN, connection, connection.getSshKey()), BUILD_FEATURE_ACTIVITY_TYPE);
+            // the output of a registered connection is logged to its flow until it is terminated
+            if (!establishingConnection.registered) {
+                buildLogger.disposeFlow();
+            }
+        });
+        attemptEstablishment(establishment, establishingConnection, 1);
+    }
+
+    /**
+     * Does one establishment attempt and schedules the next one if it failed and can be retried. The delay between
+     * the attempts is waited on the reconnect scheduler, so that it does not block a thread needed for connection tasks.
+     */
+    private void attemptEstablishment(@NotNull Establishment establishment, @NotNull EstablishingConnection establishingConnection,
+                                      int attempt) {
+        AgentRunningBuild runningBuild = establishingConnection.runningBuild;
+        Connection connection = establishingConnection.connection;
+        List<SshTunnel> forwards = establishingConnection.forwards;
+        FlowLogger buildLogger = establishingConnection.flowLogger;
+        CompletableFuture<Boolean> result = establishingConnection.result;
+        RetryPolicy retryPolicy = establishingConnection.retryPolicy;
+        long start = establishingConnection.start;
+        if (result.isDone()) {
+            return;
+        }
+        if (retryPolicy.getMaxAttempts() > 1) {
+            buildLogger.progressMessage(String.format("Attempt %d of %d", attempt, retryPolicy.getMaxAttempts()));
+        }
+        SshConnection sshConnection = null;
+        EstablishedConnection establishedConnection = null;
+        boolean carrierEnded = false;
+        HandshakeTiming handshakeTiming = establishingConnection.handshakeTimed ? new HandshakeTiming() : null;
+        try {
+            try {
+                sshConnection = getSshEngine(connection).connect(runningBuild, connection, forwards, buildLogger, handshakeTiming);
+                // the build might have been finished already while the connection was starting,
+                // then nobody would terminate it anymore, so do it right away
+                EstablishedConnection startedConnection = new EstablishedConnection(sshConnection, forwards, buildLogger);
+                establishedConnection = startedConnection;
+                establishingConnection.registered = establishment.register(() -> {
+                    connectionsPerBuild
+                            .computeIfAbsent(runningBuild, key -> new ConcurrentHashMap<>())
+                            .put(connection, startedConnection);
+                    // registered together, so that the sampling is surely stopped when the build finishes
+                    sshProcessSampler.start(runningBuild, connection, startedConnection::getProcessId);
+                });
+                if (!establishingConnection.registered) {
+                    sshConnection.terminate(buildLogger);
+                    result.complete(false);
+                    return;
+                }
+                if (!new TunnelReadinessProbe(getClientListenedForwards(runningBuild, forwards), runningBuild.getBuildTempDirectory())
+                        .awaitReadiness(sshConnection::isAlive)) {
+                    carrierEnded = true;
+                    String message = "SSH connection ended before the forwards accepted connections";
+                    throw sshConnection.isFailurePermanent() ? new PermanentSshException(message) : new IOException(message);
+                }
+                long latency = nanoTime() - start;
+                buildLogger.progressMessage(String.format("SSH Tunnel ready after %d ms", NANOSECONDS.toMillis(latency)));
+                if (establishedConnection.markReady(NANOSECONDS.toMillis(latency))) {
+                    tunnelMetrics.tunnelsEstablished(forwards.size(), latency);
+                }
+                if (handshakeTiming != null) {
+                    handshakeTiming.report(buildLogger);
+                    for (SshTunnel forward : forwards) {
+                        publishStatisticValues(buildLogger, handshakeTiming.getStatisticValues(forward.getKeyPrefix()));
+                    }
+                }
+                watch(runningBuild, connection, forwards, establishedConnection, sshConnection);
+                result.complete(true);
+            } catch (IOException | TimeoutException e) {
+                tunnelMetrics.establishmentFailed(e);
+                if (handshakeTiming != null) {
+                    // the phases reached so far show where the attempt got stuck
+                    handshakeTiming.report(buildLogger);
+                }
+                long delay = isRetryable(e) ? retryPolicy.getDelay(attempt, NANOSECONDS.toMillis(nanoTime() - start)) : -1;
+                if (delay < 0) {
+                    if (carrierEnded) {
+                        // the outcome of the connection is logged when it is terminated
+                        result.complete(false);
+                        return;
+                    }
+                    if (!establishingConnection.registered) {
+                        // registered connections are reported when they are terminated
+                        reportTunnelMetrics(buildLogger, connection, false, NANOSECONDS.toMillis(nanoTime() - start), 0, 0);
+                    }
+                    throw e;
+                }
+                buildLogger.warning(String.format("Attempt %d failed, retrying in %d ms: %s", attempt, delay, e.getMessage()));
+                if (establishingConnection.registered) {
+                    if (!establishedConnection.detach(sshConnection)) {
+                        // the build is finishing already and terminates the connection
+                        result.complete(false);
+                        return;
+                    }
+                    connectionsPerBuild.getOrDefault(runningBuild, emptyMap()).remove(connection, establishedConnection);
+                    establishingConnection.registered = false;
+                }
+                if (sshConnection != null) {
+                    sshConnection.terminate(buildLogger);
+                }
+                establishment.retry(() -> attemptEstablishment(establishment, establishingConnection, attempt + 1), result, delay);
+            }
+        } catch (InterruptedException ie) {
+            currentThread().interrupt();
+            result.complete(false);
+        } catch (IOException | TimeoutException | RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
     @Override
     public void beforeBuildFinish(@NotNull AgentRunningBuild build, @NotNull BuildFinishedStatus buildStatus) {
         BuildProgressLogger buildLogger = build.getBuildLogger();
         buildLogger.activityStarted("Terminating SSH Tunnels", BUILD_FEATURE_ACTIVITY_TYPE);
         try {
-            Map<Connection, Process> processPerConnection = processesPerBuild.remove(build);
-            if (processPerConnection == null) {
+            // the build might finish before preparationFinished, e.g. if the checkout failed
+            Optional.ofNullable(establishmentsPerBuild.remove(build)).ifPresent(Establishment::cancel);
+            Map<Connection, EstablishedConnection> establishedConnectionPerConnection = connectionsPerBuild.remove(build);
+            // the processes end with the termination, so stop sampling them before
+            Map<Connection, SshProcessSampler.Samples> processSamples = sshProcessSampler.stop(build);
+            if (establishedConnectionPerConnection == null) {
                 return;
             }
-            processPerConnection.forEach((connection, process) -> {
-                buildLogger.activityStarted(String.format(TUNNEL_ACTIVITY_PATTERN, connection, connection.getSshKey()), BUILD_FEATURE_ACTIVITY_TYPE);
+            processSamples.forEach((connection, samples) -> {
+                EstablishedConnection establishedConnection = establishedConnectionPerConnection.get(connection);
+                if (establishedConnection != null) {
+                    establishedConnection.forwards.forEach(forward ->
+                            publishStatisticValues(buildLogger, samples.getStatisticValues(forward.getKeyPrefix())));
+                }
+            });
+            // terminate all connections at once, so that the drain timeouts and grace periods of the single
+            // connections do not add up, but stop reconnecting right away, so that busy watchdogs cannot delay it
+            long start = nanoTime();
+            Drain drain = null;
+            int drainTimeout = SshEngine.getConfigParameter(build, SSH_DRAIN_TIMEOUT_CONFIGURATION_PARAMETER_NAME, 0);
+            if (drainTimeout > 0) {
+                if (ForwardConnectionCounter.isSupported()) {
+                    drain = new Drain(start + SECONDS.toNanos(drainTimeout), build.getBuildTempDirectory());
+                } else {
+                    buildLogger.warning("Connections through SSH Tunnels cannot be counted on this system, not draining them");
+                }
+            }
+            Map<Connection, SshConnection> sshConnectionPerConnection = new HashMap<>();
+            establishedConnectionPerConnection.forEach((connection, establishedConnection) ->
+                    sshConnectionPerConnection.put(connection, establishedConnection.close()));
+            Drain finalDrain = drain;
+            List<Future<Boolean>> terminations = establishedConnectionPerConnection.entrySet().stream()
+                    .map(entry -> connectionExecutor.submit(() -> terminateConnection(entry.getKey(),
+                            sshConnectionPerConnection.get(entry.getKey()), entry.getValue(), finalDrain)))
+                    .collect(toList());
+            RuntimeException failure = null;
+            boolean failed = false;
+            for (Future<Boolean> termination : terminations) {
                 try {
-                    buildLogger.progressMessage("Terminate SSH Tunnel");
-                    if (process.isAlive()) {
-                        try {
-                            process.destroyForcibly().waitFor();
-                        } catch (InterruptedException ie) {
-                            currentThread().interrupt();
-                        }
-                    } else {
-                        int exitValue = process.exitValue();
-                        if (exitValue != 0) {
-                            buildLogger.buildFailureDescription(TUNNEL_NOT_ESTABLISHED);
-                            build.stopBuild(TUNNEL_NOT_ESTABLISHED);
-                        }
-                        buildLogger.progressMessage("exit code: " + exitValue);
-                    }
-                    String stdout = readText(stdoutPerProcess.remove(process));
-                    if (!isEmptyOrSpaces(stdout)) {
-                        buildLogger.progressMessage("stdout: " + stdout);
+                    failed |= !termination.get();
+                } catch (ExecutionException ee) {
+                    Throwable cause = ee.getCause();
+                    if (failure == null) {
+                        failure = new RuntimeException(cause.getMessage(), cause);
                     }
-                    String stderr = readText(stderrPerProcess.remove(process));
-                    if (!isEmptyOrSpaces(stderr)) {
-                        buildLogger.warning("stderr: " + stderr);
-                    }
-                } catch (IOException ioe) {
-                    throw new RuntimeException(ioe.getMessage(), ioe);
-                } finally {
-                    buildLogger.activityFinished(String.format(TUNNEL_ACTIVITY_PATTERN, connection, connection.getSshKey()), BUILD_FEATURE_ACTIVITY_TYPE);
+                } catch (InterruptedException ie) {
+                    currentThread().interrupt();
+                    break;
                 }
-            });
-            Optional.ofNullable(filesToDeletePerBuild.remove(build)).ifPresent(files -> files.forEach(FileUtil::delete));
+            }
+            if (drain != null) {
+                buildLogger.progressMessage(String.format("Drained %d connections through SSH Tunnels, cut %d",
+                        drain.drained.get(), drain.cut.get()));
+            }
+            long duration = nanoTime() - start;
+            buildLogger.progressMessage(String.format("Terminated %d SSH Tunnels in %d ms", terminations.size(), NANOSECONDS.toMillis(duration)));
+            tunnelMetrics.tunnelsTornDown(duration);
+            establishedConnectionPerConnection.forEach((connection, establishedConnection) ->
+                    reportTunnelMetrics(buildLogger, connection, establishedConnection.isReady(),
+                            establishedConnection.getEstablishTime(), establishedConnection.reconnects.get(),
+                            establishedConnection.forwards.stream()
+                                    .map(forward -> agentForwardListeners.getStatistics(build, forward))
+                                    .filter(Objects::nonNull)
+                                    .mapToLong(ForwardStatistics::getBytesTransferred)
+                                    .sum()));
+            tunnelMetrics.tunnelsTerminated(establishedConnectionPerConnection.values().stream()
+                    .filter(EstablishedConnection::isReady)
+                    .mapToInt(establishedConnection -> establishedConnection.forwards.size())
+                    .sum());
+            if (failure != null) {
+                throw failure;
+            }
+            if (failed) {
+                buildLogger.buildFailureDescription(TUNNEL_NOT_ESTABLISHED);
+                build.stopBuild(TUNNEL_NOT_ESTABLISHED);
+            }
         } catch (Exception e) {
             String message = e.getMessage();
             buildLogger.internalError(TUNNEL_NOT_TERMINATED, (message == null) ? "" : message, e);
             buildLogger.buildFailureDescription(TUNNEL_NOT_TERMINATED);
             build.stopBuild(TUNNEL_NOT_TERMINATED);
         } finally {
+            publishStatistics(build);
+            agentForwardListeners.close(build);
+            localPortAllocator.release(build);
             buildLogger.activityFinished("Terminating SSH Tunnels", BUILD_FEATURE_ACTIVITY_TYPE);
         }
     }
 
+    /**
+     * Publishes the traffic of the forwards relayed by the agent as build statistic values, so that they are charted
+     * across builds. Forwards the SSH client listens for itself are not visible to the agent and thus not published.
+     */
+    private void publishStatistics(@NotNull AgentRunningBuild build) {
+        BuildProgressLogger buildLogger = build.getBuildLogger();
+        agentForwardListeners.getStatistics(build).forEach((forward, statistics) ->
+                publishStatisticValues(buildLogger, statistics.getStatisticValues(forward.getKeyPrefix())));
+    }
+
+    /**
+     * Reports the outcome of a connection to the server, which keeps the history of the connections per host.
+     */
+    private static void reportTunnelMetrics(@NotNull BuildProgressLogger buildLogger, @NotNull Connection connection,
+                                            boolean established, long establishTime, int reconnects, long bytes) {
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put(TUNNEL_METRICS_HOST_ATTRIBUTE_NAME, connection.getHost());
+        attributes.put(TUNNEL_METRICS_ESTABLISHED_ATTRIBUTE_NAME, String.valueOf(established));
+        attributes.put(TUNNEL_METRICS_ESTABLISH_TIME_ATTRIBUTE_NAME, String.valueOf(establishTime));
+        attributes.put(TUNNEL_METRICS_RECONNECTS_ATTRIBUTE_NAME, String.valueOf(reconnects));
+        attributes.put(TUNNEL_METRICS_BYTES_ATTRIBUTE_NAME, String.valueOf(bytes));
+        buildLogger.message(ServiceMessage.asString(TUNNEL_METRICS_SERVICE_MESSAGE_NAME, attributes));
+    }
+
+    private static void publishStatisticValues(@NotNull BuildProgressLogger buildLogger, @NotNull Map<String, Number> statisticValues) {
+        statisticValues.forEach((key, value) -> {
+            Map<String, String> attributes = new HashMap<>();
+            attributes.put("key", key);
+            attributes.put("value", value.toString());
+            buildLogger.message(ServiceMessage.asString("buildStatisticValue", attributes));
+        });
+    }
+
+    /**
+     * Terminates the given connection within its flow, after draining it if requested.
+     *
+     * @return {@code false} if the connection ended unsuccessfully on its own before, {@code true} otherwise
+     */
+    private static boolean terminateConnection(@NotNull Connection connection, @Nullable SshConnection sshConnection,
+                                               @NotNull EstablishedConnection establishedConnection,
+                                               @Nullable Drain drain) throws IOException {
+        FlowLogger buildLogger = establishedConnection.flowLogger;
+        buildLogger.activityStarted(String.format(TUNNEL_ACTIVITY_PATTERN, connection, connection.getSshKey()), BUILD_FEATURE_ACTIVITY_TYPE);
+        try {
+            if ((drain != null) && (sshConnection != null) && sshConnection.isAlive()) {
+                drain.drain(sshConnection, establishedConnection.forwards, buildLogger);
+            }
+            buildLogger.progressMessage("Terminate SSH Tunnel");
+            // while the connection is reconnected, the watchdog terminates the new connection itself
+            return (sshConnection == null) || sshConnection.terminate(buildLogger);
+        } finally {
+            buildLogger.activityFinished(String.format(TUNNEL_ACTIVITY_PATTERN, connection, connection.getSshKey()), BUILD_FEATURE_ACTIVITY_TYPE);
+            buildLogger.disposeFlow();
+        }
+    }
+
+    /**
+     * Returns whether the given failure to establish a connection might go away by retrying.
+     * Failures like refused or reset connections are retried, as sshd refuses connections when
+     * too many unauthenticated connections are pending, while failed authentication is not.
+     */
+    private static boolean isRetryable(@NotNull Exception failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if ((cause instanceof PermanentSshException)
+                    || ((cause instanceof InterruptedIOException) && !(cause instanceof SocketTimeoutException))
+                    || ((cause.getMessage() != null) && SshDiagnostics.isPermanentProblem(cause.getMessage()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reconnects the given connection with the same forwards as soon as it ends while it is still in use by the build.
+     */
+    private void watch(@NotNull AgentRunningBuild runningBuild, @NotNull Connection connection,
+                       @NotNull List<SshTunnel> forwards, @NotNull EstablishedConnection establishedConnection,
+                       @NotNull SshConnection sshConnection) {
+        int reconnectAttempts = SshEngine.getConfigParameter(runningBuild, SSH_RECONNECT_ATTEMPTS_CONFIGURATION_PARAMETER_NAME, DEFAULT_RECONNECT_ATTEMPTS);
+        sshConnection.addEndListener(() -> {
+            if (establishedConnection.isClosed()) {
+                return;
+            }
+            if (reconnectAttempts == 0) {
+                // the failure is reported when the connection is terminated
+                establishedConnection.flowLogger.warning("SSH Tunnel was lost");
+                return;
+            }
+            if (establishedConnection.detach(sshConnection)) {
+                try {
+                    connectionExecutor.submit(() -> reconnect(runningBuild, connection, forwards,
+                            establishedConnection, sshConnection, reconnectAttempts));
+                } catch (RejectedExecutionException ree) {
+                    // the agent is shutting down
+                }
+            }
+        });
+    }
+
+    private void reconnect(@NotNull AgentRunningBuild runningBuild, @NotNull Connection connection,
+                           @NotNull List<SshTunnel> forwards, @NotNull EstablishedConnection establishedConnection,
+                           @NotNull SshConnection lostConnection, int reconnectAttempts) {
+        long lost = nanoTime();
+        FlowLogger buildLogger = establishedConnection.flowLogger;
+        buildLogger.warning("SSH Tunnel was lost, reconnecting");
+        try {
+            lostConnection.terminate(buildLogger);
+        } catch (IOException ioe) {
+            buildLogger.warning(ioe.getMessage());
+        }
+        attemptReconnect(runningBuild, connection, forwards, establishedConnection, reconnectAttempts, 1, lost);
+    }
+
+    /**
+     * Does one reconnect attempt and schedules the next one if it failed. The delay between the attempts
+     * is waited on the reconnect scheduler, so that it does not block a thread needed for connection tasks.
+     */
+    private void attemptReconnect(@NotNull AgentRunningBuild runningBuild, @NotNull Connection connection,
+                                  @NotNull List<SshTunnel> forwards, @NotNull EstablishedConnection establishedConnection,
+                                  int reconnectAttempts, int attempt, long lost) {
+        if (establishedConnection.isClosed()) {
+            return;
+        }
+        FlowLogger buildLogger = establishedConnection.flowLogger;
+        try {
+            SshConnection sshConnection = getSshEngine(connection).connect(runningBuild, connection, forwards, buildLogger, null);
+            if (!establishedConnection.replace(sshConnection)) {
+                sshConnection.terminate(buildLogger);
+                return;
+            }
+            if (new TunnelReadinessProbe(getClientListenedForwards(runningBuild, forwards), runningBuild.getBuildTempDirectory())
+                    .awaitReadiness(sshConnection::isAlive)) {
+                buildLogger.progressMessage(String.format("SSH Tunnel reconnected after %d ms of downtime", NANOSECONDS.toMillis(nanoTime() - lost)));
+                tunnelMetrics.reconnected(true);
+                establishedConnection.reconnects.incrementAndGet();
+                watch(runningBuild, connection, forwards, establishedConnection, sshConnection);
+                return;
+            }
+            if (!establishedConnection.detach(sshConnection)) {
+                return;
+            }
+            sshConnection.terminate(buildLogger);
+        } catch (InterruptedException ie) {
+            currentThread().interrupt();
+            return;
+        } catch (IOException | TimeoutException | RuntimeException e) {
+            buildLogger.warning(String.format("Reconnect attempt %d failed: %s", attempt, e.getMessage()));
+        }
+        if (attempt < reconnectAttempts) {
+            long reconnectDelay = SshEngine.getConfigParameter(runningBuild, SSH_RECONNECT_DELAY_CONFIGURATION_PARAMETER_NAME, DEFAULT_RECONNECT_DELAY);
+            // double the delay with each attempt, but not beyond the maximum unless the configured delay is larger already
+            long delay = min(reconnectDelay << min(attempt - 1, 16), max(reconnectDelay, MAX_RECONNECT_DELAY));
+            try {
+                establishedConnection.setPendingReconnect(reconnectScheduler.schedule(() -> {
+                    try {
+                        connectionExecutor.execute(() -> attemptReconnect(runningBuild, connection, forwards,
+                                establishedConnection, reconnectAttempts, attempt + 1, lost));
+                    } catch (RejectedExecutionException ree) {
+                        // the agent is shutting down
+                    }
+                }, delay, SECONDS));
+            } catch (RejectedExecutionException ree) {
+                // the agent is shutting down
+            }
+            return;
+        }
+        if (!establishedConnection.isClosed()) {
+            tunnelMetrics.reconnected(false);
+            buildLogger.error(String.format("SSH Tunnel is down since %d ms", NANOSECONDS.toMillis(nanoTime() - lost)));
+            runningBuild.getBuildLogger().buildFailureDescription(TUNNEL_LOST);
+            runningBuild.stopBuild(TUNNEL_LOST);
+        }
+    }
+
+    @Override
+    public void agentShutdown() {
+        reconnectScheduler.shutdownNow();
+        connectionExecutor.shutdownNow();
+    }
+
+    private SshEngine getSshEngine(@NotNull Connection connection) {
+        switch (connection.getSshEngine()) {
+            case EXECUTABLE_SSH_ENGINE_NAME:
+                return executableSshEngine;
+
+            case EMBEDDED_SSH_ENGINE_NAME:
+                return embeddedSshEngine;
+
+            default:
+                throw new AssertionError("missing case: " + connection.getSshEngine());
+        }
+    }
+
+    private static ExecutorService newConnectionExecutor() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor result = new ThreadPoolExecutor(
+                MAX_PARALLEL_CONNECTION_TASKS, MAX_PARALLEL_CONNECTION_TASKS,
+                1, MINUTES,
+                new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "SSH Tunnel Connection " + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        result.allowCoreThreadTimeOut(true);
+        return result;
+    }
+
     private List<SshTunnel> getSshTunnels(@NotNull AgentRunningBuild runningBuild) {
         return runningBuild.getBuildFeaturesOfType(BUILD_FEATURE_TYPE).stream()
                 .map(AgentBuildFeature::getParameters)
@@ -250,4 +709,303 @@ public class SshTunnelBuildFeatureAgentPart extends AgentLifeCycleAdapter implem
                 .map(ModelBuilder::buildSshTunnel)
                 .collect(toList());
     }
+
+    private static class EstablishedConnection {
+        private final List<SshTunnel> forwards;
+        private final FlowLogger flowLogger;
+        private SshConnection sshConnection;
+        private final AtomicInteger reconnects = new AtomicInteger();
+        private Future<?> pendingReconnect;
+        private boolean closed;
+        private boolean ready;
+        private long establishTime = -1;
+
+        public EstablishedConnection(@NotNull SshConnection sshConnection, @NotNull List<SshTunnel> forwards,
+                                     @NotNull FlowLogger flowLogger) {
+            this.sshConnection = sshConnection;
+            this.forwards = forwards;
+            this.flowLogger = flowLogger;
+        }
+
+        public synchronized boolean isClosed() {
+            return closed;
+        }
+
+        public synchronized boolean isReady() {
+            return ready;
+        }
+
+        public synchronized long getEstablishTime() {
+            return establishTime;
+        }
+
+        /**
+         * Marks this established connection as ready, unless it is closed already.
+         *
+         * @param establishTime the time in milliseconds the establishment took
+         * @return whether this established connection was marked as ready
+         */
+        public synchronized boolean markReady(long establishTime) {
+            if (closed) {
+                return false;
+            }
+            ready = true;
+            this.establishTime = establishTime;
+            return true;
+        }
+
+        @Nullable
+        public synchronized String getProcessId() {
+            return (sshConnection == null) ? null : sshConnection.getProcessId();
+        }
+
+        /**
+         * Takes the given connection out of this established connection, so that it can be reconnected.
+         *
+         * @param lostConnection the connection that was lost
+         * @return whether the caller is responsible for the given connection now
+         */
+        public synchronized boolean detach(@NotNull SshConnection lostConnection) {
+            if (closed || (sshConnection != lostConnection)) {
+                return false;
+            }
+            sshConnection = null;
+            return true;
+        }
+
+        /**
+         * Puts the given reconnected connection into this established connection.
+         *
+         * @param reconnectedConnection the reconnected connection
+         * @return whether the connection was put, if not the caller has to terminate it
+         */
+        public synchronized boolean replace(@NotNull SshConnection reconnectedConnection) {
+            if (closed) {
+                return false;
+            }
+            sshConnection = reconnectedConnection;
+            return true;
+        }
+
+        /**
+         * Remembers the given scheduled reconnect attempt, so that it is cancelled when this established connection
+         * is closed, or cancels it right away if this established connection is closed already.
+         *
+         * @param pendingReconnect the scheduled reconnect attempt
+         */
+        public synchronized void setPendingReconnect(@NotNull Future<?> pendingReconnect) {
+            if (closed) {
+                pendingReconnect.cancel(false);
+                return;
+            }
+            this.pendingReconnect = pendingReconnect;
+        }
+
+        /**
+         * Closes this established connection, so that it is not reconnected anymore.
+         *
+         * @return the current connection that has to be terminated, or {@code null} while it is reconnected
+         */
+        @Nullable
+        public synchronized SshConnection close() {
+            closed = true;
+            if (pendingReconnect != null) {
+                pendingReconnect.cancel(false);
+                pendingReconnect = null;
+            }
+            return sshConnection;
+        }
+    }
+
+    private static class Drain {
+        private static final long INITIAL_POLL_INTERVAL = 10;
+        private static final long MAX_POLL_INTERVAL = 500;
+
+        private final long deadline;
+        private final File workingDirectory;
+        private final AtomicInteger drained = new AtomicInteger();
+        private final AtomicInteger cut = new AtomicInteger();
+
+        /**
+         * Creates a drain phase for the connections of a build.
+         *
+         * @param deadline         the {@link System#nanoTime()} until which accepted connections are waited for
+         * @param workingDirectory the working directory of the SSH clients, relative local sockets are resolved against it
+         */
+        public Drain(long deadline, @NotNull File workingDirectory) {
+            this.deadline = deadline;
+            this.workingDirectory = workingDirectory;
+        }
+
+        /**
+         * Stops the given connection from accepting new connections and waits until the accepted ones
+         * are finished or the deadline is reached, whatever comes first.
+         */
+        public void drain(@NotNull SshConnection sshConnection, @NotNull List<SshTunnel> forwards,
+                          @NotNull FlowLogger buildLogger) {
+            try {
+                if (!sshConnection.stopAccepting()) {
+                    buildLogger.progressMessage("SSH Tunnel cannot refuse new connections, it still accepts them while draining");
+                }
+                ForwardConnectionCounter counter = new ForwardConnectionCounter(forwards, workingDirectory);
+                int accepted = counter.count();
+                int active = accepted;
+                long pollInterval = INITIAL_POLL_INTERVAL;
+                while ((active > 0) && sshConnection.isAlive()) {
+                    long remaining = NANOSECONDS.toMillis(deadline - nanoTime());
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    MILLISECONDS.sleep(min(pollInterval, remaining));
+                    pollInterval = min(pollInterval * 2, MAX_POLL_INTERVAL);
+                    active = counter.count();
+                }
+                // the connections still active at the deadline are cut by the termination, those still active
+                // when the carrier ended on its own were cut by that
+                int cutConnections = active;
+                int drainedConnections = max(accepted - active, 0);
+                drained.addAndGet(drainedConnections);
+                cut.addAndGet(cutConnections);
+                buildLogger.progressMessage(String.format("Drained %d connections, cut %d", drainedConnections, cutConnections));
+            } catch (InterruptedException ie) {
+                currentThread().interrupt();
+            } catch (IOException ioe) {
+                buildLogger.warning(String.format("Could not drain SSH Tunnel: %s", ioe.getMessage()));
+            }
+        }
+    }
+
+    private static class EstablishingConnection {
+        private final AgentRunningBuild runningBuild;
+        private final Connection connection;
+        private final List<SshTunnel> forwards;
+        private final FlowLogger flowLogger;
+        private final CompletableFuture<Boolean> result;
+        private final RetryPolicy retryPolicy;
+        private final boolean handshakeTimed;
+        private final long start = nanoTime();
+        private volatile boolean registered;
+
+        public EstablishingConnection(@NotNull AgentRunningBuild runningBuild, @NotNull Connection connection,
+                                      @NotNull List<SshTunnel> forwards, @NotNull FlowLogger flowLogger,
+                                      @NotNull CompletableFuture<Boolean> result) {
+            this.runningBuild = runningBuild;
+            this.connection = connection;
+            this.forwards = forwards;
+            this.flowLogger = flowLogger;
+            this.result = result;
+            retryPolicy = RetryPolicy.forForwards(forwards);
+            handshakeTimed = parseBoolean(runningBuild.getSharedConfigParameters().get(SSH_HANDSHAKE_TIMING_CONFIGURATION_PARAMETER_NAME));
+        }
+    }
+
+    private static class Establishment {
+        private final ExecutorService executor;
+        private final ScheduledExecutorService scheduler;
+        private final BlockingQueue<CompletableFuture<Boolean>> completedResults = new LinkedBlockingQueue<>();
+        private final List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        private final List<Future<?>> futures = new ArrayList<>();
+        private boolean cancelled;
+
+        public Establishment(@NotNull ExecutorService executor, @NotNull ScheduledExecutorService scheduler) {
+            this.executor = executor;
+            this.scheduler = scheduler;
+        }
+
+        /**
+         * Starts the given connection establishment, which has to complete the given result,
+         * possibly from a later attempt that it retries with {@link #retry(Runnable, CompletableFuture, long)}.
+         *
+         * @param connectionEstablishment the connection establishment to start
+         */
+        public synchronized void submit(@NotNull Consumer<CompletableFuture<Boolean>> connectionEstablishment) {
+            CompletableFuture<Boolean> result = new CompletableFuture<>();
+            result.whenComplete((established, throwable) -> completedResults.add(result));
+            results.add(result);
+            execute(() -> {
+                try {
+                    connectionEstablishment.accept(result);
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            }, result);
+        }
+
+        /**
+         * Executes the given attempt after the given delay unless this establishment was cancelled until then.
+         *
+         * @param attempt the attempt to execute
+         * @param result  the result of the connection establishment, completed if the attempt cannot be executed
+         * @param delay   the delay in milliseconds
+         */
+        public synchronized void retry(@NotNull Runnable attempt, @NotNull CompletableFuture<Boolean> result, long delay) {
+            if (cancelled) {
+                return;
+            }
+            try {
+                futures.add(scheduler.schedule(() -> execute(attempt, result), delay, MILLISECONDS));
+            } catch (RejectedExecutionException ree) {
+                // the agent is shutting down
+                result.complete(false);
+            }
+        }
+
+        private synchronized void execute(@NotNull Runnable task, @NotNull CompletableFuture<Boolean> result) {
+            if (cancelled) {
+                return;
+            }
+            futures.removeIf(Future::isDone);
+            try {
+                futures.add(executor.submit(task));
+            } catch (RejectedExecutionException ree) {
+                // the agent is shutting down
+                result.complete(false);
+            }
+        }
+
+        /**
+         * Waits for all connection establishments in completion order.
+         *
+         * @return {@code true} if all connections were established, {@code false} as soon as one was not
+         * @throws InterruptedException if the current thread was interrupted while waiting
+         */
+        public boolean awaitAll() throws InterruptedException {
+            int count;
+            synchronized (this) {
+                count = results.size();
+            }
+            for (int i = 0; i < count; i++) {
+                try {
+                    if (!completedResults.take().get()) {
+                        return false;
+                    }
+                } catch (ExecutionException ee) {
+                    Throwable cause = ee.getCause();
+                    throw new RuntimeException(cause.getMessage(), cause);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Executes the given registration of a started connection unless this establishment was cancelled already.
+         *
+         * @param registration the registration to execute
+         * @return whether the registration was executed
+         */
+        public synchronized boolean register(@NotNull Runnable registration) {
+            if (cancelled) {
+                return false;
+            }
+            registration.run();
+            return true;
+        }
+
+        public synchronized void cancel() {
+            cancelled = true;
+            futures.forEach(future -> future.cancel(true));
+            // establishments waiting for their next attempt are not running anymore to complete their result
+            results.forEach(result -> result.complete(false));
+        }
+    }
 }
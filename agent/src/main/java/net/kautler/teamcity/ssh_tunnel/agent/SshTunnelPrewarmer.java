@@ -0,0 +1,172 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import jetbrains.buildServer.agent.AgentLifeCycleAdapter;
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.BuildAgent;
+import jetbrains.buildServer.agent.BuildFinishedStatus;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Stream;
+
+import static java.lang.Integer.parseInt;
+import static java.lang.Long.parseLong;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+import static java.util.concurrent.Executors.newSingleThreadExecutor;
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.mapping;
+import static java.util.stream.Collectors.toList;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.EMBEDDED_SSH_ENGINE_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_PREWARM_MAX_CONNECTIONS_CONFIGURATION_PARAMETER_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_PREWARM_TARGETS_CONFIGURATION_PARAMETER_NAME;
+
+/**
+ * Prepares connections to the SSH targets the server sends along with each starting build, which are the targets
+ * of the queued builds of the same project that are already assigned to this agent.
+ * As the SSH keys are only available within a build, this only covers the key exchange of embedded engine sessions
+ * and keeping pooled connections to the targets alive. The targets of a queued build expire with the next build start
+ * that does not list it anymore, except for the started build itself, whose targets are kept until it finished.
+ * Sessions the server closed are not reopened.
+ */
+public class SshTunnelPrewarmer extends AgentLifeCycleAdapter implements InitializingBean {
+    private static final Logger LOG = LoggerFactory.getLogger(Loggers.AGENT_CATEGORY + '.' + SshTunnelPrewarmer.class.getName());
+
+    @NotNull
+    private final EventDispatcher<AgentLifeCycleListener> agentLifeCycleEventDispatcher;
+
+    @NotNull
+    private final EmbeddedSshEngine embeddedSshEngine;
+
+    @NotNull
+    private final SshConnectionPool sshConnectionPool;
+
+    private ExecutorService prewarmExecutor;
+    private int maxConnections;
+    private Map<Long, List<List<String>>> queuedTargets = emptyMap();
+    private List<List<String>> startedTargets = emptyList();
+
+    public SshTunnelPrewarmer(@NotNull EventDispatcher<AgentLifeCycleListener> agentLifeCycleEventDispatcher,
+                              @NotNull EmbeddedSshEngine embeddedSshEngine,
+                              @NotNull SshConnectionPool sshConnectionPool) {
+        this.agentLifeCycleEventDispatcher = agentLifeCycleEventDispatcher;
+        this.embeddedSshEngine = embeddedSshEngine;
+        this.sshConnectionPool = sshConnectionPool;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        agentLifeCycleEventDispatcher.addListener(this);
+    }
+
+    @Override
+    public synchronized void agentStarted(@NotNull BuildAgent agent) {
+        String maxConnectionsValue = agent.getConfiguration().getConfigurationParameters().getOrDefault(SSH_PREWARM_MAX_CONNECTIONS_CONFIGURATION_PARAMETER_NAME, "0");
+        try {
+            maxConnections = parseInt(maxConnectionsValue.trim());
+        } catch (NumberFormatException nfe) {
+            LOG.warn("Invalid value '{}' for '{}', SSH tunnel prewarming is disabled", maxConnectionsValue, SSH_PREWARM_MAX_CONNECTIONS_CONFIGURATION_PARAMETER_NAME);
+            return;
+        }
+        if (maxConnections <= 0) {
+            return;
+        }
+        prewarmExecutor = newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SSH Tunnel Prewarming");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public synchronized void buildStarted(@NotNull AgentRunningBuild runningBuild) {
+        if (prewarmExecutor == null) {
+            return;
+        }
+        Map<Long, List<List<String>>> previousTargets = queuedTargets;
+        String targetsValue = runningBuild.getSharedConfigParameters().getOrDefault(SSH_PREWARM_TARGETS_CONFIGURATION_PARAMETER_NAME, "");
+        try {
+            queuedTargets = asList(targetsValue.split("\n")).stream()
+                    .map(line -> asList(line.split("\t")))
+                    .filter(target -> target.size() == 5)
+                    .collect(groupingBy(target -> parseLong(target.get(0)), mapping(target -> target.subList(1, 5), toList())));
+        } catch (NumberFormatException nfe) {
+            LOG.debug("Invalid SSH tunnel prewarming targets '{}'", targetsValue, nfe);
+            queuedTargets = emptyMap();
+        }
+        // the sessions prewarmed for the starting build are picked up while it is prepared, but not renewed
+        startedTargets = previousTargets.getOrDefault(runningBuild.getBuildId(), emptyList());
+
+        List<List<String>> retainedTargets = Stream.concat(allQueuedTargets().stream(), startedTargets.stream())
+                .collect(toList());
+        List<List<String>> newTargets = queuedTargets.entrySet().stream()
+                .flatMap(buildTargets -> buildTargets.getValue().stream()
+                        .filter(target -> !previousTargets.getOrDefault(buildTargets.getKey(), emptyList()).contains(target)))
+                .collect(toList());
+        List<List<String>> renewedTargets = allQueuedTargets();
+        prewarmExecutor.execute(() -> {
+            embeddedSshEngine.retainPrewarmed(embeddedTargets(retainedTargets));
+            embeddedSshEngine.prewarm(embeddedTargets(newTargets), maxConnections);
+            sshConnectionPool.refresh(renewedTargets.stream()
+                    .map(target -> target.subList(1, 4))
+                    .collect(toList()));
+        });
+    }
+
+    @Override
+    public synchronized void buildFinished(@NotNull AgentRunningBuild build, @NotNull BuildFinishedStatus buildStatus) {
+        if ((prewarmExecutor == null) || startedTargets.isEmpty()) {
+            return;
+        }
+        startedTargets = emptyList();
+        List<List<String>> retainedTargets = allQueuedTargets();
+        prewarmExecutor.execute(() -> embeddedSshEngine.retainPrewarmed(embeddedTargets(retainedTargets)));
+    }
+
+    @Override
+    public synchronized void agentShutdown() {
+        if (prewarmExecutor != null) {
+            prewarmExecutor.shutdownNow();
+            prewarmExecutor = null;
+        }
+    }
+
+    private List<List<String>> allQueuedTargets() {
+        return queuedTargets.values().stream()
+                .flatMap(List::stream)
+                .collect(toList());
+    }
+
+    private static List<List<String>> embeddedTargets(Collection<List<String>> targets) {
+        return targets.stream()
+                .filter(target -> target.get(0).equals(EMBEDDED_SSH_ENGINE_NAME))
+                .map(target -> target.subList(1, 4))
+                .collect(toList());
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import jetbrains.buildServer.agent.AgentLifeCycleAdapter;
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.BuildAgent;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static jetbrains.buildServer.util.StringUtil.isEmptyOrSpaces;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_METRICS_TEXTFILE_CONFIGURATION_PARAMETER_NAME;
+
+/**
+ * Agent-wide metrics of the tunnels of all builds, so that a degrading bastion can be noticed across agents
+ * instead of only in single build logs. They are published as MXBean and, if configured, written to a textfile
+ * in the Prometheus exposition format periodically, e.g. for the textfile collector of the node exporter.
+ */
+public class TunnelMetrics extends AgentLifeCycleAdapter implements TunnelMetricsMXBean, InitializingBean {
+    private static final Logger LOG = LoggerFactory.getLogger(Loggers.AGENT_CATEGORY + '.' + TunnelMetrics.class.getName());
+    private static final String OBJECT_NAME = "net.kautler.teamcity.ssh_tunnel:type=TunnelMetrics";
+    private static final String METRIC_PREFIX = "teamcity_ssh_tunnel_";
+    private static final long TEXTFILE_INTERVAL = 15;
+    private static final double[] ESTABLISHMENT_BUCKETS = {0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+    private static final double[] TEARDOWN_BUCKETS = {0.1, 0.5, 1, 2.5, 5, 10, 30, 60, 120};
+
+    @NotNull
+    private final EventDispatcher<AgentLifeCycleListener> agentLifeCycleEventDispatcher;
+
+    @NotNull
+    private final BuildAgentConfiguration agentConfiguration;
+
+    private final AtomicInteger activeTunnels = new AtomicInteger();
+    private final Histogram establishmentLatency = new Histogram(ESTABLISHMENT_BUCKETS);
+    private final ConcurrentMap<String, AtomicLong> establishmentFailures = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> reconnects = new ConcurrentHashMap<>();
+    private final Histogram teardownDuration = new Histogram(TEARDOWN_BUCKETS);
+    private final AtomicLong sshDetectionTime = new AtomicLong(-1);
+    private ScheduledExecutorService textfileExecutor;
+
+    public TunnelMetrics(@NotNull EventDispatcher<AgentLifeCycleListener> agentLifeCycleEventDispatcher,
+                         @NotNull BuildAgentConfiguration agentConfiguration) {
+        this.agentLifeCycleEventDispatcher = agentLifeCycleEventDispatcher;
+        this.agentConfiguration = agentConfiguration;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        agentLifeCycleEventDispatcher.addListener(this);
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(OBJECT_NAME);
+            // a previous instance stays registered if the plugin is reloaded without restarting the JVM
+            if (mBeanServer.isRegistered(objectName)) {
+                mBeanServer.unregisterMBean(objectName);
+            }
+            mBeanServer.registerMBean(this, objectName);
+        } catch (JMException | RuntimeException e) {
+            LOG.warn("Could not register the SSH Tunnel metrics MBean", e);
+        }
+    }
+
+    @Override
+    public synchronized void agentStarted(@NotNull BuildAgent agent) {
+        String textfile = agentConfiguration.getConfigurationParameters().get(SSH_METRICS_TEXTFILE_CONFIGURATION_PARAMETER_NAME);
+        if (isEmptyOrSpaces(textfile)) {
+            return;
+        }
+        Path textfilePath = Paths.get(textfile.trim());
+        textfileExecutor = newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SSH Tunnel Metrics Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        textfileExecutor.scheduleWithFixedDelay(() -> writeTextfile(textfilePath), 0, TEXTFILE_INTERVAL, SECONDS);
+    }
+
+    @Override
+    public synchronized void agentShutdown() {
+        if (textfileExecutor != null) {
+            textfileExecutor.shutdownNow();
+            textfileExecutor = null;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (JMException | RuntimeException e) {
+            LOG.debug("Could not unregister the SSH Tunnel metrics MBean", e);
+        }
+    }
+
+    /**
+     * Records that the given number of tunnels became ready after the given time.
+     *
+     * @param tunnels      the number of tunnels, that is forwards, that became ready
+     * @param latencyNanos the time the establishment took in nanoseconds
+     */
+    public void tunnelsEstablished(int tunnels, long latencyNanos) {
+        activeTunnels.addAndGet(tunnels);
+        establishmentLatency.record(latencyNanos);
+    }
+
+    /**
+     * Records that the given number of ready tunnels was terminated.
+     *
+     * @param tunnels the number of tunnels, that is forwards, that were terminated
+     */
+    public void tunnelsTerminated(int tunnels) {
+        activeTunnels.addAndGet(-tunnels);
+    }
+
+    /**
+     * Records a failed attempt to establish a tunnel, classified by the given failure.
+     *
+     * @param failure the failure of the attempt
+     */
+    public void establishmentFailed(@NotNull Exception failure) {
+        String cause;
+        if (failure instanceof PermanentSshException) {
+            cause = "permanent";
+        } else if ((failure instanceof TimeoutException) || (failure instanceof SocketTimeoutException)) {
+            cause = "timeout";
+        } else if (failure instanceof ConnectException) {
+            cause = "refused";
+        } else {
+            cause = "io";
+        }
+        establishmentFailures.computeIfAbsent(cause, key -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * Records the outcome of reconnecting a lost tunnel.
+     *
+     * @param successful whether the tunnel was reconnected
+     */
+    public void reconnected(boolean successful) {
+        reconnects.computeIfAbsent(successful ? "success" : "failure", key -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * Records the time the termination of the tunnels of a build took.
+     *
+     * @param durationNanos the time the termination took in nanoseconds
+     */
+    public void tunnelsTornDown(long durationNanos) {
+        teardownDuration.record(durationNanos);
+    }
+
+    /**
+     * Records the time the detection of the {@code ssh} client tool took.
+     *
+     * @param durationNanos the time the detection took in nanoseconds
+     */
+    public void sshDetected(long durationNanos) {
+        sshDetectionTime.set(NANOSECONDS.toMillis(durationNanos));
+    }
+
+    @Override
+    public int getActiveTunnels() {
+        return activeTunnels.get();
+    }
+
+    @Override
+    public long getEstablishedTunnels() {
+        return establishmentLatency.getCount();
+    }
+
+    @Override
+    public double getEstablishmentLatencyMean() {
+        return establishmentLatency.getMeanMillis();
+    }
+
+    @Override
+    public Map<String, Long> getEstablishmentLatencyBuckets() {
+        return establishmentLatency.getBuckets();
+    }
+
+    @Override
+    public Map<String, Long> getEstablishmentFailures() {
+        return toMap(establishmentFailures);
+    }
+
+    @Override
+    public Map<String, Long> getReconnects() {
+        return toMap(reconnects);
+    }
+
+    @Override
+    public double getTeardownDurationMean() {
+        return teardownDuration.getMeanMillis();
+    }
+
+    @Override
+    public Map<String, Long> getTeardownDurationBuckets() {
+        return teardownDuration.getBuckets();
+    }
+
+    @Override
+    public long getSshDetectionTime() {
+        return sshDetectionTime.get();
+    }
+
+    @Override
+    public String getPrometheusText() {
+        StringBuilder result = new StringBuilder();
+        appendMetric(result, "active_tunnels", "gauge", "Tunnels that are currently established");
+        appendSample(result, "active_tunnels", "", activeTunnels.get());
+        establishmentLatency.append(result, "establishment_seconds", "Time until tunnels were ready");
+        appendMetric(result, "establishment_failures_total", "counter", "Failed attempts to establish tunnels by cause");
+        establishmentFailures.forEach((cause, count) -> appendSample(result, "establishment_failures_total", label("cause", cause), count.get()));
+        appendMetric(result, "reconnects_total", "counter", "Reconnects of lost tunnels by outcome");
+        reconnects.forEach((outcome, count) -> appendSample(result, "reconnects_total", label("outcome", outcome), count.get()));
+        teardownDuration.append(result, "teardown_seconds", "Time the termination of the tunnels of a build took");
+        if (sshDetectionTime.get() >= 0) {
+            appendMetric(result, "ssh_detection_seconds", "gauge", "Time the detection of the ssh client tool took");
+            appendSample(result, "ssh_detection_seconds", "", sshDetectionTime.get() / 1000.0);
+        }
+        return result.toString();
+    }
+
+    private void writeTextfile(@NotNull Path textfile) {
+        try {
+            // the collector must never read a partially written file, so write a sibling and move it over atomically
+            Path temporaryFile = textfile.resolveSibling(textfile.getFileName() + ".tmp");
+            Files.write(temporaryFile, getPrometheusText().getBytes(UTF_8));
+            Files.move(temporaryFile, textfile, ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not write the SSH Tunnel metrics to {}", textfile, e);
+        }
+    }
+
+    @NotNull
+    private static Map<String, Long> toMap(@NotNull Map<String, AtomicLong> counters) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        counters.forEach((key, counter) -> result.put(key, counter.get()));
+        return result;
+    }
+
+    private static void appendMetric(@NotNull StringBuilder result, @NotNull String name, @NotNull String type, @NotNull String help) {
+        result.append("# HELP ").append(METRIC_PREFIX).append(name).append(' ').append(help).append('\n');
+        result.append("# TYPE ").append(METRIC_PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void appendSample(@NotNull StringBuilder result, @NotNull String name, @NotNull String labels, @NotNull Number value) {
+        result.append(METRIC_PREFIX).append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    @NotNull
+    private static String label(@NotNull String name, @NotNull String value) {
+        return String.format("{%s=\"%s\"}", name, value.replace("\\", "\\\\").replace("\"", "\\\""));
+    }
+
+    private static class Histogram {
+        private final double[] bounds;
+        private final long[] counts;
+        private long count;
+        private double sum;
+
+        public Histogram(@NotNull double[] bounds) {
+            this.bounds = bounds;
+            counts = new long[bounds.length];
+        }
+
+        public synchronized void record(long durationNanos) {
+            double seconds = durationNanos / 1e9;
+            for (int i = 0; i < bounds.length; i++) {
+                if (seconds <= bounds[i]) {
+                    counts[i]++;
+                }
+            }
+            count++;
+            sum += seconds;
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized double getMeanMillis() {
+            return (count == 0) ? 0 : sum * 1000 / count;
+        }
+
+        @NotNull
+        public synchronized Map<String, Long> getBuckets() {
+            Map<String, Long> result = new LinkedHashMap<>();
+            for (int i = 0; i < bounds.length; i++) {
+                result.put(formatBound(bounds[i]), counts[i]);
+            }
+            result.put("+Inf", count);
+            return result;
+        }
+
+        public synchronized void append(@NotNull StringBuilder result, @NotNull String name, @NotNull String help) {
+            appendMetric(result, name, "histogram", help);
+            getBuckets().forEach((bound, bucketCount) -> appendSample(result, name + "_bucket", label("le", bound), bucketCount));
+            appendSample(result, name + "_sum", "", sum);
+            appendSample(result, name + "_count", "", count);
+        }
+
+        @NotNull
+        private static String formatBound(double bound) {
+            return (bound == Math.rint(bound)) ? String.format(Locale.ROOT, "%.1f", bound) : String.valueOf(bound);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import net.kautler.teamcity.ssh_tunnel.common.model.AddressPortPart;
+import net.kautler.teamcity.ssh_tunnel.common.model.Part;
+import net.kautler.teamcity.ssh_tunnel.common.model.SocketPart;
+import net.kautler.teamcity.ssh_tunnel.common.model.SshTunnel;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+
+import static java.lang.Integer.parseInt;
+import static java.lang.Math.min;
+import static java.lang.System.nanoTime;
+import static java.lang.Thread.sleep;
+import static java.net.InetAddress.getLoopbackAddress;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+public class TunnelReadinessProbe {
+    private static final long INITIAL_POLL_INTERVAL = 10;
+    private static final long MAX_POLL_INTERVAL = 500;
+    private static final int CONNECT_TIMEOUT = 200;
+    static final List<String> WILDCARD_ADDRESSES = asList("", "*", "0.0.0.0", "::", "[::]");
+
+    @NotNull
+    private final Collection<SshTunnel> forwards;
+
+    @NotNull
+    private final File workingDirectory;
+
+    /**
+     * Creates a readiness probe for the given forwards.
+     *
+     * @param forwards         the forwards to probe
+     * @param workingDirectory the working directory of the SSH client, relative local sockets are resolved against it
+     */
+    public TunnelReadinessProbe(@NotNull Collection<SshTunnel> forwards, @NotNull File workingDirectory) {
+        this.forwards = forwards;
+        this.workingDirectory = workingDirectory;
+    }
+
+    /**
+     * Polls the local parts of all forwards with exponential back-off until all of them accept connections.
+     *
+     * @param carrierAlive whether the carrier connection is still alive, checked before each poll
+     * @return {@code true} if all forwards became ready, {@code false} if the carrier connection died before
+     * @throws InterruptedException if the current thread was interrupted while waiting
+     * @throws TimeoutException     if a forward did not become ready within its establish timeout
+     */
+    public boolean awaitReadiness(@NotNull BooleanSupplier carrierAlive) throws InterruptedException, TimeoutException {
+        long start = nanoTime();
+        List<SshTunnel> pendingForwards = new ArrayList<>(forwards);
+        long pollInterval = INITIAL_POLL_INTERVAL;
+        while (true) {
+            if (!carrierAlive.getAsBoolean()) {
+                return false;
+            }
+            long elapsed = nanoTime() - start;
+            for (Iterator<SshTunnel> iterator = pendingForwards.iterator(); iterator.hasNext(); ) {
+                SshTunnel forward = iterator.next();
+                if (isReady(forward.getLocalPart())) {
+                    iterator.remove();
+                } else if (elapsed >= SECONDS.toNanos(parseInt(forward.getEstablishTimeout()))) {
+                    throw new TimeoutException(String.format("Forward '%#s' did not become ready within %s seconds",
+                            forward, forward.getEstablishTimeout()));
+                }
+            }
+            if (pendingForwards.isEmpty()) {
+                return true;
+            }
+            sleep(pollInterval);
+            pollInterval = min(pollInterval * 2, MAX_POLL_INTERVAL);
+        }
+    }
+
+    private boolean isReady(@NotNull Part localPart) {
+        if (localPart instanceof AddressPortPart) {
+            AddressPortPart addressPortPart = (AddressPortPart) localPart;
+            InetSocketAddress address = WILDCARD_ADDRESSES.contains(addressPortPart.getAddress())
+                    ? new InetSocketAddress(getLoopbackAddress(), addressPortPart.getPort())
+                    : new InetSocketAddress(addressPortPart.getAddress(), addressPortPart.getPort());
+            try (Socket socket = new Socket()) {
+                socket.connect(address, CONNECT_TIMEOUT);
+                return true;
+            } catch (IOException ioe) {
+                return false;
+            }
+        } else if (localPart instanceof SocketPart) {
+            // Java 8 cannot connect to Unix domain sockets, but the SSH client
+            // only creates the socket file once it is listening on it
+            File socket = new File(((SocketPart) localPart).getSocket());
+            if (!socket.isAbsolute()) {
+                socket = new File(workingDirectory, socket.getPath());
+            }
+            return socket.exists();
+        } else {
+            throw new AssertionError("missing case: " + localPart.getClass());
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import jetbrains.buildServer.agent.AgentLifeCycleAdapter;
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.BuildAgent;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.agent.BuildFinishedStatus;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.ssh.AskPassGenerator;
+import jetbrains.buildServer.ssh.AskPassGeneratorUnix;
+import jetbrains.buildServer.ssh.AskPassGeneratorWin;
+import jetbrains.buildServer.ssh.TeamCitySshKey;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.attribute.PosixFilePermissions.asFileAttribute;
+import static java.nio.file.attribute.PosixFilePermissions.fromString;
+import static jetbrains.buildServer.util.StringUtil.isEmptyOrSpaces;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_WORKSPACE_DIRECTORY_CONFIGURATION_PARAMETER_NAME;
+
+/**
+ * The directories the credential files of the {@code ssh} client tool processes are written to, one per build.
+ * They are below the configured workspace directory, e.g. a memory-backed file system like {@code /dev/shm},
+ * or below the build temp directory if none is configured. Each distinct key and passphrase is only written once
+ * while processes of the build use it, readable only by the agent user, and deleted as soon as the last process
+ * using it is authenticated. The directory of a build is deleted when the build finished, the workspace of the
+ * agent is additionally deleted when the agent starts, in case a previous agent process crashed.
+ */
+public class TunnelWorkspace extends AgentLifeCycleAdapter implements InitializingBean {
+    private static final Logger LOG = LoggerFactory.getLogger(Loggers.AGENT_CATEGORY + '.' + TunnelWorkspace.class.getName());
+    private static final String WORKSPACE_DIRECTORY_PREFIX = "ssh-tunnel-";
+    private static final String BUILD_TEMP_WORKSPACE_DIRECTORY_NAME = "ssh-tunnel";
+
+    @NotNull
+    private final EventDispatcher<AgentLifeCycleListener> agentLifeCycleEventDispatcher;
+
+    @NotNull
+    private final BuildAgentConfiguration agentConfiguration;
+
+    private final Map<AgentRunningBuild, BuildWorkspace> buildWorkspaces = new HashMap<>();
+
+    public TunnelWorkspace(@NotNull EventDispatcher<AgentLifeCycleListener> agentLifeCycleEventDispatcher,
+                           @NotNull BuildAgentConfiguration agentConfiguration) {
+        this.agentLifeCycleEventDispatcher = agentLifeCycleEventDispatcher;
+        this.agentConfiguration = agentConfiguration;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        agentLifeCycleEventDispatcher.addListener(this);
+    }
+
+    @Override
+    public void agentStarted(@NotNull BuildAgent agent) {
+        File agentWorkspace = getAgentWorkspace();
+        if ((agentWorkspace != null) && agentWorkspace.exists()) {
+            LOG.info("Deleting leftover SSH tunnel workspace '{}'", agentWorkspace);
+            FileUtil.delete(agentWorkspace);
+        }
+    }
+
+    @Override
+    public void agentShutdown() {
+        File agentWorkspace = getAgentWorkspace();
+        if (agentWorkspace != null) {
+            FileUtil.delete(agentWorkspace);
+        }
+    }
+
+    @Override
+    public void buildFinished(@NotNull AgentRunningBuild build, @NotNull BuildFinishedStatus buildStatus) {
+        BuildWorkspace buildWorkspace;
+        synchronized (buildWorkspaces) {
+            buildWorkspace = buildWorkspaces.remove(build);
+        }
+        if (buildWorkspace != null) {
+            FileUtil.delete(buildWorkspace.directory);
+        }
+    }
+
+    /**
+     * Returns the directory the credential files of the given build are written to,
+     * to be used as working directory of the {@code ssh} client tool processes.
+     *
+     * @param runningBuild the build to return the directory for
+     * @return the directory the credential files of the build are written to
+     * @throws IOException if the directory could not be created
+     */
+    @NotNull
+    public File getDirectory(@NotNull AgentRunningBuild runningBuild) throws IOException {
+        return getBuildWorkspace(runningBuild).directory;
+    }
+
+    /**
+     * Acquires a file containing the given private key.
+     *
+     * @param runningBuild the build the key is used in
+     * @param sshKey       the key to write
+     * @return the acquired file, which has to be released when it is not necessary anymore
+     * @throws IOException if the file could not be written
+     */
+    @NotNull
+    public CredentialFile acquireKeyFile(@NotNull AgentRunningBuild runningBuild, @NotNull TeamCitySshKey sshKey) throws IOException {
+        BuildWorkspace buildWorkspace = getBuildWorkspace(runningBuild);
+        String id = "key-" + SshConnectionPool.getKeyFingerprint(sshKey.getPrivateKey()).substring(0, 16);
+        return buildWorkspace.acquire(id, () -> {
+            Path keyFile = buildWorkspace.directory.toPath().resolve(id);
+            Files.deleteIfExists(keyFile);
+            Files.createFile(keyFile, getOwnerOnlyAttributes("rw-------"));
+            try (OutputStream out = Files.newOutputStream(keyFile)) {
+                out.write(sshKey.getPrivateKey());
+            }
+            return keyFile.toFile();
+        });
+    }
+
+    /**
+     * Acquires an askpass script that answers with the given passphrase.
+     *
+     * @param runningBuild the build the passphrase is used in
+     * @param passphrase   the passphrase to answer with
+     * @return the acquired file, which has to be released when it is not necessary anymore
+     * @throws IOException if the file could not be written
+     */
+    @NotNull
+    public CredentialFile acquireAskPassFile(@NotNull AgentRunningBuild runningBuild, @NotNull String passphrase) throws IOException {
+        BuildWorkspace buildWorkspace = getBuildWorkspace(runningBuild);
+        String id = "askpass-" + SshConnectionPool.getKeyFingerprint(passphrase.getBytes(UTF_8)).substring(0, 16);
+        return buildWorkspace.acquire(id, () -> {
+            AskPassGenerator askPassGenerator = agentConfiguration.getSystemInfo().isWindows() ? new AskPassGeneratorWin() : new AskPassGeneratorUnix();
+            File askPassFile = askPassGenerator.generate(buildWorkspace.directory, passphrase);
+            if (isPosix()) {
+                // the script has to stay executable
+                Files.setPosixFilePermissions(askPassFile.toPath(), fromString("rwx------"));
+            }
+            return askPassFile;
+        });
+    }
+
+    @NotNull
+    private BuildWorkspace getBuildWorkspace(@NotNull AgentRunningBuild runningBuild) throws IOException {
+        synchronized (buildWorkspaces) {
+            BuildWorkspace buildWorkspace = buildWorkspaces.get(runningBuild);
+            if ((buildWorkspace == null) || !buildWorkspace.directory.isDirectory()) {
+                File agentWorkspace = getAgentWorkspace();
+                File directory = (agentWorkspace == null)
+                        ? new File(runningBuild.getBuildTempDirectory(), BUILD_TEMP_WORKSPACE_DIRECTORY_NAME)
+                        : new File(agentWorkspace, String.valueOf(runningBuild.getBuildId()));
+                if (agentWorkspace != null) {
+                    createOwnerOnlyDirectory(agentWorkspace.toPath());
+                }
+                createOwnerOnlyDirectory(directory.toPath());
+                buildWorkspace = new BuildWorkspace(directory);
+                buildWorkspaces.put(runningBuild, buildWorkspace);
+            }
+            return buildWorkspace;
+        }
+    }
+
+    /**
+     * Returns the workspace of this agent below the configured workspace directory.
+     * Several agents might be installed on one host, so each agent has its own workspace.
+     *
+     * @return the workspace of this agent or {@code null} if no workspace directory is configured
+     */
+    @Nullable
+    private File getAgentWorkspace() {
+        String workspaceDirectory = agentConfiguration.getConfigurationParameters().get(SSH_WORKSPACE_DIRECTORY_CONFIGURATION_PARAMETER_NAME);
+        if (isEmptyOrSpaces(workspaceDirectory)) {
+            return null;
+        }
+        return new File(workspaceDirectory.trim(), WORKSPACE_DIRECTORY_PREFIX
+                + SshConnectionPool.getKeyFingerprint(agentConfiguration.getName().getBytes(UTF_8)).substring(0, 16));
+    }
+
+    private static void createOwnerOnlyDirectory(@NotNull Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            Files.createDirectories(directory, getOwnerOnlyAttributes("rwx------"));
+        }
+    }
+
+    private static FileAttribute<?>[] getOwnerOnlyAttributes(@NotNull String permissions) {
+        return isPosix() ? new FileAttribute<?>[]{ asFileAttribute(fromString(permissions)) } : new FileAttribute<?>[0];
+    }
+
+    private static boolean isPosix() {
+        return FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    }
+
+    @FunctionalInterface
+    private interface FileWriter {
+        @NotNull
+        File write() throws IOException;
+    }
+
+    private static class BuildWorkspace {
+        private final File directory;
+        private final Map<String, SharedFile> sharedFiles = new HashMap<>();
+
+        public BuildWorkspace(@NotNull File directory) {
+            this.directory = directory;
+        }
+
+        @NotNull
+        public synchronized CredentialFile acquire(@NotNull String id, @NotNull FileWriter writer) throws IOException {
+            SharedFile sharedFile = sharedFiles.get(id);
+            if ((sharedFile == null) || !sharedFile.file.exists()) {
+                sharedFile = new SharedFile(writer.write());
+                sharedFiles.put(id, sharedFile);
+            }
+            sharedFile.references++;
+            SharedFile acquiredFile = sharedFile;
+            return new CredentialFile(acquiredFile.file, () -> release(id, acquiredFile));
+        }
+
+        private synchronized void release(@NotNull String id, @NotNull SharedFile sharedFile) {
+            if (--sharedFile.references == 0) {
+                sharedFiles.remove(id, sharedFile);
+                FileUtil.delete(sharedFile.file);
+            }
+        }
+    }
+
+    private static class SharedFile {
+        private final File file;
+        private int references;
+
+        public SharedFile(@NotNull File file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * A credential file that is shared by the processes of a build and deleted when the last one released it.
+     */
+    public static class CredentialFile {
+        @NotNull
+        private final File file;
+
+        @NotNull
+        private final Runnable release;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private CredentialFile(@NotNull File file, @NotNull Runnable release) {
+            this.file = file;
+            this.release = release;
+        }
+
+        @NotNull
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Releases this file, it is deleted once no process of the build uses it anymore.
+         * Releasing a file more than once has no effect.
+         */
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                release.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import net.kautler.teamcity.ssh_tunnel.agent.HandshakeTiming.Phase;
+import org.junit.jupiter.api.Test;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptySet;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HandshakeTimingTest {
+    @Test
+    void phasesAreRecognizedFromSshDebugOutput() {
+        HandshakeTiming handshakeTiming = new HandshakeTiming();
+        assertFalse(handshakeTiming.record("debug1: Reading configuration data /etc/ssh/ssh_config"));
+        assertFalse(handshakeTiming.record("debug1: Connecting to example.com [192.0.2.1] port 22."));
+        assertFalse(handshakeTiming.record("debug1: Connection established."));
+        assertFalse(handshakeTiming.record("debug1: Local version string SSH-2.0-OpenSSH_8.9p1"));
+        assertFalse(handshakeTiming.record("debug1: Server host key: ssh-ed25519 SHA256:4ZgGeF6Tb1ZPsPkXt6m3k5d9HOqYQyH8JyZ0lq7m2vE"));
+        assertFalse(handshakeTiming.record("debug1: Host 'example.com' is known and matches the ED25519 host key."));
+        assertTrue(handshakeTiming.record("debug1: Authenticated to example.com ([192.0.2.1]:22) using \"publickey\"."));
+
+        assertEquals(asList(Phase.DNS, Phase.TCP_CONNECT, Phase.KEY_EXCHANGE, Phase.HOST_KEY_VERIFICATION, Phase.AUTHENTICATION),
+                asList(handshakeTiming.getDurations().keySet().toArray()));
+    }
+
+    @Test
+    void newKeysMarkTheEndOfTheHostKeyVerification() {
+        HandshakeTiming handshakeTiming = new HandshakeTiming();
+        handshakeTiming.record("debug1: SSH2_MSG_NEWKEYS sent");
+
+        assertEquals(asList(Phase.HOST_KEY_VERIFICATION), asList(handshakeTiming.getDurations().keySet().toArray()));
+    }
+
+    @Test
+    void olderAuthenticationMessageIsRecognized() {
+        assertTrue(new HandshakeTiming().record("debug1: Authentication succeeded (publickey)."));
+    }
+
+    @Test
+    void unrelatedOutputRecordsNoPhase() {
+        HandshakeTiming handshakeTiming = new HandshakeTiming();
+        handshakeTiming.record("debug1: Reading configuration data /etc/ssh/ssh_config");
+        handshakeTiming.record("debug1: channel 0: new [port listener]");
+        handshakeTiming.record("debug1: Requesting no-more-sessions@openssh.com");
+
+        assertEquals(emptySet(), handshakeTiming.getDurations().keySet());
+    }
+
+    @Test
+    void statisticValuesAreKeyedByPhase() {
+        HandshakeTiming handshakeTiming = new HandshakeTiming();
+        handshakeTiming.phaseEnded(Phase.TCP_CONNECT);
+        handshakeTiming.phaseEnded(Phase.AUTHENTICATION);
+
+        assertEquals(asList("sshTunnel.db.handshake.tcpConnect", "sshTunnel.db.handshake.authentication"),
+                asList(handshakeTiming.getStatisticValues("sshTunnel.db.").keySet().toArray()));
+    }
+}
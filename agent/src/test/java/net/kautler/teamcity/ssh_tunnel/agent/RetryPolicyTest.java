@@ -0,0 +1,81 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import org.junit.jupiter.api.Test;
+
+import static java.lang.Math.min;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RetryPolicyTest {
+    private static final int SAMPLES = 1_000;
+
+    @Test
+    void delaysStayWithinTheExponentialBoundOfEachAttempt() {
+        RetryPolicy retryPolicy = new RetryPolicy(30, 0);
+        for (int failedAttempts = 1; failedAttempts < 30; failedAttempts++) {
+            long bound = min(30_000, 500L << min(failedAttempts - 1, 16));
+            for (int i = 0; i < SAMPLES; i++) {
+                long delay = retryPolicy.getDelay(failedAttempts, 0);
+                assertTrue((delay >= 0) && (delay <= bound),
+                        String.format("delay %d after %d failed attempts is not within [0, %d]", delay, failedAttempts, bound));
+            }
+        }
+    }
+
+    @Test
+    void delaysAreSpreadOverTheWholeRange() {
+        RetryPolicy retryPolicy = new RetryPolicy(10, 0);
+        long bound = 500L << 4;
+        boolean lowerHalf = false;
+        boolean upperHalf = false;
+        for (int i = 0; i < SAMPLES; i++) {
+            long delay = retryPolicy.getDelay(5, 0);
+            lowerHalf |= delay < (bound / 2);
+            upperHalf |= delay >= (bound / 2);
+        }
+        assertTrue(lowerHalf, "no delay in the lower half of the range");
+        assertTrue(upperHalf, "no delay in the upper half of the range");
+    }
+
+    @Test
+    void noFurtherAttemptOnceTheAttemptsAreExhausted() {
+        RetryPolicy retryPolicy = new RetryPolicy(3, 0);
+        assertEquals(-1, retryPolicy.getDelay(3, 0));
+        assertEquals(-1, retryPolicy.getDelay(4, 0));
+    }
+
+    @Test
+    void noFurtherAttemptAtTheDeadline() {
+        RetryPolicy retryPolicy = new RetryPolicy(10, 1_000);
+        assertEquals(-1, retryPolicy.getDelay(1, 1_000));
+        for (int i = 0; i < SAMPLES; i++) {
+            // the first delay is at most 500 ms, so it always ends before the deadline
+            assertTrue(retryPolicy.getDelay(1, 0) >= 0);
+        }
+    }
+
+    @Test
+    void manyFailedAttemptsDoNotOverflowTheDelay() {
+        RetryPolicy retryPolicy = new RetryPolicy(Integer.MAX_VALUE, 0);
+        for (int i = 0; i < SAMPLES; i++) {
+            long delay = retryPolicy.getDelay(Integer.MAX_VALUE - 1, 0);
+            assertTrue((delay >= 0) && (delay <= 30_000), String.format("delay %d is not within [0, 30000]", delay));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.agent;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SshDiagnosticsTest {
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "user@example.com: Permission denied (publickey).",
+            "Received disconnect from 192.0.2.1 port 22:2: Too many authentication failures",
+            "No more authentication methods available",
+            "Authentication failed.",
+            "Host key verification failed.",
+            "@    WARNING: REMOTE HOST IDENTIFICATION HAS CHANGED!     @",
+            "Server key did not validate"
+    })
+    void authenticationAndHostKeyProblemsArePermanent(String line) {
+        assertTrue(SshDiagnostics.isPermanentProblem(line));
+
+        SshDiagnostics diagnostics = new SshDiagnostics(0);
+        diagnostics.record(line, true);
+        assertTrue(diagnostics.indicatesPermanentProblem());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "ssh: connect to host example.com port 22: Connection refused",
+            "ssh: connect to host example.com port 22: Connection timed out",
+            "Connection reset by 192.0.2.1 port 22",
+            "Connection closed by 192.0.2.1 port 22",
+            "channel 2: open failed: connect failed: Connection refused",
+            "Timeout, server example.com not responding.",
+            "client_loop: send disconnect: Broken pipe",
+            "Warning: Permanently added 'example.com' (ED25519) to the list of known hosts."
+    })
+    void connectionProblemsAreNotPermanent(String line) {
+        assertFalse(SshDiagnostics.isPermanentProblem(line));
+
+        SshDiagnostics diagnostics = new SshDiagnostics(0);
+        diagnostics.record(line, true);
+        assertFalse(diagnostics.indicatesPermanentProblem());
+    }
+
+    @Test
+    void tailIsOnlyCapturedWithPositiveSize() {
+        assertFalse(new SshDiagnostics(0).isCapturingTail());
+        assertTrue(new SshDiagnostics(16).isCapturingTail());
+    }
+}
@@ -45,4 +45,34 @@ dependencies {
     implementation(project(":common"))
     provided(files("$teamcityHomeDir/buildAgent/plugins/ssh-manager/ssh-manager.jar"))
     provided("org.slf4j:slf4j-api:${versions["slf4j"]}")
+    implementation("org.apache.sshd:sshd-core:${versions["sshd"]}") {
+        // the agent provides slf4j already
+        exclude(group = "org.slf4j")
+    }
+    testImplementation("org.junit.jupiter:junit-jupiter:${versions["junit"]}")
+}
+
+configurations.testImplementation {
+    // the classes the agent provides at runtime are needed by the tests too
+    extendsFrom(configurations["provided"])
+}
+
+tasks.test {
+    useJUnitPlatform()
+}
+
+val benchmark by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output + sourceSets.main.get().compileClasspath
+    // the TeamCity API the agent provides is needed at runtime of the benchmark too
+    runtimeClasspath += output + compileClasspath + sourceSets.main.get().runtimeClasspath
+}
+
+tasks.register<JavaExec>("relayBenchmark") {
+    description = "Measures the connections per second, the added latency and the buffer usage of the relay of agent listeners"
+    group = "verification"
+    classpath = benchmark.runtimeClasspath
+    main = "net.kautler.teamcity.ssh_tunnel.agent.ForwardRelayBenchmark"
+    systemProperties(project.properties.filterKeys {
+        it in listOf("connections", "concurrentConnections", "clientThreads", "bufferMemory")
+    })
 }
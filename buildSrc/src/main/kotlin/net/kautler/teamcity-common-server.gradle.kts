@@ -31,4 +31,5 @@ dependencies {
     implementation(project(":common"))
     compileOnly(files("$teamcityHomeDir/webapps/ROOT/WEB-INF/plugins/ssh-manager/server/ssh-manager.jar"))
     compileOnly("org.jetbrains.teamcity:server-api:${versions["teamcity"]}")
+    compileOnly("org.jetbrains.teamcity:server-web-api:${versions["teamcity"]}")
 }
@@ -55,7 +55,11 @@ val versions by extra(mapOf(
         "teamcity2018.2Test" to "2018.2.4",
         "teamcity2018.1" to "2018.1.2",
         "teamcity2018.1Test" to "2018.1.5",
-        "slf4j" to "1.7.26"
+        "slf4j" to "1.7.26",
+        "sshd" to "2.8.0",
+
+        // test versions
+        "junit" to "5.4.2"
 ))
 
 val buildVcsNumber get() = project.findProperty("build.vcs.number") as String?
@@ -29,6 +29,7 @@ public class Constants {
     public static final String SSH_KEY_PASSPHRASE_PROPERTY_NAME = "secure:teamcitySshKeyPassphrase";
     public static final String HOST_PROPERTY_NAME = "host";
     public static final String PORT_PROPERTY_NAME = "port";
+    public static final String SSH_ENGINE_PROPERTY_NAME = "sshEngine";
     public static final String LOCAL_PART_PROPERTY_NAME = "localPart";
     public static final String LOCAL_ADDRESS_PROPERTY_NAME = "localAddress";
     public static final String LOCAL_PORT_PROPERTY_NAME = "localPort";
@@ -37,25 +38,65 @@ public class Constants {
     public static final String REMOTE_ADDRESS_PROPERTY_NAME = "remoteAddress";
     public static final String REMOTE_PORT_PROPERTY_NAME = "remotePort";
     public static final String REMOTE_SOCKET_PROPERTY_NAME = "remoteSocket";
+    public static final String ESTABLISH_TIMEOUT_PROPERTY_NAME = "establishTimeout";
+    public static final String ESTABLISH_ATTEMPTS_PROPERTY_NAME = "establishAttempts";
+    public static final String ESTABLISH_DEADLINE_PROPERTY_NAME = "establishDeadline";
 
     public static final String ADDRESS_PORT_PART_NAME = "ADDRESS_PORT";
     public static final String SOCKET_PART_NAME = "SOCKET";
 
+    public static final String EXECUTABLE_SSH_ENGINE_NAME = "EXECUTABLE";
+    public static final String EMBEDDED_SSH_ENGINE_NAME = "EMBEDDED";
+
     public static final String BUILD_FEATURE_TYPE = "ssh-tunnel-build-feature";
     public static final String BUILD_FEATURE_ACTIVITY_TYPE = "CUSTOM_SSH_TUNNELS";
     public static final String SSH_EXECUTABLE_CONFIGURATION_PARAMETER_NAME = "ssh.executable";
     public static final String SSH_EXECUTABLE_ENVIRONMENT_VARIABLE_NAME = "SSH_EXECUTABLE";
+    public static final String SSH_MULTIPLEXING_CONFIGURATION_PARAMETER_NAME = "ssh.tunnel.multiplexing";
+    public static final String SSH_POOL_IDLE_TIMEOUT_CONFIGURATION_PARAMETER_NAME = "ssh.tunnel.pool.idleTimeout";
+    public static final String SSH_POOL_MAX_SIZE_CONFIGURATION_PARAMETER_NAME = "ssh.tunnel.pool.maxSize";
+    // each prewarmed session is unauthenticated and counts against MaxStartups of the SSH server until LoginGraceTime is over
+    public static final String SSH_PREWARM_MAX_CONNECTIONS_CONFIGURATION_PARAMETER_NAME = "ssh.tunnel.prewarm.maxConnections";
+    public static final String SSH_PREWARM_TARGETS_CONFIGURATION_PARAMETER_NAME = "ssh.tunnel.prewarm.targets";
+    public static final String SSH_BROKER_DIRECTORY_CONFIGURATION_PARAMETER_NAME = "ssh.tunnel.broker.directory";
+    public static final String SSH_PORTS_RANGE_CONFIGURATION_PARAMETER_NAME = "ssh.tunnel.ports.range";
+    public static final String SSH_PORTS_REGISTRY_CONFIGURATION_PARAMETER_NAME = "ssh.tunnel.ports.registry";
+    public static final String SSH_AGENT_LISTENER_CONFIGURATION_PARAMETER_NAME = "ssh.tunnel.agentListener";
+    public static final String SSH_RELAY_BUFFER_MEMORY_CONFIGURATION_PARAMETER_NAME = "ssh.tunnel.relay.bufferMemory";
+    public static final String SSH_HANDSHAKE_TIMING_CONFIGURATION_PARAMETER_NAME = "ssh.tunnel.handshakeTiming";
+    public static final String SSH_PROCESS_SAMPLING_INTERVAL_CONFIGURATION_PARAMETER_NAME = "ssh.tunnel.processSampling.interval";
+    public static final String SSH_METRICS_TEXTFILE_CONFIGURATION_PARAMETER_NAME = "ssh.tunnel.metrics.textfile";
+    public static final String SSH_KEY_AGENT_LIFETIME_CONFIGURATION_PARAMETER_NAME = "ssh.tunnel.keyAgent.lifetime";
+    public static final String SSH_WORKSPACE_DIRECTORY_CONFIGURATION_PARAMETER_NAME = "ssh.tunnel.workspace.directory";
+    public static final String SSH_OUTPUT_TAIL_SIZE_CONFIGURATION_PARAMETER_NAME = "ssh.tunnel.output.tailSize";
+    public static final String SSH_RECONNECT_ATTEMPTS_CONFIGURATION_PARAMETER_NAME = "ssh.tunnel.reconnect.attempts";
+    public static final String SSH_RECONNECT_DELAY_CONFIGURATION_PARAMETER_NAME = "ssh.tunnel.reconnect.delay";
+    public static final String SSH_KEEP_ALIVE_INTERVAL_CONFIGURATION_PARAMETER_NAME = "ssh.tunnel.keepAlive.interval";
+    public static final String SSH_KEEP_ALIVE_COUNT_MAX_CONFIGURATION_PARAMETER_NAME = "ssh.tunnel.keepAlive.countMax";
+    public static final String SSH_DRAIN_TIMEOUT_CONFIGURATION_PARAMETER_NAME = "ssh.tunnel.drain.timeout";
+    public static final String SSH_TERMINATION_GRACE_PERIOD_CONFIGURATION_PARAMETER_NAME = "ssh.tunnel.termination.gracePeriod";
     public static final String SSH_EXECUTABLE_REQUIREMENT_ID = SSH_EXECUTABLE_CONFIGURATION_PARAMETER_NAME + "-exists";
+    public static final String TUNNEL_METRICS_SERVICE_MESSAGE_NAME = "sshTunnelMetrics";
+    public static final String TUNNEL_METRICS_HOST_ATTRIBUTE_NAME = "host";
+    public static final String TUNNEL_METRICS_ESTABLISHED_ATTRIBUTE_NAME = "established";
+    public static final String TUNNEL_METRICS_ESTABLISH_TIME_ATTRIBUTE_NAME = "establishTime";
+    public static final String TUNNEL_METRICS_RECONNECTS_ATTRIBUTE_NAME = "reconnects";
+    public static final String TUNNEL_METRICS_BYTES_ATTRIBUTE_NAME = "bytes";
 
     public static final BigInteger MAX_PORT_NUMBER = BigInteger.valueOf(65_535);
+    public static final BigInteger MAX_SECONDS = BigInteger.valueOf(Integer.MAX_VALUE);
+    public static final BigInteger MAX_ATTEMPTS = BigInteger.valueOf(100);
     public static final int MIN_VERSION_SUPPORTING_BUILD_FEATURE_REQUIREMENTS = 65_998;
 
     public static final List<String> VALID_PROPERTY_NAMES = asList(
             SSH_TUNNEL_REQUIREMENT_PROPERTY_NAME, NAME_PROPERTY_NAME,
             USER_PROPERTY_NAME, SSH_KEY_PROPERTY_NAME, SSH_KEY_PASSPHRASE_PROPERTY_NAME, HOST_PROPERTY_NAME, PORT_PROPERTY_NAME,
+            SSH_ENGINE_PROPERTY_NAME,
             LOCAL_PART_PROPERTY_NAME, LOCAL_ADDRESS_PROPERTY_NAME, LOCAL_PORT_PROPERTY_NAME, LOCAL_SOCKET_PROPERTY_NAME,
-            REMOTE_PART_PROPERTY_NAME, REMOTE_ADDRESS_PROPERTY_NAME, REMOTE_PORT_PROPERTY_NAME, REMOTE_SOCKET_PROPERTY_NAME);
+            REMOTE_PART_PROPERTY_NAME, REMOTE_ADDRESS_PROPERTY_NAME, REMOTE_PORT_PROPERTY_NAME, REMOTE_SOCKET_PROPERTY_NAME,
+            ESTABLISH_TIMEOUT_PROPERTY_NAME, ESTABLISH_ATTEMPTS_PROPERTY_NAME, ESTABLISH_DEADLINE_PROPERTY_NAME);
     public static final List<String> VALID_PART_NAMES = asList(ADDRESS_PORT_PART_NAME, SOCKET_PART_NAME);
+    public static final List<String> VALID_SSH_ENGINE_NAMES = asList(EXECUTABLE_SSH_ENGINE_NAME, EMBEDDED_SSH_ENGINE_NAME);
 
     private Constants() {
         throw new UnsupportedOperationException();
@@ -25,6 +25,9 @@ import net.kautler.teamcity.ssh_tunnel.common.model.SshTunnel;
 import java.util.Map;
 
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.ADDRESS_PORT_PART_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.ESTABLISH_ATTEMPTS_PROPERTY_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.ESTABLISH_DEADLINE_PROPERTY_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.ESTABLISH_TIMEOUT_PROPERTY_NAME;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.HOST_PROPERTY_NAME;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.LOCAL_ADDRESS_PROPERTY_NAME;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.LOCAL_PART_PROPERTY_NAME;
@@ -37,6 +40,7 @@ import static net.kautler.teamcity.ssh_tunnel.common.Constants.REMOTE_PART_PROPE
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.REMOTE_PORT_PROPERTY_NAME;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.REMOTE_SOCKET_PROPERTY_NAME;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.SOCKET_PART_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_ENGINE_PROPERTY_NAME;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_KEY_PASSPHRASE_PROPERTY_NAME;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_KEY_PROPERTY_NAME;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.USER_PROPERTY_NAME;
@@ -79,14 +83,18 @@ public class ModelBuilder {
         }
 
         String name = params.get(NAME_PROPERTY_NAME);
+        String establishTimeout = params.get(ESTABLISH_TIMEOUT_PROPERTY_NAME);
+        String establishAttempts = params.get(ESTABLISH_ATTEMPTS_PROPERTY_NAME);
+        String establishDeadline = params.get(ESTABLISH_DEADLINE_PROPERTY_NAME);
 
         String user = params.get(USER_PROPERTY_NAME);
         String sshKey = params.get(SSH_KEY_PROPERTY_NAME);
         String sshKeyPassphrase = params.get(SSH_KEY_PASSPHRASE_PROPERTY_NAME);
         String host = params.get(HOST_PROPERTY_NAME);
         String port = params.get(PORT_PROPERTY_NAME);
-        Connection connection = new Connection(user, sshKey, sshKeyPassphrase, host, port);
+        String sshEngine = params.get(SSH_ENGINE_PROPERTY_NAME);
+        Connection connection = new Connection(user, sshKey, sshKeyPassphrase, host, port, sshEngine);
 
-        return new SshTunnel(name, connection, localPart, remotePart);
+        return new SshTunnel(name, connection, localPart, remotePart, establishTimeout, establishAttempts, establishDeadline);
     }
 }
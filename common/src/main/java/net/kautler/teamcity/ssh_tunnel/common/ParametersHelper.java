@@ -23,18 +23,25 @@ import java.math.BigInteger;
 import java.util.Collection;
 import java.util.Map;
 
+import static java.math.BigInteger.ONE;
 import static java.math.BigInteger.ZERO;
 import static java.util.stream.Collectors.joining;
 import static jetbrains.buildServer.parameters.ReferencesResolverUtil.isReference;
 import static jetbrains.buildServer.util.StringUtil.isEmpty;
 import static jetbrains.buildServer.util.StringUtil.isNotEmpty;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.ADDRESS_PORT_PART_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.EMBEDDED_SSH_ENGINE_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.ESTABLISH_ATTEMPTS_PROPERTY_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.ESTABLISH_DEADLINE_PROPERTY_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.ESTABLISH_TIMEOUT_PROPERTY_NAME;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.HOST_PROPERTY_NAME;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.LOCAL_ADDRESS_PROPERTY_NAME;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.LOCAL_PART_PROPERTY_NAME;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.LOCAL_PORT_PROPERTY_NAME;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.LOCAL_SOCKET_PROPERTY_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.MAX_ATTEMPTS;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.MAX_PORT_NUMBER;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.MAX_SECONDS;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.NAME_PROPERTY_NAME;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.PORT_PROPERTY_NAME;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.REMOTE_ADDRESS_PROPERTY_NAME;
@@ -42,11 +49,13 @@ import static net.kautler.teamcity.ssh_tunnel.common.Constants.REMOTE_PART_PROPE
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.REMOTE_PORT_PROPERTY_NAME;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.REMOTE_SOCKET_PROPERTY_NAME;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.SOCKET_PART_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_ENGINE_PROPERTY_NAME;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_KEY_PASSPHRASE_PROPERTY_NAME;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_KEY_PROPERTY_NAME;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.USER_PROPERTY_NAME;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.VALID_PART_NAMES;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.VALID_PROPERTY_NAMES;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.VALID_SSH_ENGINE_NAMES;
 import static net.kautler.teamcity.ssh_tunnel.common.ModelBuilder.buildSshTunnel;
 
 public abstract class ParametersHelper {
@@ -117,6 +126,10 @@ public abstract class ParametersHelper {
             }
         }
 
+        if (isNotEmpty(properties.get(SSH_ENGINE_PROPERTY_NAME)) && !VALID_SSH_ENGINE_NAMES.contains(properties.get(SSH_ENGINE_PROPERTY_NAME))) {
+            invalidProperties.putValue(SSH_ENGINE_PROPERTY_NAME, "SSH engine value is invalid");
+        }
+
         boolean localAddressGiven = isNotEmpty(properties.get(LOCAL_ADDRESS_PROPERTY_NAME));
         boolean localPortGiven = isNotEmpty(properties.get(LOCAL_PORT_PROPERTY_NAME));
         boolean localSocketGiven = isNotEmpty(properties.get(LOCAL_SOCKET_PROPERTY_NAME));
@@ -216,6 +229,55 @@ public abstract class ParametersHelper {
                 break;
         }
 
+        // the embedded engine only supports TCP forwards, as Java 8 has no means to handle unix domain sockets
+        if (EMBEDDED_SSH_ENGINE_NAME.equals(properties.get(SSH_ENGINE_PROPERTY_NAME))) {
+            if (SOCKET_PART_NAME.equals(properties.get(LOCAL_PART_PROPERTY_NAME))) {
+                invalidProperties.putValue(LOCAL_PART_PROPERTY_NAME, "Local socket is not supported by the embedded SSH engine");
+            }
+            if (SOCKET_PART_NAME.equals(properties.get(REMOTE_PART_PROPERTY_NAME))) {
+                invalidProperties.putValue(REMOTE_PART_PROPERTY_NAME, "Remote socket is not supported by the embedded SSH engine");
+            }
+        }
+
+        if (isNotEmpty(properties.get(ESTABLISH_TIMEOUT_PROPERTY_NAME)) && !isReference(properties.get(ESTABLISH_TIMEOUT_PROPERTY_NAME))) {
+            try {
+                BigInteger establishTimeout = new BigInteger(properties.get(ESTABLISH_TIMEOUT_PROPERTY_NAME));
+                if (establishTimeout.compareTo(ONE) < 0) {
+                    invalidProperties.putValue(ESTABLISH_TIMEOUT_PROPERTY_NAME, "Establish timeout if given must be a positive number of seconds");
+                } else if (establishTimeout.compareTo(MAX_SECONDS) > 0) {
+                    invalidProperties.putValue(ESTABLISH_TIMEOUT_PROPERTY_NAME, "Establish timeout if given must be at most " + MAX_SECONDS);
+                }
+            } catch (NumberFormatException nfe) {
+                invalidProperties.putValue(ESTABLISH_TIMEOUT_PROPERTY_NAME, "Establish timeout if given must be a positive number of seconds");
+            }
+        }
+
+        if (isNotEmpty(properties.get(ESTABLISH_ATTEMPTS_PROPERTY_NAME)) && !isReference(properties.get(ESTABLISH_ATTEMPTS_PROPERTY_NAME))) {
+            try {
+                BigInteger establishAttempts = new BigInteger(properties.get(ESTABLISH_ATTEMPTS_PROPERTY_NAME));
+                if (establishAttempts.compareTo(ONE) < 0) {
+                    invalidProperties.putValue(ESTABLISH_ATTEMPTS_PROPERTY_NAME, "Establish attempts if given must be a positive number");
+                } else if (establishAttempts.compareTo(MAX_ATTEMPTS) > 0) {
+                    invalidProperties.putValue(ESTABLISH_ATTEMPTS_PROPERTY_NAME, "Establish attempts if given must be at most " + MAX_ATTEMPTS);
+                }
+            } catch (NumberFormatException nfe) {
+                invalidProperties.putValue(ESTABLISH_ATTEMPTS_PROPERTY_NAME, "Establish attempts if given must be a positive number");
+            }
+        }
+
+        if (isNotEmpty(properties.get(ESTABLISH_DEADLINE_PROPERTY_NAME)) && !isReference(properties.get(ESTABLISH_DEADLINE_PROPERTY_NAME))) {
+            try {
+                BigInteger establishDeadline = new BigInteger(properties.get(ESTABLISH_DEADLINE_PROPERTY_NAME));
+                if (establishDeadline.compareTo(ONE) < 0) {
+                    invalidProperties.putValue(ESTABLISH_DEADLINE_PROPERTY_NAME, "Establish deadline if given must be a positive number of seconds");
+                } else if (establishDeadline.compareTo(MAX_SECONDS) > 0) {
+                    invalidProperties.putValue(ESTABLISH_DEADLINE_PROPERTY_NAME, "Establish deadline if given must be at most " + MAX_SECONDS);
+                }
+            } catch (NumberFormatException nfe) {
+                invalidProperties.putValue(ESTABLISH_DEADLINE_PROPERTY_NAME, "Establish deadline if given must be a positive number of seconds");
+            }
+        }
+
         return invalidProperties;
     }
 
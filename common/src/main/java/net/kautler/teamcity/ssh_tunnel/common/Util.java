@@ -20,6 +20,8 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import static java.nio.charset.Charset.defaultCharset;
 import static java.util.stream.Collectors.joining;
@@ -36,4 +38,16 @@ public class Util {
             return "";
         }
     }
+
+    /**
+     * Reads the given stream to its end on a separate thread, so that the process writing to it can be awaited
+     * with a timeout without blocking on a full pipe.
+     */
+    public static Future<String> streamToStringAsync(InputStream input) {
+        FutureTask<String> output = new FutureTask<>(() -> streamToString(input));
+        Thread reader = new Thread(output, "Process Output Reader");
+        reader.setDaemon(true);
+        reader.start();
+        return output;
+    }
 }
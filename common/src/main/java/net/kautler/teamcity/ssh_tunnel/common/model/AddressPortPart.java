@@ -67,6 +67,20 @@ public final class AddressPortPart implements Part {
         }
     }
 
+    public boolean isRandomPort() {
+        return port == null;
+    }
+
+    /**
+     * Uses the given port as random port, unless a random port was determined already.
+     *
+     * @param randomPort the port to use
+     * @return whether the given port is used
+     */
+    public boolean assignRandomPort(int randomPort) {
+        return (port == null) && this.randomPort.compareAndSet(0, randomPort);
+    }
+
     @Override
     public Map<String, String> getConfigParameters(String prefix, boolean emulationMode) {
         Map<String, String> result = new HashMap<>();
@@ -21,6 +21,7 @@ import java.util.Map;
 import java.util.Objects;
 
 import static jetbrains.buildServer.util.StringUtil.isEmptyOrSpaces;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.EXECUTABLE_SSH_ENGINE_NAME;
 
 public final class Connection {
     private final String user;
@@ -28,8 +29,9 @@ public final class Connection {
     private final String sshKeyPassphrase;
     private final String host;
     private final String port;
+    private final String sshEngine;
 
-    public Connection(String user, String sshKey, String sshKeyPassphrase, String host, String port) {
+    public Connection(String user, String sshKey, String sshKeyPassphrase, String host, String port, String sshEngine) {
         Objects.requireNonNull(user, "'user' must not be 'null'");
         Objects.requireNonNull(sshKey, "'sshKey' must not be 'null'");
         Objects.requireNonNull(host, "'host' must not be 'null'");
@@ -38,6 +40,7 @@ public final class Connection {
         this.user = user;
         this.host = host;
         this.port = isEmptyOrSpaces(port) ? "22" : port;
+        this.sshEngine = isEmptyOrSpaces(sshEngine) ? EXECUTABLE_SSH_ENGINE_NAME : sshEngine;
     }
 
     public String getUser() {
@@ -60,6 +63,10 @@ public final class Connection {
         return port;
     }
 
+    public String getSshEngine() {
+        return sshEngine;
+    }
+
     public Map<String, String> getConfigParameters(String prefix, boolean emulationMode) {
         Map<String, String> result = new HashMap<>();
         result.put(prefix + "user", user);
@@ -82,12 +89,13 @@ public final class Connection {
                 && Objects.equals(sshKey, that.sshKey)
                 && Objects.equals(sshKeyPassphrase, that.sshKeyPassphrase)
                 && Objects.equals(host, that.host)
-                && Objects.equals(port, that.port);
+                && Objects.equals(port, that.port)
+                && Objects.equals(sshEngine, that.sshEngine);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(user, sshKey, sshKeyPassphrase, host, port);
+        return Objects.hash(user, sshKey, sshKeyPassphrase, host, port, sshEngine);
     }
 
     @Override
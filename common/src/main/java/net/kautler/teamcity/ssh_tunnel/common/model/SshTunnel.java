@@ -25,6 +25,7 @@ import java.util.Objects;
 import static java.util.FormattableFlags.ALTERNATE;
 import static java.util.FormattableFlags.LEFT_JUSTIFY;
 import static java.util.FormattableFlags.UPPERCASE;
+import static jetbrains.buildServer.util.StringUtil.isEmptyOrSpaces;
 import static jetbrains.buildServer.util.StringUtil.replaceNonAlphaNumericChars;
 
 public class SshTunnel implements Formattable {
@@ -32,8 +33,12 @@ public class SshTunnel implements Formattable {
     private final Connection connection;
     private final Part localPart;
     private final Part remotePart;
+    private final String establishTimeout;
+    private final String establishAttempts;
+    private final String establishDeadline;
 
-    public SshTunnel(String name, Connection connection, Part localPart, Part remotePart) {
+    public SshTunnel(String name, Connection connection, Part localPart, Part remotePart, String establishTimeout,
+                     String establishAttempts, String establishDeadline) {
         Objects.requireNonNull(name, "'name' must not be 'null'");
         Objects.requireNonNull(connection, "'connection' must not be 'null'");
         Objects.requireNonNull(remotePart, "'remotePart' must not be 'null'");
@@ -41,6 +46,9 @@ public class SshTunnel implements Formattable {
         this.connection = connection;
         this.localPart = localPart == null ? new AddressPortPart() : localPart;
         this.remotePart = remotePart;
+        this.establishTimeout = isEmptyOrSpaces(establishTimeout) ? "30" : establishTimeout;
+        this.establishAttempts = isEmptyOrSpaces(establishAttempts) ? "1" : establishAttempts;
+        this.establishDeadline = isEmptyOrSpaces(establishDeadline) ? null : establishDeadline;
     }
 
     public String getName() {
@@ -59,12 +67,24 @@ public class SshTunnel implements Formattable {
         return remotePart;
     }
 
+    public String getEstablishTimeout() {
+        return establishTimeout;
+    }
+
+    public String getEstablishAttempts() {
+        return establishAttempts;
+    }
+
+    public String getEstablishDeadline() {
+        return establishDeadline;
+    }
+
     public Map<String, String> getConfigParameters() {
         return getConfigParameters(false);
     }
 
     public Map<String, String> getConfigParameters(boolean emulationMode) {
-        String prefix = String.format("sshTunnel.%s.", replaceNonAlphaNumericChars(name, '_'));
+        String prefix = getKeyPrefix();
         Map<String, String> result = new HashMap<>();
         result.putAll(connection.getConfigParameters(prefix + "connection.", emulationMode));
         result.putAll(localPart.getConfigParameters(prefix + "local.", emulationMode));
@@ -72,6 +92,16 @@ public class SshTunnel implements Formattable {
         return result;
     }
 
+    /**
+     * Returns the prefix of the keys of values published for this tunnel, like its config parameters
+     * or build statistic values, derived from its sanitized name.
+     *
+     * @return the key prefix, ending in a dot
+     */
+    public String getKeyPrefix() {
+        return String.format("sshTunnel.%s.", replaceNonAlphaNumericChars(name, '_'));
+    }
+
     @Override
     public void formatTo(Formatter formatter, int flags, int width, int precision) {
         boolean alternate = (flags & ALTERNATE) != 0;
@@ -101,12 +131,15 @@ public class SshTunnel implements Formattable {
         return Objects.equals(name, sshTunnel.name)
                 && Objects.equals(connection, sshTunnel.connection)
                 && Objects.equals(localPart, sshTunnel.localPart)
-                && Objects.equals(remotePart, sshTunnel.remotePart);
+                && Objects.equals(remotePart, sshTunnel.remotePart)
+                && Objects.equals(establishTimeout, sshTunnel.establishTimeout)
+                && Objects.equals(establishAttempts, sshTunnel.establishAttempts)
+                && Objects.equals(establishDeadline, sshTunnel.establishDeadline);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(name, connection, localPart, remotePart);
+        return Objects.hash(name, connection, localPart, remotePart, establishTimeout, establishAttempts, establishDeadline);
     }
 
     @Override
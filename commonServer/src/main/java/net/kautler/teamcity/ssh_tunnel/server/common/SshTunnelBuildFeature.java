@@ -29,11 +29,14 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
+import static java.util.Collections.emptyList;
 import static java.util.Collections.singleton;
 import static java.util.stream.Collectors.toList;
 import static jetbrains.buildServer.requirements.RequirementType.EXISTS;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.BUILD_FEATURE_TYPE;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.EMBEDDED_SSH_ENGINE_NAME;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_EXECUTABLE_CONFIGURATION_PARAMETER_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_ENGINE_PROPERTY_NAME;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_EXECUTABLE_REQUIREMENT_ID;
 
 public class SshTunnelBuildFeature extends BuildFeature {
@@ -84,6 +87,9 @@ public class SshTunnelBuildFeature extends BuildFeature {
     // This was added in 2019.1, in previous versions this method should simply be ignored
     // and a work-around to add this requirement is in effect in this plugin
     public Collection<Requirement> getRequirements(Map<String, String> params) {
+        if (EMBEDDED_SSH_ENGINE_NAME.equals(params.get(SSH_ENGINE_PROPERTY_NAME))) {
+            return emptyList();
+        }
         return singleton(new Requirement(SSH_EXECUTABLE_REQUIREMENT_ID, SSH_EXECUTABLE_CONFIGURATION_PARAMETER_NAME, null, EXISTS));
     }
 }
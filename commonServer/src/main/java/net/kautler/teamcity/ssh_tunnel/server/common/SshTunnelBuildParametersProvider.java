@@ -16,18 +16,77 @@
 
 package net.kautler.teamcity.ssh_tunnel.server.common;
 
+import jetbrains.buildServer.parameters.ReferencesResolverUtil;
+import jetbrains.buildServer.serverSide.BuildQueue;
 import jetbrains.buildServer.serverSide.ParametersDescriptor;
 import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SBuildAgent;
 import jetbrains.buildServer.serverSide.parameters.AbstractBuildParametersProvider;
 import net.kautler.teamcity.ssh_tunnel.common.ModelBuilder;
+import net.kautler.teamcity.ssh_tunnel.common.ParametersHelper;
+import net.kautler.teamcity.ssh_tunnel.common.model.SshTunnel;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Stream;
 
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonMap;
+import static java.util.stream.Collectors.joining;
 import static java.util.stream.Collectors.toList;
 import static net.kautler.teamcity.ssh_tunnel.common.Constants.BUILD_FEATURE_TYPE;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.SSH_PREWARM_TARGETS_CONFIGURATION_PARAMETER_NAME;
 
 public class SshTunnelBuildParametersProvider extends AbstractBuildParametersProvider {
+    private static final int MAX_PREWARM_QUEUED_BUILDS = 5;
+
+    @NotNull
+    private final BuildQueue buildQueue;
+
+    @NotNull
+    private final ParametersHelper parametersHelper;
+
+    public SshTunnelBuildParametersProvider(@NotNull BuildQueue buildQueue, @NotNull ParametersHelper parametersHelper) {
+        this.buildQueue = buildQueue;
+        this.parametersHelper = parametersHelper;
+    }
+
+    /**
+     * Tells the agent of a starting build which SSH targets the queued builds already assigned to the agent
+     * will connect to, so that it can prepare connections to them before these builds arrive. Each target is
+     * prefixed with the id of its queued build, which is the id the build has once it started.
+     * Only queued builds of the same project are considered, as the targets become visible as build parameter.
+     */
+    @NotNull
+    @Override
+    public Map<String, String> getParameters(@NotNull SBuild build, boolean emulationMode) {
+        SBuildAgent agent = build.getAgent();
+        if (emulationMode || (agent == null)) {
+            return emptyMap();
+        }
+
+        String targets = buildQueue.getItems().stream()
+                .filter(queuedBuild -> agent.equals(queuedBuild.getBuildAgent()))
+                .filter(queuedBuild -> Objects.equals(queuedBuild.getBuildType().getProjectId(), build.getProjectId()))
+                .limit(MAX_PREWARM_QUEUED_BUILDS)
+                .flatMap(queuedBuild -> queuedBuild.getBuildType().getBuildFeaturesOfType(BUILD_FEATURE_TYPE).stream()
+                        .map(ParametersDescriptor::getParameters)
+                        .filter(parameters -> parametersHelper.validate(new HashMap<>(parameters)).isEmpty())
+                        .map(ModelBuilder::buildSshTunnel)
+                        .map(SshTunnel::getConnection)
+                        // only the agent can resolve parameter references
+                        .filter(connection -> Stream.of(connection.getUser(), connection.getHost(), connection.getPort())
+                                .noneMatch(ReferencesResolverUtil::mayContainReference))
+                        .map(connection -> String.join("\t", String.valueOf(queuedBuild.getBuildPromotion().getId()),
+                                connection.getSshEngine(), connection.getUser(), connection.getHost(), connection.getPort())))
+                .distinct()
+                .collect(joining("\n"));
+        return targets.isEmpty() ? emptyMap() : singletonMap(SSH_PREWARM_TARGETS_CONFIGURATION_PARAMETER_NAME, targets);
+    }
+
     @NotNull
     @Override
     public Collection<String> getParametersAvailableOnAgent(@NotNull SBuild build) {
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.server.common;
+
+import jetbrains.buildServer.messages.BuildMessage1;
+import jetbrains.buildServer.messages.serviceMessages.ServiceMessage;
+import jetbrains.buildServer.messages.serviceMessages.ServiceMessageTranslator;
+import jetbrains.buildServer.parameters.ReferencesResolverUtil;
+import jetbrains.buildServer.serverSide.ParametersDescriptor;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import static java.lang.Boolean.parseBoolean;
+import static java.util.Collections.emptyList;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.BUILD_FEATURE_TYPE;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.HOST_PROPERTY_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.TUNNEL_METRICS_BYTES_ATTRIBUTE_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.TUNNEL_METRICS_ESTABLISHED_ATTRIBUTE_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.TUNNEL_METRICS_ESTABLISH_TIME_ATTRIBUTE_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.TUNNEL_METRICS_HOST_ATTRIBUTE_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.TUNNEL_METRICS_RECONNECTS_ATTRIBUTE_NAME;
+import static net.kautler.teamcity.ssh_tunnel.common.Constants.TUNNEL_METRICS_SERVICE_MESSAGE_NAME;
+
+/**
+ * Records the tunnel metrics the agents report at the end of the builds in the {@link TunnelPerformanceHistory}
+ * and removes the messages from the build log. As the build itself can print such messages too, only metrics
+ * for hosts the SSH Tunnel build features of the build connect to are recorded.
+ */
+public class TunnelMetricsServiceMessageTranslator implements ServiceMessageTranslator {
+    @NotNull
+    private final TunnelPerformanceHistory tunnelPerformanceHistory;
+
+    public TunnelMetricsServiceMessageTranslator(@NotNull TunnelPerformanceHistory tunnelPerformanceHistory) {
+        this.tunnelPerformanceHistory = tunnelPerformanceHistory;
+    }
+
+    @NotNull
+    @Override
+    public String getServiceMessageName() {
+        return TUNNEL_METRICS_SERVICE_MESSAGE_NAME;
+    }
+
+    @NotNull
+    @Override
+    public List<BuildMessage1> translate(@NotNull SRunningBuild runningBuild, @NotNull BuildMessage1 originalMessage,
+                                         @NotNull ServiceMessage serviceMessage) {
+        Map<String, String> attributes = serviceMessage.getAttributes();
+        String host = attributes.get(TUNNEL_METRICS_HOST_ATTRIBUTE_NAME);
+        if ((host != null) && isConfiguredHost(runningBuild, host)) {
+            try {
+                tunnelPerformanceHistory.record(host,
+                        parseBoolean(attributes.get(TUNNEL_METRICS_ESTABLISHED_ATTRIBUTE_NAME)),
+                        Long.parseLong(attributes.getOrDefault(TUNNEL_METRICS_ESTABLISH_TIME_ATTRIBUTE_NAME, "-1")),
+                        Integer.parseInt(attributes.getOrDefault(TUNNEL_METRICS_RECONNECTS_ATTRIBUTE_NAME, "0")),
+                        Long.parseLong(attributes.getOrDefault(TUNNEL_METRICS_BYTES_ATTRIBUTE_NAME, "0")));
+            } catch (NumberFormatException ignored) {
+                // a malformed message, e.g. printed by the build itself, is not worth failing the build for
+            }
+        }
+        return emptyList();
+    }
+
+    private static boolean isConfiguredHost(@NotNull SRunningBuild runningBuild, @NotNull String host) {
+        return runningBuild.getBuildFeaturesOfType(BUILD_FEATURE_TYPE).stream()
+                .map(ParametersDescriptor::getParameters)
+                .map(parameters -> parameters.get(HOST_PROPERTY_NAME))
+                .filter(Objects::nonNull)
+                .map(configuredHost -> ReferencesResolverUtil.mayContainReference(configuredHost)
+                        ? runningBuild.getValueResolver().resolve(configuredHost).getResult()
+                        : configuredHost)
+                .anyMatch(host::equals);
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.server.common;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.web.openapi.PluginDescriptor;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static java.lang.System.currentTimeMillis;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+/**
+ * Keeps the history of the tunnel metrics the agents report, per SSH host.
+ *
+ * <p>The samples are aggregated into hourly buckets, which are merged into daily buckets once they are older than
+ * two days. Each bucket only holds counters and a fixed histogram of the establish times, so the size of the history
+ * only depends on the amount of hosts, not on the amount of builds. The amount of hosts is limited too,
+ * samples for further hosts are dropped until hosts without samples within the retention vanish.
+ */
+public class TunnelPerformanceHistory extends BuildServerAdapter {
+    private static final Logger LOG = LoggerFactory.getLogger(Loggers.SERVER_CATEGORY + '.' + TunnelPerformanceHistory.class.getName());
+
+    private static final String HISTORY_FILE_NAME = "performanceHistory.tsv";
+
+    /**
+     * The upper bounds in milliseconds of the establish time histogram buckets, the last bucket is unbounded.
+     */
+    private static final long[] ESTABLISH_TIME_BOUNDS = { 50, 100, 200, 500, 1_000, 2_000, 5_000, 10_000, 20_000, 60_000 };
+
+    private static final long HOURLY_RETENTION = HOURS.toMillis(48);
+
+    private static final long DAILY_RETENTION = DAYS.toMillis(90);
+
+    private static final long SAVE_INTERVAL = MINUTES.toMillis(5);
+
+    private static final int REPORT_DAYS = 7;
+
+    private static final int MAX_HOSTS = 1_000;
+
+    @NotNull
+    private final Path historyFile;
+
+    /**
+     * The buckets per host, keyed by the start of the hour or day they cover.
+     */
+    private final Map<String, NavigableMap<Long, Bucket>> bucketsPerHost = new HashMap<>();
+
+    private long lastSave = currentTimeMillis();
+
+    public TunnelPerformanceHistory(@NotNull EventDispatcher<BuildServerListener> events,
+                                    @NotNull ServerPaths serverPaths, @NotNull PluginDescriptor pluginDescriptor) {
+        historyFile = new File(new File(serverPaths.getPluginDataDirectory(), pluginDescriptor.getPluginName()), HISTORY_FILE_NAME).toPath();
+        events.addListener(this);
+    }
+
+    @Override
+    public void serverStartup() {
+        load();
+    }
+
+    @Override
+    public void serverShutdown() {
+        save();
+    }
+
+    /**
+     * Records the outcome of one tunnel connection of a build.
+     *
+     * @param host          the SSH host the connection went to
+     * @param established   whether the connection could be established
+     * @param establishTime the time in milliseconds the establishment took, only considered if it was established
+     * @param reconnects    the amount of reconnects of the connection
+     * @param bytes         the amount of bytes moved through the forwards of the connection
+     */
+    public void record(@NotNull String host, boolean established, long establishTime, int reconnects, long bytes) {
+        if (!isValidHost(host)) {
+            LOG.debug("Ignoring tunnel metrics for invalid host '{}'", host);
+            return;
+        }
+        boolean saveDue;
+        synchronized (this) {
+            if ((bucketsPerHost.size() >= MAX_HOSTS) && !bucketsPerHost.containsKey(host)) {
+                LOG.warn("Ignoring tunnel metrics for host '{}', the history holds the maximum of {} hosts already", host, MAX_HOSTS);
+                return;
+            }
+            long now = currentTimeMillis();
+            Bucket bucket = bucketsPerHost
+                    .computeIfAbsent(host, key -> new TreeMap<>())
+                    .computeIfAbsent(now - (now % HOURS.toMillis(1)), key -> new Bucket());
+            bucket.connections++;
+            if (established) {
+                bucket.establishTimes[getEstablishTimeBucket(establishTime)]++;
+            } else {
+                bucket.failures++;
+            }
+            bucket.reconnects += reconnects;
+            bucket.bytes += bytes;
+            saveDue = (now - lastSave) >= SAVE_INTERVAL;
+            if (saveDue) {
+                lastSave = now;
+            }
+        }
+        if (saveDue) {
+            save();
+        }
+    }
+
+    /**
+     * Returns the performance of the hosts within the last days, the slowest hosts first.
+     *
+     * @return the performance of the hosts within the last days
+     */
+    @NotNull
+    public synchronized List<HostPerformance> getReport() {
+        long now = currentTimeMillis();
+        downsample(now);
+        long today = now - (now % DAYS.toMillis(1));
+        long since = today - DAYS.toMillis(REPORT_DAYS - 1);
+        List<HostPerformance> report = new ArrayList<>();
+        bucketsPerHost.forEach((host, buckets) -> {
+            Bucket total = new Bucket();
+            Bucket[] days = new Bucket[REPORT_DAYS];
+            buckets.tailMap(since, true).forEach((bucketStart, bucket) -> {
+                total.add(bucket);
+                int day = (int) ((bucketStart - since) / DAYS.toMillis(1));
+                if (days[day] == null) {
+                    days[day] = new Bucket();
+                }
+                days[day].add(bucket);
+            });
+            if (total.connections > 0) {
+                report.add(new HostPerformance(host, total, days));
+            }
+        });
+        report.sort(Comparator
+                // hosts that could never be connected to are the slowest
+                .comparingLong((HostPerformance hostPerformance) -> {
+                    long p95 = hostPerformance.total.getPercentile(95);
+                    return p95 < 0 ? Long.MAX_VALUE : p95;
+                })
+                .thenComparingDouble(HostPerformance::getFailureRate)
+                .reversed());
+        return report;
+    }
+
+    /**
+     * Merges the hourly buckets older than the hourly retention into daily buckets
+     * and drops the buckets older than the daily retention.
+     */
+    private void downsample(long now) {
+        long hourlySince = now - HOURLY_RETENTION;
+        long dailySince = now - DAILY_RETENTION;
+        bucketsPerHost.values().removeIf(buckets -> {
+            buckets.headMap(dailySince).clear();
+            for (Map.Entry<Long, Bucket> entry : new ArrayList<>(buckets.headMap(hourlySince).entrySet())) {
+                long day = entry.getKey() - (entry.getKey() % DAYS.toMillis(1));
+                if (entry.getKey() != day) {
+                    buckets.remove(entry.getKey());
+                    buckets.computeIfAbsent(day, key -> new Bucket()).add(entry.getValue());
+                }
+            }
+            return buckets.isEmpty();
+        });
+    }
+
+    private synchronized void load() {
+        if (!Files.isRegularFile(historyFile)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(historyFile, UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] fields = line.split("\t");
+                if ((fields.length != (6 + ESTABLISH_TIME_BOUNDS.length + 1))
+                        || ((bucketsPerHost.size() >= MAX_HOSTS) && !bucketsPerHost.containsKey(fields[0]))) {
+                    continue;
+                }
+                Bucket bucket = new Bucket();
+                bucket.connections = Long.parseLong(fields[2]);
+                bucket.failures = Long.parseLong(fields[3]);
+                bucket.reconnects = Long.parseLong(fields[4]);
+                bucket.bytes = Long.parseLong(fields[5]);
+                for (int i = 0; i < bucket.establishTimes.length; i++) {
+                    bucket.establishTimes[i] = Long.parseLong(fields[6 + i]);
+                }
+                bucketsPerHost
+                        .computeIfAbsent(fields[0], key -> new TreeMap<>())
+                        .merge(Long.parseLong(fields[1]), bucket, Bucket::add);
+            }
+        } catch (IOException | NumberFormatException e) {
+            LOG.warn("Could not load the tunnel performance history from '{}'", historyFile, e);
+        }
+        downsample(currentTimeMillis());
+    }
+
+    private void save() {
+        List<String> lines = new ArrayList<>();
+        synchronized (this) {
+            downsample(currentTimeMillis());
+            bucketsPerHost.forEach((host, buckets) -> buckets.forEach((bucketStart, bucket) -> {
+                StringBuilder line = new StringBuilder()
+                        .append(host).append('\t')
+                        .append(bucketStart).append('\t')
+                        .append(bucket.connections).append('\t')
+                        .append(bucket.failures).append('\t')
+                        .append(bucket.reconnects).append('\t')
+                        .append(bucket.bytes);
+                Arrays.stream(bucket.establishTimes).forEach(count -> line.append('\t').append(count));
+                lines.add(line.toString());
+            }));
+        }
+        try {
+            Files.createDirectories(historyFile.getParent());
+            // write to a temporary file first, so that a crash does not leave a truncated history
+            Path temporaryFile = historyFile.resolveSibling(HISTORY_FILE_NAME + ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(temporaryFile, UTF_8)) {
+                for (String line : lines) {
+                    writer.write(line);
+                    writer.newLine();
+                }
+            }
+            Files.move(temporaryFile, historyFile, REPLACE_EXISTING, ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("Could not save the tunnel performance history to '{}'", historyFile, e);
+        }
+    }
+
+    /**
+     * Returns whether the given host can be stored in the history file, which uses tabs and line breaks as separators.
+     */
+    private static boolean isValidHost(@NotNull String host) {
+        return !host.isEmpty() && host.chars().noneMatch(Character::isISOControl);
+    }
+
+    private static int getEstablishTimeBucket(long establishTime) {
+        for (int i = 0; i < ESTABLISH_TIME_BOUNDS.length; i++) {
+            if (establishTime <= ESTABLISH_TIME_BOUNDS[i]) {
+                return i;
+            }
+        }
+        return ESTABLISH_TIME_BOUNDS.length;
+    }
+
+    private static String formatEstablishTime(long percentile) {
+        if (percentile < 0) {
+            return "-";
+        }
+        if (percentile == Long.MAX_VALUE) {
+            return String.format("> %d ms", ESTABLISH_TIME_BOUNDS[ESTABLISH_TIME_BOUNDS.length - 1]);
+        }
+        return String.format("≤ %d ms", percentile);
+    }
+
+    private static class Bucket {
+        private long connections;
+        private long failures;
+        private long reconnects;
+        private long bytes;
+        private final long[] establishTimes = new long[ESTABLISH_TIME_BOUNDS.length + 1];
+
+        private Bucket add(@NotNull Bucket other) {
+            connections += other.connections;
+            failures += other.failures;
+            reconnects += other.reconnects;
+            bytes += other.bytes;
+            for (int i = 0; i < establishTimes.length; i++) {
+                establishTimes[i] += other.establishTimes[i];
+            }
+            return this;
+        }
+
+        /**
+         * Returns the upper bound of the histogram bucket containing the given percentile of the establish times,
+         * {@link Long#MAX_VALUE} if it is in the unbounded bucket or {@code -1} if there are no establish times.
+         */
+        private long getPercentile(int percentile) {
+            long count = Arrays.stream(establishTimes).sum();
+            if (count == 0) {
+                return -1;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < ESTABLISH_TIME_BOUNDS.length; i++) {
+                seen += establishTimes[i];
+                if (seen >= rank) {
+                    return ESTABLISH_TIME_BOUNDS[i];
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * The performance of the connections to one host within the reported days.
+     */
+    public static class HostPerformance {
+        @NotNull
+        private final String host;
+
+        @NotNull
+        private final Bucket total;
+
+        @NotNull
+        private final Bucket[] days;
+
+        private HostPerformance(@NotNull String host, @NotNull Bucket total, @NotNull Bucket[] days) {
+            this.host = host;
+            this.total = total;
+            this.days = days;
+        }
+
+        @NotNull
+        public String getHost() {
+            return host;
+        }
+
+        public long getConnections() {
+            return total.connections;
+        }
+
+        public double getFailureRate() {
+            return (double) total.failures / total.connections;
+        }
+
+        public long getReconnects() {
+            return total.reconnects;
+        }
+
+        public long getBytes() {
+            return total.bytes;
+        }
+
+        @NotNull
+        public String getP50() {
+            return formatEstablishTime(total.getPercentile(50));
+        }
+
+        @NotNull
+        public String getP95() {
+            return formatEstablishTime(total.getPercentile(95));
+        }
+
+        /**
+         * Returns the p95 establish time per reported day, the oldest day first.
+         *
+         * @return the p95 establish time per reported day
+         */
+        @NotNull
+        public List<String> getDailyP95() {
+            List<String> dailyP95 = new ArrayList<>();
+            for (Bucket day : days) {
+                dailyP95.add(formatEstablishTime(day == null ? -1 : day.getPercentile(95)));
+            }
+            return dailyP95;
+        }
+    }
+}
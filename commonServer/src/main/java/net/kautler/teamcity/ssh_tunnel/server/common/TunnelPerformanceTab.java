@@ -0,0 +1,57 @@
+/*
+ * Copyright 2019 Björn Kautler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kautler.teamcity.ssh_tunnel.server.common;
+
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.web.openapi.PagePlaces;
+import jetbrains.buildServer.web.openapi.PlaceId;
+import jetbrains.buildServer.web.openapi.PluginDescriptor;
+import jetbrains.buildServer.web.openapi.SimpleCustomTab;
+import jetbrains.buildServer.web.util.SessionUser;
+import org.jetbrains.annotations.NotNull;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Map;
+
+/**
+ * Shows the {@link TunnelPerformanceHistory} as a tab of the server diagnostics,
+ * so that slow or failing SSH hosts are noticed early.
+ */
+public class TunnelPerformanceTab extends SimpleCustomTab {
+    @NotNull
+    private final TunnelPerformanceHistory tunnelPerformanceHistory;
+
+    public TunnelPerformanceTab(@NotNull PagePlaces pagePlaces, @NotNull PluginDescriptor pluginDescriptor,
+                                @NotNull TunnelPerformanceHistory tunnelPerformanceHistory) {
+        super(pagePlaces, PlaceId.ADMIN_SERVER_DIAGNOSTIC_TAB, pluginDescriptor.getPluginName(),
+                pluginDescriptor.getPluginResourcesPath("sshTunnelPerformance.jsp"), "SSH Tunnel Performance");
+        this.tunnelPerformanceHistory = tunnelPerformanceHistory;
+        register();
+    }
+
+    @Override
+    public boolean isAvailable(@NotNull HttpServletRequest request) {
+        SUser user = SessionUser.getUser(request);
+        return (user != null) && user.isPermissionGrantedGlobally(Permission.VIEW_SERVER_SETTINGS);
+    }
+
+    @Override
+    public void fillModel(@NotNull Map<String, Object> model, @NotNull HttpServletRequest request) {
+        model.put("hostPerformances", tunnelPerformanceHistory.getReport());
+    }
+}
@@ -144,6 +144,21 @@
     <span class="error" id="error_${Constants.PORT_PROPERTY_NAME}"></span>
   </td>
 </tr>
+<tr class="advancedSetting">
+  <th>
+    <label for="${Constants.SSH_ENGINE_PROPERTY_NAME}">SSH Engine:&nbsp;<bs:helpPopup>
+      <jsp:attribute name="linkText"><bs:helpIcon/></jsp:attribute>
+      <jsp:attribute name="helpContent">Either the ssh executable on the agent or the SSH implementation embedded in the plugin, which does not support socket forwards (default: ssh executable)</jsp:attribute>
+    </bs:helpPopup></label>
+  </th>
+  <td>
+    <props:selectProperty name="${Constants.SSH_ENGINE_PROPERTY_NAME}" className="longField">
+      <props:option value="${Constants.EXECUTABLE_SSH_ENGINE_NAME}">SSH Executable</props:option>
+      <props:option value="${Constants.EMBEDDED_SSH_ENGINE_NAME}">Embedded</props:option>
+    </props:selectProperty>
+    <span class="error" id="error_${Constants.SSH_ENGINE_PROPERTY_NAME}"></span>
+  </td>
+</tr>
 <tr class="groupingTitle">
   <td colspan="2">Local Part&nbsp;<bs:helpPopup>
     <jsp:attribute name="linkText"><bs:helpIcon/></jsp:attribute>
@@ -260,6 +275,42 @@
     <span class="error" id="error_${Constants.REMOTE_SOCKET_PROPERTY_NAME}"></span>
   </td>
 </tr>
+<tr class="advancedSetting">
+  <th>
+    <label for="${Constants.ESTABLISH_TIMEOUT_PROPERTY_NAME}">Establish Timeout:&nbsp;<bs:helpPopup>
+      <jsp:attribute name="linkText"><bs:helpIcon/></jsp:attribute>
+      <jsp:attribute name="helpContent">The time in seconds to wait for the forward to accept connections (default: 30)</jsp:attribute>
+    </bs:helpPopup></label>
+  </th>
+  <td>
+    <props:textProperty name="${Constants.ESTABLISH_TIMEOUT_PROPERTY_NAME}" className="longField"/>
+    <span class="error" id="error_${Constants.ESTABLISH_TIMEOUT_PROPERTY_NAME}"></span>
+  </td>
+</tr>
+<tr class="advancedSetting">
+  <th>
+    <label for="${Constants.ESTABLISH_ATTEMPTS_PROPERTY_NAME}">Establish Attempts:&nbsp;<bs:helpPopup>
+      <jsp:attribute name="linkText"><bs:helpIcon/></jsp:attribute>
+      <jsp:attribute name="helpContent">How often establishing the connection is tried if it fails for a transient reason (default: 1)</jsp:attribute>
+    </bs:helpPopup></label>
+  </th>
+  <td>
+    <props:textProperty name="${Constants.ESTABLISH_ATTEMPTS_PROPERTY_NAME}" className="longField"/>
+    <span class="error" id="error_${Constants.ESTABLISH_ATTEMPTS_PROPERTY_NAME}"></span>
+  </td>
+</tr>
+<tr class="advancedSetting">
+  <th>
+    <label for="${Constants.ESTABLISH_DEADLINE_PROPERTY_NAME}">Establish Deadline:&nbsp;<bs:helpPopup>
+      <jsp:attribute name="linkText"><bs:helpIcon/></jsp:attribute>
+      <jsp:attribute name="helpContent">The time in seconds after which no further establish attempt is started (default: none)</jsp:attribute>
+    </bs:helpPopup></label>
+  </th>
+  <td>
+    <props:textProperty name="${Constants.ESTABLISH_DEADLINE_PROPERTY_NAME}" className="longField"/>
+    <span class="error" id="error_${Constants.ESTABLISH_DEADLINE_PROPERTY_NAME}"></span>
+  </td>
+</tr>
 
 <script type="text/javascript">
   BS.SshTunnelBuildFeature.onLocalChange();
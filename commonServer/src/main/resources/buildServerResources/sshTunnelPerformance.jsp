@@ -0,0 +1,56 @@
+<%@ include file="/include.jsp" %>
+
+<%--
+  ~ Copyright 2019 Björn Kautler
+  ~
+  ~ Licensed under the Apache License, Version 2.0 (the "License");
+  ~ you may not use this file except in compliance with the License.
+  ~ You may obtain a copy of the License at
+  ~
+  ~     http://www.apache.org/licenses/LICENSE-2.0
+  ~
+  ~ Unless required by applicable law or agreed to in writing, software
+  ~ distributed under the License is distributed on an "AS IS" BASIS,
+  ~ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  ~ See the License for the specific language governing permissions and
+  ~ limitations under the License.
+  --%>
+
+<jsp:useBean id="hostPerformances" type="java.util.List" scope="request"/>
+
+<p>
+  The SSH Tunnel connections of the last 7 days per SSH host, the slowest hosts first.
+  The establish times are the upper bounds of the histogram buckets they fall into.
+</p>
+
+<c:choose>
+  <c:when test="${empty hostPerformances}">
+    <p>No SSH Tunnel connections were recorded in the last 7 days.</p>
+  </c:when>
+  <c:otherwise>
+    <table class="runnerFormTable">
+      <tr>
+        <th>Host</th>
+        <th>Connections</th>
+        <th>Failure rate</th>
+        <th>p50 establish time</th>
+        <th>p95 establish time</th>
+        <th>p95 per day</th>
+        <th>Reconnects</th>
+        <th>Bytes moved</th>
+      </tr>
+      <c:forEach items="${hostPerformances}" var="hostPerformance">
+        <tr>
+          <td><c:out value="${hostPerformance.host}"/></td>
+          <td>${hostPerformance.connections}</td>
+          <td><fmt:formatNumber value="${hostPerformance.failureRate}" type="percent" maxFractionDigits="1"/></td>
+          <td><c:out value="${hostPerformance.p50}"/></td>
+          <td><c:out value="${hostPerformance.p95}"/></td>
+          <td><c:out value="${fn:join(hostPerformance.dailyP95.toArray(), ' / ')}"/></td>
+          <td>${hostPerformance.reconnects}</td>
+          <td>${hostPerformance.bytes}</td>
+        </tr>
+      </c:forEach>
+    </table>
+  </c:otherwise>
+</c:choose>